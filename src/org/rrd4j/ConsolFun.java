@@ -4,5 +4,14 @@ package org.rrd4j;
  * Enumeration of available consolidation functions.
  */
 public enum ConsolFun {
-    AVERAGE, MIN, MAX, LAST, FIRST, TOTAL
+    AVERAGE, MIN, MAX, LAST, FIRST, TOTAL,
+    /**
+     * Archives keep a percentile sketch of the primary values of each row, and the 95th
+     * percentile of these values as archived value. Percentiles of data fetched from such
+     * archives are estimated from the primary values, see
+     * {@link org.rrd4j.core.FetchData#getPercentiles(String, long, long, double...)}.
+     * Sketches are not part of XML dumps and snapshots: archives imported from them start
+     * with empty sketches.
+     */
+    PERCENTILE
 }
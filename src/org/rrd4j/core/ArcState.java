@@ -72,6 +72,11 @@ public class ArcState implements RrdUpdater {
         return parentArc;
     }
 
+    void setWriteBack(RrdWriteBack writeBack) throws IOException {
+        accumValue.setWriteBack(writeBack);
+        nanSteps.setWriteBack(writeBack);
+    }
+
     void appendXml(XmlWriter writer) throws IOException {
         writer.startTag("ds");
         writer.writeTag("value", accumValue.get());
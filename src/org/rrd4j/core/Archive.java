@@ -3,6 +3,7 @@ package org.rrd4j.core;
 import org.rrd4j.ConsolFun;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Class to represent single RRD archive in a RRD with its internal state.
@@ -16,6 +17,12 @@ import java.io.IOException;
  * @author Sasa Markovic
  */
 public class Archive implements RrdUpdater {
+    private static final int BATCH_CAPACITY = 4096;
+    // rows read at once from each robin when dumping to XML
+    private static final int XML_ROW_BLOCK = 1024;
+    // rows of sketches read at once when fetching
+    private static final int SKETCH_ROW_BLOCK = 64;
+
     private final RrdDb parentDb;
 
     // definition
@@ -28,11 +35,39 @@ public class Archive implements RrdUpdater {
     private Robin[] robins;
     private ArcState[] states;
 
+    // values of the last finalized step, one per datasource
+    private final double[] finalizedRow;
+
+    // rows archived during a batch update, not yet stored in robins
+    private double[] batchRows;
+    private int batchCount;
+
     // state for version 2
     private RrdInt[] pointers;
     private RrdDoubleMatrix values;
 
+    // PERCENTILE archives only, see PercentileSketch: one row of sketches per archived
+    // row, then the sketches of the step being consolidated
+    private RrdInt sketchPointer;
+    private RrdDoubleMatrix sketches;
+    // steps of a row and stored size of its sketches
+    private int sketchSteps;
+    private int sketchSize;
+    // sketches of the step being consolidated, and their stored form as found in the backend,
+    // loaded on first update
+    private double[] currentSketches;
+    private double[] currentStored;
+    // scratch rows reused by updates
+    private double[] sketchRow;
+    private double[] storedRow;
+    private double[] sketchRowValues;
+
     Archive(RrdDb parentDb, ArcDef arcDef) throws IOException {
+        this(parentDb, arcDef, false);
+    }
+
+    // sparse archives are not filled with unknown values, see RobinPointer
+    Archive(RrdDb parentDb, ArcDef arcDef, boolean sparse) throws IOException {
         this.parentDb = parentDb;
         consolFun = new RrdString(this, true);  // constant, may be cached
         xff = new RrdDouble(this);
@@ -47,13 +82,14 @@ public class Archive implements RrdUpdater {
         }
         int n = parentDb.getHeader().getDsCount();
         int numRows = rows.get();
+        finalizedRow = new double[n];
         states = new ArcState[n];
         int version = parentDb.getHeader().getVersion();
         if(version == 1) {
             robins = new RobinArray[n];
         for (int i = 0; i < n; i++) {
             states[i] = new ArcState(this, shouldInitialize);
-                robins[i] = new RobinArray(this, numRows, shouldInitialize);
+                robins[i] = new RobinArray(this, numRows, shouldInitialize, sparse);
             }
         }
         else {
@@ -62,28 +98,44 @@ public class Archive implements RrdUpdater {
             for (int i = 0; i < n; i++) {
                 pointers[i]= new RrdInt(this);
                 states[i] = new ArcState(this, shouldInitialize);
+                if (shouldInitialize && sparse) {
+                    pointers[i].set(RobinPointer.SPARSE_START);
+                }
             }
-            values = new RrdDoubleMatrix(this, numRows, n, shouldInitialize);				
+            values = new RrdDoubleMatrix(this, numRows, n, shouldInitialize, sparse);				
             for(int i = 0; i < n; i++) {
                 robins[i] = new RobinMatrix(this, values, pointers[i], i);
             }
         }
+        if (ConsolFun.PERCENTILE.name().equals(consolFun.get())) {
+            // rows never written are known from the pointer and read as empty sketches
+            sketchSteps = steps.get();
+            sketchSize = PercentileSketch.getStoredSize(sketchSteps);
+            // fails with sketches too large to be stored
+            PercentileSketch.getStorageSize(n, sketchSteps, numRows);
+            int width = n * sketchSize;
+            sketchPointer = new RrdInt(this);
+            sketches = new RrdDoubleMatrix(this, numRows + 1, width, false);
+            if (shouldInitialize) {
+                sketchPointer.set(RobinPointer.SPARSE_START);
+                sketches.setRows(numRows, new double[width], 0, 1);
+            }
+        }
     }
 
     // read from XML
     Archive(RrdDb parentDb, DataImporter reader, int arcIndex) throws IOException {
+        // every archived value gets imported, no need to fill robins first
         this(parentDb, new ArcDef(
                 reader.getConsolFun(arcIndex), reader.getXff(arcIndex),
-                reader.getSteps(arcIndex), reader.getRows(arcIndex)));
+                reader.getSteps(arcIndex), reader.getRows(arcIndex)), true);
         int n = parentDb.getHeader().getDsCount();
         for (int i = 0; i < n; i++) {
             // restore state
             states[i].setAccumValue(reader.getStateAccumValue(arcIndex, i));
             states[i].setNanSteps(reader.getStateNanSteps(arcIndex, i));
-            // restore robins
-            double[] values = reader.getValues(arcIndex, i);
-            robins[i].update(values);
         }
+        // robins are restored by RrdDb, once all archives exist
     }
 
     /**
@@ -112,75 +164,340 @@ public class Archive implements RrdUpdater {
         return parentDb;
     }
 
-    void archive(int dsIndex, double value, long numUpdates) throws IOException {
-        Robin robin = robins[dsIndex];
-        ArcState state = states[dsIndex];
-        long step = parentDb.getHeader().getStep();
-        long lastUpdateTime = parentDb.getHeader().getLastUpdateTime();
+    /**
+     * Archives the values of completed primary steps, one value per datasource.
+     */
+    void archive(UpdatePlan.ArcPlan plan, double[] values, long numUpdates, long step, long lastUpdateTime)
+            throws IOException {
+        int n = states.length;
         long updateTime = Util.normalize(lastUpdateTime, step) + step;
-        long arcStep = getArcStep();
-        // finish current step
-        while (numUpdates > 0) {
-            accumulate(state, value);
-            numUpdates--;
-            if (updateTime % arcStep == 0) {
-                finalizeStep(state, robin);
-                break;
-            }
-            else {
-                updateTime += step;
+        long arcStep = step * plan.steps;
+        // finish current step, all datasources share the same timeline
+        long stepsToBoundary = ((arcStep - updateTime % arcStep) % arcStep) / step;
+        boolean finalize = stepsToBoundary < numUpdates;
+        long finishUpdates = finalize ? stepsToBoundary + 1 : numUpdates;
+        numUpdates -= finishUpdates;
+        int bulkUpdateCount = (int) Math.min(numUpdates / plan.steps, (long) plan.rows);
+        long remainingUpdates = numUpdates % plan.steps;
+        double[] rowValues = null;
+        if (sketches != null) {
+            rowValues = archiveSketches(plan, values, finishUpdates, finalize, bulkUpdateCount, remainingUpdates);
+        }
+        for (int i = 0; i < n; i++) {
+            accumulate(plan, states[i], values[i], finishUpdates);
+            if (finalize) {
+                double value = finalizeStep(plan, states[i]);
+                finalizedRow[i] = rowValues != null ? rowValues[i] : value;
             }
         }
-        // update robin in bulk
-        int bulkUpdateCount = (int) Math.min(numUpdates / steps.get(), (long) rows.get());
-        robin.bulkStore(value, bulkUpdateCount);
+        if (finalize) {
+            storeRow(finalizedRow);
+        }
+        // update robins in bulk
+        if (bulkUpdateCount > 0) {
+            bulkStoreRow(values, bulkUpdateCount);
+        }
         // update remaining steps
-        long remainingUpdates = numUpdates % steps.get();
-        for (long i = 0; i < remainingUpdates; i++) {
-            accumulate(state, value);
+        for (int i = 0; i < n; i++) {
+            accumulate(plan, states[i], values[i], remainingUpdates);
         }
     }
 
-    private void accumulate(ArcState state, double value) throws IOException {
+    // consolidates the same primary value count times in a row
+    private void accumulate(UpdatePlan.ArcPlan plan, ArcState state, double value, long count) throws IOException {
+        if (count == 0) {
+            return;
+        }
         if (Double.isNaN(value)) {
-            state.setNanSteps(state.getNanSteps() + 1);
+            state.setNanSteps(state.getNanSteps() + count);
         }
         else {
-            switch (ConsolFun.valueOf(consolFun.get())) {
-                case MIN:
-                    state.setAccumValue(Util.min(state.getAccumValue(), value));
-                    break;
-                case MAX:
-                    state.setAccumValue(Util.max(state.getAccumValue(), value));
-                    break;
-                case LAST:
-                    state.setAccumValue(value);
-                    break;
-                case AVERAGE:
-                    state.setAccumValue(Util.sum(state.getAccumValue(), value));
-                    break;
-            }
+            state.setAccumValue(plan.accumulate(state.getAccumValue(), value, count));
         }
     }
 
-    private void finalizeStep(ArcState state, Robin robin) throws IOException {
+    private double finalizeStep(UpdatePlan.ArcPlan plan, ArcState state) throws IOException {
         // should store
-        long arcSteps = steps.get();
-        double arcXff = xff.get();
+        long arcSteps = plan.steps;
+        double arcXff = plan.xff;
         long nanSteps = state.getNanSteps();
         //double nanPct = (double) nanSteps / (double) arcSteps;
         double accumValue = state.getAccumValue();
+        double value = Double.NaN;
         if (nanSteps <= arcXff * arcSteps && !Double.isNaN(accumValue)) {
-            if (getConsolFun() == ConsolFun.AVERAGE) {
+            if (plan.average) {
                 accumValue /= (arcSteps - nanSteps);
             }
-            robin.store(accumValue);
-        }
-        else {
-            robin.store(Double.NaN);
+            value = accumValue;
         }
         state.setAccumValue(Double.NaN);
         state.setNanSteps(0);
+        return value;
+    }
+
+    /**
+     * Adds primary values to the sketches of a PERCENTILE archive, following the same steps
+     * as {@link #archive}. Must be called before archive states get updated. Returns the
+     * values to store in robins for the finalized row, if any.
+     */
+    private double[] archiveSketches(UpdatePlan.ArcPlan plan, double[] values, long finishUpdates,
+                                     boolean finalize, int bulkUpdateCount, long remainingUpdates)
+            throws IOException {
+        int n = states.length;
+        int size = PercentileSketch.SIZE;
+        boolean known = false;
+        for (double value : values) {
+            known |= !Double.isNaN(value);
+        }
+        if (!known && !finalize) {
+            // unknown values are only counted by archive states
+            return null;
+        }
+        double[] current = getCurrentSketches(plan.rows);
+        for (int i = 0; i < n; i++) {
+            if (finishUpdates > 0 && !Double.isNaN(values[i])) {
+                PercentileSketch.add(current, i * size, values[i], finishUpdates);
+            }
+        }
+        double[] rowValues = null;
+        if (finalize) {
+            rowValues = sketchRowValues;
+            for (int i = 0; i < n; i++) {
+                int offset = i * size;
+                long nanSteps = states[i].getNanSteps();
+                if (Double.isNaN(values[i])) {
+                    nanSteps += finishUpdates;
+                }
+                if (nanSteps > plan.xff * plan.steps) {
+                    Arrays.fill(current, offset, offset + size, 0);
+                }
+                rowValues[i] = PercentileSketch.getRowValue(current, offset);
+            }
+            storeSketches(plan.rows, current, 1);
+            Arrays.fill(current, 0);
+        }
+        if (bulkUpdateCount > 0) {
+            // rows of unknown values are empty, whatever the X-files factor
+            double[] row = sketchRow;
+            Arrays.fill(row, 0);
+            for (int i = 0; i < n; i++) {
+                if (!Double.isNaN(values[i])) {
+                    PercentileSketch.add(row, i * size, values[i], plan.steps);
+                }
+            }
+            storeSketches(plan.rows, row, bulkUpdateCount);
+        }
+        if (remainingUpdates > 0) {
+            for (int i = 0; i < n; i++) {
+                if (!Double.isNaN(values[i])) {
+                    PercentileSketch.add(current, i * size, values[i], remainingUpdates);
+                }
+            }
+        }
+        storeCurrentSketches(plan.rows, finalize ? null : values);
+        return rowValues;
+    }
+
+    // returns the sketches of the step being consolidated, read once unless the backend forbids caching
+    private double[] getCurrentSketches(int numRows) throws IOException {
+        if (currentSketches == null || !sketches.isCachingAllowed()) {
+            int n = states.length;
+            if (currentSketches == null) {
+                currentSketches = new double[n * PercentileSketch.SIZE];
+                currentStored = new double[n * sketchSize];
+                sketchRow = new double[n * PercentileSketch.SIZE];
+                storedRow = new double[n * sketchSize];
+                sketchRowValues = new double[n];
+            }
+            sketches.getRows(numRows, currentStored, 0, 1);
+            for (int i = 0; i < n; i++) {
+                PercentileSketch.load(currentStored, i * sketchSize, sketchSteps, currentSketches, i * PercentileSketch.SIZE);
+            }
+        }
+        return currentSketches;
+    }
+
+    /**
+     * Writes the stored doubles of the current sketches which changed, from the first to the
+     * last one, for all datasources or, when values are given, for datasources with a known
+     * value only.
+     */
+    private void storeCurrentSketches(int numRows, double[] values) throws IOException {
+        int first = storedRow.length, last = -1;
+        for (int i = 0; i < states.length; i++) {
+            int start = i * sketchSize, end = start + sketchSize;
+            if (values != null && Double.isNaN(values[i])) {
+                System.arraycopy(currentStored, start, storedRow, start, sketchSize);
+                continue;
+            }
+            PercentileSketch.store(currentSketches, i * PercentileSketch.SIZE, storedRow, start, sketchSteps);
+            for (int j = start; j < end; j++) {
+                if (Double.doubleToRawLongBits(storedRow[j]) != Double.doubleToRawLongBits(currentStored[j])) {
+                    first = Math.min(first, j);
+                    last = j;
+                }
+            }
+        }
+        if (last >= first) {
+            // usually the header and a bucket of each sketch
+            sketches.setRow(numRows, first, storedRow, first, last - first + 1);
+            System.arraycopy(storedRow, first, currentStored, first, last - first + 1);
+        }
+    }
+
+    // stores the same row of sketches count times, no more than the number of rows
+    private void storeSketches(int numRows, double[] row, int count) throws IOException {
+        int n = states.length;
+        for (int i = 0; i < n; i++) {
+            PercentileSketch.store(row, i * PercentileSketch.SIZE, storedRow, i * sketchSize, sketchSteps);
+        }
+        int stored = sketchPointer.get();
+        int position = RobinPointer.position(stored);
+        int tailUpdateCount = Math.min(numRows - position, count);
+        sketches.setRows(position, storedRow, tailUpdateCount);
+        if (tailUpdateCount < count) {
+            sketches.setRows(0, storedRow, count - tailUpdateCount);
+        }
+        sketchPointer.set(RobinPointer.advance(stored, count, numRows));
+    }
+
+    private void storeRow(double[] row) throws IOException {
+        if (batchRows == null) {
+            storeRows(row, 1);
+        }
+        else {
+            System.arraycopy(row, 0, batchRows, batchCount * row.length, row.length);
+            batchCount++;
+            if (batchCount * row.length == batchRows.length) {
+                flushBatch();
+            }
+        }
+    }
+
+    /**
+     * Stores <code>count</code> rows, laid out row after row, the oldest one first.
+     * Matrix archives get them written in contiguous blocks.
+     */
+    private void storeRows(double[] rowValues, int count) throws IOException {
+        int n = robins.length;
+        if (isRowAligned()) {
+            // only the last rows survive
+            int numRows = rows.get();
+            int skip = Math.max(0, count - numRows);
+            count -= skip;
+            int stored = pointers[0].get();
+            int position = RobinPointer.position(stored);
+            int tailUpdateCount = Math.min(numRows - position, count);
+            values.setRows(position, rowValues, skip, tailUpdateCount);
+            int headUpdateCount = count - tailUpdateCount;
+            if (headUpdateCount > 0) {
+                values.setRows(0, rowValues, skip + tailUpdateCount, headUpdateCount);
+            }
+            setPointers(RobinPointer.advance(stored, count, numRows));
+        }
+        else if (count == 1) {
+            for (int i = 0; i < n; i++) {
+                robins[i].store(rowValues[i]);
+            }
+        }
+        else {
+            double[] column = new double[count];
+            for (int i = 0; i < n; i++) {
+                for (int r = 0; r < count; r++) {
+                    column[r] = rowValues[r * n + i];
+                }
+                robins[i].store(column, count);
+            }
+        }
+    }
+
+    // stores the same row several times
+    private void bulkStoreRow(double[] row, int bulkCount) throws IOException {
+        flushBatch();
+        if (isRowAligned()) {
+            int numRows = rows.get();
+            int stored = pointers[0].get();
+            int position = RobinPointer.position(stored);
+            int tailUpdateCount = Math.min(numRows - position, bulkCount);
+            values.setRows(position, row, tailUpdateCount);
+            int headUpdateCount = bulkCount - tailUpdateCount;
+            if (headUpdateCount > 0) {
+                values.setRows(0, row, headUpdateCount);
+            }
+            setPointers(RobinPointer.advance(stored, bulkCount, numRows));
+        }
+        else {
+            for (int i = 0; i < robins.length; i++) {
+                robins[i].bulkStore(row[i], bulkCount);
+            }
+        }
+    }
+
+    /**
+     * Checks if whole rows can be written at once: true for matrix archives whose
+     * datasources all point to the same row, as they do when updated together.
+     */
+    private boolean isRowAligned() throws IOException {
+        if (pointers == null) {
+            return false;
+        }
+        int position = pointers[0].get();
+        for (int i = 1; i < pointers.length; i++) {
+            if (pointers[i].get() != position) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setPointers(int stored) throws IOException {
+        for (RrdInt pointer : pointers) {
+            pointer.set(stored);
+        }
+    }
+
+    /**
+     * Starts buffering archived rows: until {@link #finishBatch()} gets called, values
+     * of finalized steps are kept in memory and stored in contiguous runs.
+     */
+    void startBatch() throws IOException {
+        int capacity = Math.min(rows.get(), BATCH_CAPACITY);
+        batchRows = new double[capacity * robins.length];
+        batchCount = 0;
+    }
+
+    /**
+     * Stores all rows buffered since {@link #startBatch()} and stops buffering.
+     */
+    void finishBatch() throws IOException {
+        try {
+            flushBatch();
+        }
+        finally {
+            batchRows = null;
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        if (batchRows != null && batchCount > 0) {
+            storeRows(batchRows, batchCount);
+            batchCount = 0;
+        }
+    }
+
+    void setWriteBack(RrdWriteBack writeBack) throws IOException {
+        for (int i = 0; i < states.length; i++) {
+            states[i].setWriteBack(writeBack);
+            if (pointers != null) {
+                pointers[i].setWriteBack(writeBack);
+            }
+            else {
+                ((RobinArray) robins[i]).setWriteBack(writeBack);
+            }
+        }
+        if (sketches != null) {
+            sketchPointer.setWriteBack(writeBack);
+        }
     }
 
     /**
@@ -281,39 +598,41 @@ public class Archive implements RrdUpdater {
         long startTime = getStartTime();
         long endTime = getEndTime();
         String[] dsToFetch = request.getFilter();
+        int[] dsIndexes;
         if (dsToFetch == null) {
-            dsToFetch = parentDb.getDsNames();
+            dsIndexes = new int[robins.length];
+            for (int i = 0; i < dsIndexes.length; i++) {
+                dsIndexes[i] = i;
+            }
+        }
+        else {
+            dsIndexes = new int[dsToFetch.length];
+            for (int i = 0; i < dsIndexes.length; i++) {
+                dsIndexes[i] = parentDb.getDsIndex(dsToFetch[i]);
+            }
         }
-        int dsCount = dsToFetch.length;
+        int dsCount = dsIndexes.length;
         int ptsCount = (int) ((fetchEnd - fetchStart) / arcStep + 1);
         long[] timestamps = new long[ptsCount];
+        for (int ptIndex = 0; ptIndex < ptsCount; ptIndex++) {
+            timestamps[ptIndex] = fetchStart + ptIndex * arcStep;
+        }
         double[][] values = new double[dsCount][ptsCount];
         long matchStartTime = Math.max(fetchStart, startTime);
         long matchEndTime = Math.min(fetchEnd, endTime);
-        double[][] robinValues = null;
+        int matchStartPt = ptsCount;
+        int matchCount = 0;
         if (matchStartTime <= matchEndTime) {
-            // preload robin values
-            int matchCount = (int) ((matchEndTime - matchStartTime) / arcStep + 1);
+            // read robin values straight into their final place
+            matchCount = (int) ((matchEndTime - matchStartTime) / arcStep + 1);
+            matchStartPt = (int) ((matchStartTime - fetchStart) / arcStep);
             int matchStartIndex = (int) ((matchStartTime - startTime) / arcStep);
-            robinValues = new double[dsCount][];
-            for (int i = 0; i < dsCount; i++) {
-                int dsIndex = parentDb.getDsIndex(dsToFetch[i]);
-                robinValues[i] = robins[dsIndex].getValues(matchStartIndex, matchCount);
-            }
+            readValues(dsIndexes, matchStartIndex, matchCount, values, matchStartPt);
         }
-        for (int ptIndex = 0; ptIndex < ptsCount; ptIndex++) {
-            long time = fetchStart + ptIndex * arcStep;
-            timestamps[ptIndex] = time;
-            for (int i = 0; i < dsCount; i++) {
-                double value = Double.NaN;
-                if (time >= matchStartTime && time <= matchEndTime) {
-                    // inbound time
-                    int robinValueIndex = (int) ((time - matchStartTime) / arcStep);
-                    assert robinValues != null;
-                    value = robinValues[i][robinValueIndex];
-                }
-                values[i][ptIndex] = value;
-            }
+        // out of bounds points are unknown
+        for (double[] dsValues : values) {
+            Arrays.fill(dsValues, 0, matchStartPt, Double.NaN);
+            Arrays.fill(dsValues, matchStartPt + matchCount, ptsCount, Double.NaN);
         }
         FetchData fetchData = new FetchData(this, request);
         fetchData.setTimestamps(timestamps);
@@ -321,6 +640,102 @@ public class Archive implements RrdUpdater {
         return fetchData;
     }
 
+    /**
+     * Reads the sketches of the given datasources for the rows ending at the given timestamps,
+     * one array per datasource with {@link PercentileSketch#SIZE} doubles per row. Rows out of
+     * the archive have empty sketches. PERCENTILE archives only.
+     */
+    double[][] readSketches(String[] dsNames, long[] timestamps) throws IOException {
+        int[] dsIndexes = new int[dsNames.length];
+        for (int i = 0; i < dsIndexes.length; i++) {
+            dsIndexes[i] = parentDb.getDsIndex(dsNames[i]);
+        }
+        int ptsCount = timestamps.length;
+        double[][] dst = new double[dsIndexes.length][ptsCount * PercentileSketch.SIZE];
+        if (ptsCount == 0) {
+            return dst;
+        }
+        long arcStep = getArcStep();
+        long startTime = getStartTime();
+        long matchStartTime = Math.max(timestamps[0], startTime);
+        long matchEndTime = Math.min(timestamps[ptsCount - 1], getEndTime());
+        if (matchStartTime <= matchEndTime) {
+            int matchCount = (int) ((matchEndTime - matchStartTime) / arcStep + 1);
+            int matchStartPt = (int) ((matchStartTime - timestamps[0]) / arcStep);
+            int matchStartIndex = (int) ((matchStartTime - startTime) / arcStep);
+            readSketches(dsIndexes, matchStartIndex, matchCount, dst, matchStartPt);
+        }
+        return dst;
+    }
+
+    /**
+     * Reads the sketches of several datasources, the oldest row first, into
+     * <code>dst[i]</code> starting at row <code>offset</code>. Sketches of rows never
+     * written are left empty.
+     */
+    private void readSketches(int[] dsIndexes, int index, int count, double[][] dst, int offset)
+            throws IOException {
+        int numRows = rows.get();
+        int stored = sketchPointer.get();
+        int unwritten = RobinPointer.unwrittenCount(stored, numRows, index, count);
+        index += unwritten;
+        count -= unwritten;
+        offset += unwritten;
+        int size = PercentileSketch.SIZE;
+        int width = states.length * sketchSize;
+        int blockRows = Math.min(count, SKETCH_ROW_BLOCK);
+        double[] block = new double[blockRows * width];
+        int position = (RobinPointer.position(stored) + index) % numRows;
+        for (int done = 0; done < count; ) {
+            int readRows = Math.min(Math.min(blockRows, count - done), numRows - position);
+            sketches.getRows(position, block, 0, readRows);
+            for (int r = 0; r < readRows; r++) {
+                for (int c = 0; c < dsIndexes.length; c++) {
+                    PercentileSketch.load(block, r * width + dsIndexes[c] * sketchSize, sketchSteps,
+                            dst[c], (offset + done + r) * size);
+                }
+            }
+            done += readRows;
+            position = (position + readRows) % numRows;
+        }
+    }
+
+    /**
+     * Reads archived values of several datasources, the oldest one first, into
+     * <code>dst[i]</code> starting at position <code>offset</code>. Matrix archives
+     * are read row by row in a single sweep.
+     */
+    private void readValues(int[] dsIndexes, int index, int count, double[][] dst, int offset)
+            throws IOException {
+        if (isRowAligned()) {
+            int numRows = rows.get();
+            int stored = pointers[0].get();
+            // slots never written come first
+            int unwritten = RobinPointer.unwrittenCount(stored, numRows, index, count);
+            for (int i = 0; i < dsIndexes.length; i++) {
+                Arrays.fill(dst[i], offset, offset + unwritten, Double.NaN);
+            }
+            index += unwritten;
+            count -= unwritten;
+            offset += unwritten;
+            if (count == 0) {
+                return;
+            }
+            int startIndex = (RobinPointer.position(stored) + index) % numRows;
+            int tailReadCount = Math.min(numRows - startIndex, count);
+            values.get(dsIndexes, startIndex, tailReadCount, dst, offset);
+            if (tailReadCount < count) {
+                values.get(dsIndexes, 0, count - tailReadCount, dst, offset + tailReadCount);
+            }
+        }
+        else {
+            for (int i = 0; i < dsIndexes.length; i++) {
+                double[] robinValues = robins[dsIndexes[i]].getValues(index, count);
+                System.arraycopy(robinValues, 0, dst[i], offset, count);
+            }
+        }
+    }
+
     void appendXml(XmlWriter writer) throws IOException {
         writer.startTag("rra");
         writer.writeTag("cf", consolFun.get());
@@ -334,14 +749,24 @@ public class Archive implements RrdUpdater {
         writer.closeTag(); // cdp_prep
         writer.startTag("database");
         long startTime = getStartTime();
-        for (int i = 0; i < rows.get(); i++) {
-            long time = startTime + i * getArcStep();
-            writer.writeComment(Util.getDate(time) + " / " + time);
-            writer.startTag("row");
-            for (Robin robin : robins) {
-                writer.writeTag("v", robin.getValue(i));
+        long arcStep = getArcStep();
+        int rowCount = rows.get();
+        // read values a block of rows at a time rather than one by one
+        double[][] columns = new double[robins.length][];
+        for (int first = 0; first < rowCount; first += XML_ROW_BLOCK) {
+            int count = Math.min(XML_ROW_BLOCK, rowCount - first);
+            for (int j = 0; j < robins.length; j++) {
+                columns[j] = robins[j].getValues(first, count);
+            }
+            for (int i = 0; i < count; i++) {
+                long time = startTime + (first + i) * arcStep;
+                writer.writeComment(Util.getDate(time) + " / " + time);
+                writer.startTag("row");
+                for (double[] column : columns) {
+                    writer.writeTag("v", column[i]);
+                }
+                writer.closeTag(); // row
             }
-            writer.closeTag(); // row
         }
         writer.closeTag(); // database
         writer.closeTag(); // rra
@@ -373,6 +798,50 @@ public class Archive implements RrdUpdater {
                 robins[i].copyStateTo(arc.robins[j]);
             }
         }
+        if (sketches != null) {
+            copySketchesTo(arc);
+        }
+    }
+
+    // the newest rows of both archives match, like the values of their robins
+    private void copySketchesTo(Archive arc) throws IOException {
+        // both archives have the same steps, so that sketches are copied in their stored form
+        int size = sketchSize;
+        int n = states.length;
+        int[] dsIndexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            dsIndexes[i] = Util.getMatchingDatasourceIndex(parentDb, i, arc.parentDb);
+        }
+        int numRows = rows.get();
+        int otherRows = arc.rows.get();
+        int stored = sketchPointer.get();
+        double[] row = new double[n * size];
+        double[] otherRow = new double[arc.states.length * size];
+        // rewrites the other archive from its oldest row, the sketches of the current step last
+        for (int r = 0; r <= otherRows; r++) {
+            int index = r == otherRows ? numRows : r - otherRows + numRows;
+            Arrays.fill(otherRow, 0);
+            if (index == numRows) {
+                sketches.getRows(numRows, row, 0, 1);
+            }
+            else if (index >= 0 && RobinPointer.unwrittenCount(stored, numRows, index, 1) == 0) {
+                sketches.getRows((RobinPointer.position(stored) + index) % numRows, row, 0, 1);
+            }
+            else {
+                index = -1;
+            }
+            if (index >= 0) {
+                for (int i = 0; i < n; i++) {
+                    if (dsIndexes[i] >= 0) {
+                        System.arraycopy(row, i * size, otherRow, dsIndexes[i] * size, size);
+                    }
+                }
+            }
+            arc.sketches.setRows(r, otherRow, 0, 1);
+        }
+        arc.sketchPointer.set(0);
+        // the other archive reloads its current sketches
+        arc.currentSketches = null;
     }
 
     /**
@@ -386,6 +855,7 @@ public class Archive implements RrdUpdater {
             throw new IllegalArgumentException("Invalid xff supplied (" + xff + "), must be >= 0 and < 1");
         }
         this.xff.set(xff);
+        parentDb.definitionChanged();
     }
 
     /**
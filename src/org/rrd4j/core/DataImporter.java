@@ -17,6 +17,21 @@ abstract class DataImporter {
 
     abstract int getArcCount() throws IOException;
 
+    /**
+     * Returns the layout version of the RRD to create, see {@link Header#getVersion()}.
+     */
+    int getRrdVersion() throws IOException {
+        return 1;
+    }
+
+    /**
+     * Returns the info string of the RRD to create, see {@link Header#getInfo()}, or null
+     * to keep the default signature.
+     */
+    String getInfo() throws IOException {
+        return null;
+    }
+
     // datasource
     abstract String getDsName(int dsIndex) throws IOException;
 
@@ -51,14 +66,30 @@ abstract class DataImporter {
 
     abstract double[] getValues(int arcIndex, int dsIndex) throws IOException;
 
+    /**
+     * Stores archived values of all archives in their robins, indexed by archive then by
+     * datasource. Importers able to stream values override this method.
+     */
+    void importValues(Robin[][] robins) throws IOException {
+        for (int i = 0; i < robins.length; i++) {
+            for (int j = 0; j < robins[i].length; j++) {
+                robins[i][j].update(getValues(i, j));
+            }
+        }
+    }
+
     long getEstimatedSize() throws IOException {
         int dsCount = getDsCount();
         int arcCount = getArcCount();
         int rowCount = 0;
+        long sketchSize = 0;
         for (int i = 0; i < arcCount; i++) {
             rowCount += getRows(i);
+            if (getConsolFun(i) == ConsolFun.PERCENTILE) {
+                sketchSize += PercentileSketch.getStorageSize(dsCount, getSteps(i), getRows(i));
+            }
         }
-        return RrdDef.calculateSize(dsCount, arcCount, rowCount);
+        return RrdDef.calculateSize(dsCount, arcCount, rowCount) + sketchSize;
     }
 
     void release() throws IOException {
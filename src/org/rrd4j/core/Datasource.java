@@ -15,9 +15,6 @@ import java.io.IOException;
  * @author Sasa Markovic
  */
 public class Datasource implements RrdUpdater {
-    private static final double MAX_32_BIT = Math.pow(2, 32);
-    private static final double MAX_64_BIT = Math.pow(2, 64);
-
     private final RrdDb parentDb;
 
     // definition
@@ -156,14 +153,17 @@ public class Datasource implements RrdUpdater {
         return nanSeconds.get();
     }
 
-    final void process(long newTime, double newValue) throws IOException {
-        Header header = parentDb.getHeader();
-        long step = header.getStep();
-        long oldTime = header.getLastUpdateTime();
+    /**
+     * Processes a new value. If the new value completes one or more primary steps, the value
+     * to be archived for them is returned, NaN otherwise.
+     */
+    final double process(UpdatePlan.DsPlan plan, long step, long oldTime, long newTime, double newValue)
+            throws IOException {
         long startTime = Util.normalize(oldTime, step);
         long endTime = startTime + step;
-        double oldValue = lastValue.get();
-        double updateValue = calculateUpdateValue(oldTime, oldValue, newTime, newValue);
+        double updateValue = plan.updateValue(oldTime, lastValue.get(), newTime, newValue);
+        lastValue.set(newValue);
+        double value = Double.NaN;
         if (newTime < endTime) {
             accumulate(oldTime, newTime, updateValue);
         }
@@ -171,13 +171,7 @@ public class Datasource implements RrdUpdater {
             // should store something
             long boundaryTime = Util.normalize(newTime, step);
             accumulate(oldTime, boundaryTime, updateValue);
-            double value = calculateTotal(startTime, boundaryTime);
-
-            // how many updates?
-            long numSteps = (boundaryTime - endTime) / step + 1L;
-
-            // ACTION!
-            parentDb.archive(this, value, numSteps);
+            value = calculateTotal(plan, startTime, boundaryTime);
 
             // cleanup
             nanSeconds.set(0);
@@ -185,55 +179,7 @@ public class Datasource implements RrdUpdater {
 
             accumulate(boundaryTime, newTime, updateValue);
         }
-    }
-
-    private double calculateUpdateValue(long oldTime, double oldValue,
-                                        long newTime, double newValue) throws IOException {
-        double updateValue = Double.NaN;
-        if (newTime - oldTime <= heartbeat.get()) {
-            DsType type = DsType.valueOf(dsType.get());
-
-            if (type == DsType.GAUGE) {
-                updateValue = newValue;
-            }
-            else if (type == DsType.COUNTER) {
-                if (!Double.isNaN(newValue) && !Double.isNaN(oldValue)) {
-                    double diff = newValue - oldValue;
-                    if (diff < 0) {
-                        diff += MAX_32_BIT;
-                    }
-                    if (diff < 0) {
-                        diff += MAX_64_BIT - MAX_32_BIT;
-                    }
-                    if (diff >= 0) {
-                        updateValue = diff / (newTime - oldTime);
-                    }
-                }
-            }
-            else if (type == DsType.ABSOLUTE) {
-                if (!Double.isNaN(newValue)) {
-                    updateValue = newValue / (newTime - oldTime);
-                }
-            }
-            else if (type == DsType.DERIVE) {
-                if (!Double.isNaN(newValue) && !Double.isNaN(oldValue)) {
-                    updateValue = (newValue - oldValue) / (newTime - oldTime);
-                }
-            }
-
-            if (!Double.isNaN(updateValue)) {
-                double minVal = minValue.get();
-                double maxVal = maxValue.get();
-                if (!Double.isNaN(minVal) && updateValue < minVal) {
-                    updateValue = Double.NaN;
-                }
-                if (!Double.isNaN(maxVal) && updateValue > maxVal) {
-                    updateValue = Double.NaN;
-                }
-            }
-        }
-        lastValue.set(newValue);
-        return updateValue;
+        return value;
     }
 
     private void accumulate(long oldTime, long newTime, double updateValue) throws IOException {
@@ -245,21 +191,28 @@ public class Datasource implements RrdUpdater {
         }
     }
 
-    private double calculateTotal(long startTime, long boundaryTime) throws IOException {
+    private double calculateTotal(UpdatePlan.DsPlan plan, long startTime, long boundaryTime) throws IOException {
         double totalValue = Double.NaN;
-        long validSeconds = boundaryTime - startTime - nanSeconds.get();
-        if (nanSeconds.get() <= heartbeat.get() && validSeconds > 0) {
+        long nanSeconds = this.nanSeconds.get();
+        long validSeconds = boundaryTime - startTime - nanSeconds;
+        if (nanSeconds <= plan.heartbeat && validSeconds > 0) {
             totalValue = accumValue.get() / validSeconds;
         }
         // IMPORTANT:
         // if datasource name ends with "!", we'll send zeros instead of NaNs
         // this might be handy from time to time
-        if (Double.isNaN(totalValue) && dsName.get().endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX)) {
+        if (Double.isNaN(totalValue) && plan.forceZeros) {
             totalValue = 0D;
         }
         return totalValue;
     }
 
+    void setWriteBack(RrdWriteBack writeBack) throws IOException {
+        lastValue.setWriteBack(writeBack);
+        nanSeconds.setWriteBack(writeBack);
+        accumValue.setWriteBack(writeBack);
+    }
+
     void appendXml(XmlWriter writer) throws IOException {
         writer.startTag("ds");
         writer.writeTag("name", dsName.get());
@@ -324,6 +277,7 @@ public class Datasource implements RrdUpdater {
             throw new IllegalArgumentException("Invalid heartbeat specified: " + heartbeat);
         }
         this.heartbeat.set(heartbeat);
+        parentDb.definitionChanged();
     }
 
     /**
@@ -341,11 +295,14 @@ public class Datasource implements RrdUpdater {
         }
 
         this.dsName.set(newDsName);
+        parentDb.dsNamesChanged();
+        parentDb.definitionChanged();
     }
 
     public void setDsType(DsType newDsType) throws IOException {
         // set datasource type
         this.dsType.set(newDsType.name());
+        parentDb.definitionChanged();
         // reset datasource status
         lastValue.set(Double.NaN);
         accumValue.set(0.0);
@@ -376,6 +333,7 @@ public class Datasource implements RrdUpdater {
         }
 
         this.minValue.set(minValue);
+        parentDb.definitionChanged();
         if (!Double.isNaN(minValue) && filterArchivedValues) {
             int dsIndex = getDsIndex();
             Archive[] archives = parentDb.getArchives();
@@ -404,6 +362,7 @@ public class Datasource implements RrdUpdater {
         }
 
         this.maxValue.set(maxValue);
+        parentDb.definitionChanged();
         if (!Double.isNaN(maxValue) && filterArchivedValues) {
             int dsIndex = getDsIndex();
             Archive[] archives = parentDb.getArchives();
@@ -433,6 +392,7 @@ public class Datasource implements RrdUpdater {
         }
         this.minValue.set(minValue);
         this.maxValue.set(maxValue);
+        parentDb.definitionChanged();
         if (!(Double.isNaN(minValue) && Double.isNaN(maxValue)) && filterArchivedValues) {
             int dsIndex = getDsIndex();
             Archive[] archives = parentDb.getArchives();
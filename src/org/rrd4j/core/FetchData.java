@@ -39,6 +39,8 @@ public class FetchData {
     private String[] dsNames;
     private long[] timestamps;
     private double[][] values;
+    // sketches of fetched rows, one array per datasource read on first use, PERCENTILE archives only
+    private double[][] sketches;
 
     private Archive matchingArchive;
     private long arcStep;
@@ -377,8 +379,96 @@ public class FetchData {
      * @throws IllegalArgumentException Thrown if invalid source name is supplied
      */
     public double get95Percentile(String dsName) {
-        DataProcessor dataProcessor = createDataProcessor(null);
-        return dataProcessor.get95Percentile(dsName);
+        return getPercentile(dsName, 95);
+    }
+
+    /**
+     * Same as {@link #get95Percentile(String)}, but with a custom percentile boundary.
+     * Data fetched from a {@link ConsolFun#PERCENTILE PERCENTILE} archive gets the percentile
+     * estimated from the primary values of the fetched rows rather than from their archived
+     * values, see {@link #getPercentiles(String, long, long, double...)}.
+     *
+     * @param dsName     Datasource name
+     * @param percentile Boundary percentile, between 0 and 100
+     * @return Percentile of fetched source values
+     * @throws IllegalArgumentException Thrown if invalid source name is supplied
+     */
+    public double getPercentile(String dsName, double percentile) {
+        if (request.getConsolFun() != ConsolFun.PERCENTILE) {
+            DataProcessor dataProcessor = createDataProcessor(null);
+            return dataProcessor.getPercentile(dsName, percentile);
+        }
+        return getPercentiles(dsName, request.getFetchStart(), request.getFetchEnd(), percentile)[0];
+    }
+
+    /**
+     * Estimates percentiles of the primary values consolidated into the rows fetched from a
+     * {@link ConsolFun#PERCENTILE PERCENTILE} archive, between the given timestamps. The
+     * percentile sketches of the rows overlapping the time range are merged, so that an
+     * estimate is within 3% of the exact percentile of the primary values of these rows,
+     * however long the range, unless it is more than a thousand times smaller than the largest
+     * value. Percentiles follow the definition of {@link #get95Percentile(String)}.<p>
+     *
+     * Sketches are read from the RRD the first time percentiles of a datasource are requested,
+     * so that the RRD must not have been closed since the data was fetched.
+     *
+     * @param dsName      Datasource name
+     * @param tStart      Starting timestamp, exclusive
+     * @param tEnd        Ending timestamp, inclusive
+     * @param percentiles Boundary percentiles, between 0 and 100
+     * @return Estimated percentiles, NaN if less than two primary values were known
+     * @throws IllegalArgumentException Thrown if invalid source name is supplied
+     * @throws IllegalStateException    Thrown if data was not fetched from a PERCENTILE archive,
+     *                                  or if sketches are read once the RRD is closed
+     */
+    public double[] getPercentiles(String dsName, long tStart, long tEnd, double... percentiles) {
+        if (request.getConsolFun() != ConsolFun.PERCENTILE) {
+            throw new IllegalStateException("Percentile sketches are only fetched from " +
+                    ConsolFun.PERCENTILE + " archives");
+        }
+        int dsIndex = getDsIndex(dsName);
+        if (dsIndex < 0) {
+            throw new IllegalArgumentException("Datasource [" + dsName + "] not found");
+        }
+        double[] dsSketches;
+        try {
+            dsSketches = getSketches(dsIndex);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        double[] merged = new double[PercentileSketch.SIZE];
+        for (int i = 0; i < timestamps.length; i++) {
+            // same rows as DataProcessor aggregates
+            long left = Math.max(timestamps[i] - arcStep, tStart);
+            long right = Math.min(timestamps[i], tEnd);
+            if (right > left) {
+                PercentileSketch.merge(merged, 0, dsSketches, i * PercentileSketch.SIZE);
+            }
+        }
+        double[] result = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            result[i] = PercentileSketch.getPercentile(merged, 0, percentiles[i]);
+        }
+        return result;
+    }
+
+    private synchronized double[] getSketches(int dsIndex) throws IOException {
+        if (sketches == null) {
+            sketches = new double[dsNames.length][];
+        }
+        if (sketches[dsIndex] == null) {
+            String[] names = {dsNames[dsIndex]};
+            RrdDb rrd = matchingArchive.getParentDb();
+            synchronized (rrd) {
+                if (rrd.isClosed()) {
+                    throw new IllegalStateException("Percentile sketches of " + rrd.getPath() +
+                            " cannot be read once the RRD is closed");
+                }
+                sketches[dsIndex] = matchingArchive.readSketches(names, timestamps)[0];
+            }
+        }
+        return sketches[dsIndex];
     }
 
     /**
@@ -61,7 +61,13 @@ public class Header implements RrdUpdater {
         if (!RRDTOOL_VERSION.equals(version)) {
             throw new IllegalArgumentException("Could not unserialize xml version " + version);
         }
-        signature.set(DEFAULT_SIGNATURE);
+        int rrdVersion = reader.getRrdVersion();
+        if (rrdVersion < 1 || rrdVersion > VERSIONS.length) {
+            throw new IllegalArgumentException("Could not import RRD version " + rrdVersion);
+        }
+        this.version = rrdVersion;
+        String info = reader.getInfo();
+        signature.set(info != null ? SIGNATURE + info : SIGNATURE + ", " + VERSIONS[rrdVersion - 1]);
         step.set(reader.getStep());
         dsCount.set(reader.getDsCount());
         arcCount.set(reader.getArcCount());
@@ -136,6 +142,10 @@ public class Header implements RrdUpdater {
         this.lastUpdateTime.set(lastUpdateTime);
     }
 
+    void setWriteBack(RrdWriteBack writeBack) throws IOException {
+        lastUpdateTime.setWriteBack(writeBack);
+    }
+
     String dump() throws IOException {
         return "== HEADER ==\n" +
                 "signature:" + getSignature() +
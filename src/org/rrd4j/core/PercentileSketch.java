@@ -0,0 +1,295 @@
+package org.rrd4j.core;
+
+import org.rrd4j.ConsolFun;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for the percentile sketches of {@link org.rrd4j.ConsolFun#PERCENTILE PERCENTILE}
+ * archives.<p>
+ *
+ * A sketch is a fixed-size logarithmic histogram of the primary values consolidated into a
+ * row: bucket boundaries grow by a constant factor, so that any value is estimated within
+ * {@link #RELATIVE_ACCURACY} of its actual value. Positive and negative values have their own
+ * {@link #BINS} buckets, ending with the bucket of their largest magnitude; smaller magnitudes
+ * collapse into the first bucket, which keeps estimates accurate down to about a 2000th of the
+ * largest magnitude. Sketches of several rows merge into the sketch of the whole range.<p>
+ *
+ * A sketch is held as {@link #SIZE} doubles: the number of values, the smallest and the
+ * largest value, the number of zeros, then the positive and the negative buckets. All zeros
+ * stand for an empty sketch. A row gets no more distinct values than its number of steps, so
+ * that rows of less than {@link #BINS} steps store their non-empty buckets only, as pairs of
+ * bucket index and count (see {@link #getStoredSize(int)}).
+ */
+final class PercentileSketch {
+    static final double RELATIVE_ACCURACY = 0.03;
+    static final int BINS = 128;
+
+    static final int COUNT = 0, MIN = 1, MAX = 2, ZERO = 3, POSITIVE = 4, NEGATIVE = POSITIVE + BINS;
+    static final int SIZE = NEGATIVE + BINS;
+
+    // percentile stored in the robins of PERCENTILE archives
+    static final double ROW_PERCENTILE = 95;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    // log of the factor turning the upper bound of a bucket into its estimate
+    private static final double LOG_ESTIMATE = Math.log(2 / (1 + GAMMA));
+    // smallest normal double, Double.MIN_NORMAL is not available before Java 6
+    private static final double MIN_NORMAL = 0x1.0p-1022;
+    // makes the key of any normal magnitude positive
+    private static final int KEY_OFFSET = 1 - (int) Math.floor(Math.log(MIN_NORMAL) / LOG_GAMMA);
+
+    private PercentileSketch() {
+    }
+
+    /**
+     * Returns the number of doubles storing the sketch of a row of the given number of steps.
+     */
+    static int getStoredSize(int steps) {
+        return steps < BINS ? POSITIVE + 2 * steps : SIZE;
+    }
+
+    /**
+     * Returns the number of bytes taken by the sketches of an archive: a row pointer, then
+     * one sketch per datasource for each row and for the step being consolidated.
+     *
+     * @throws IllegalArgumentException if the sketches are too large to be stored
+     */
+    static long getStorageSize(int dsCount, int steps, int rows) {
+        long count = (long) (rows + 1) * dsCount * getStoredSize(steps);
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many rows (" + rows + ") for the sketches of " +
+                    dsCount + " datasources in a " + ConsolFun.PERCENTILE + " archive");
+        }
+        return RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_INT] +
+                RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_DOUBLE] * count;
+    }
+
+    /**
+     * Stores the sketch starting at <code>offset</code>, taken from a row of the given number of
+     * steps, as {@link #getStoredSize(int)} doubles starting at <code>storedOffset</code>.
+     */
+    static void store(double[] sketch, int offset, double[] stored, int storedOffset, int steps) {
+        int size = getStoredSize(steps);
+        if (size == SIZE) {
+            System.arraycopy(sketch, offset, stored, storedOffset, SIZE);
+            return;
+        }
+        System.arraycopy(sketch, offset, stored, storedOffset, POSITIVE);
+        int pair = storedOffset + POSITIVE;
+        int end = storedOffset + size;
+        Arrays.fill(stored, pair, end, 0);
+        for (int i = 0; i < 2 * BINS; i++) {
+            double count = sketch[offset + POSITIVE + i];
+            if (count == 0) {
+                continue;
+            }
+            if (pair < end) {
+                stored[pair++] = i;
+                stored[pair++] = count;
+            }
+            else {
+                // rows get no more values than steps, counts are kept anyway
+                stored[end - 1] += count;
+            }
+        }
+    }
+
+    /**
+     * Loads the sketch stored by {@link #store(double[], int, double[], int, int)} into the
+     * {@link #SIZE} doubles starting at <code>offset</code>.
+     */
+    static void load(double[] stored, int storedOffset, int steps, double[] sketch, int offset) {
+        int size = getStoredSize(steps);
+        if (size == SIZE) {
+            System.arraycopy(stored, storedOffset, sketch, offset, SIZE);
+            return;
+        }
+        System.arraycopy(stored, storedOffset, sketch, offset, POSITIVE);
+        Arrays.fill(sketch, offset + POSITIVE, offset + SIZE, 0);
+        for (int pair = storedOffset + POSITIVE; pair < storedOffset + size; pair += 2) {
+            double count = stored[pair + 1];
+            if (count != 0) {
+                sketch[offset + POSITIVE + (int) stored[pair]] += count;
+            }
+        }
+    }
+
+    /**
+     * Adds a known value <code>weight</code> times to the sketch starting at <code>offset</code>.
+     */
+    static void add(double[] sketch, int offset, double value, double weight) {
+        double magnitude = Math.abs(value);
+        if (magnitude < MIN_NORMAL) {
+            sketch[offset + ZERO] += weight;
+        }
+        else if (value > 0) {
+            insert(sketch, offset + POSITIVE, positiveTop(sketch, offset), key(magnitude), weight);
+        }
+        else {
+            insert(sketch, offset + NEGATIVE, negativeTop(sketch, offset), key(magnitude), weight);
+        }
+        if (sketch[offset + COUNT] == 0) {
+            sketch[offset + MIN] = value;
+            sketch[offset + MAX] = value;
+        }
+        else {
+            sketch[offset + MIN] = Math.min(sketch[offset + MIN], value);
+            sketch[offset + MAX] = Math.max(sketch[offset + MAX], value);
+        }
+        sketch[offset + COUNT] += weight;
+    }
+
+    /**
+     * Merges the sketch starting at <code>srcOffset</code> into the sketch starting at
+     * <code>offset</code>.
+     */
+    static void merge(double[] sketch, int offset, double[] src, int srcOffset) {
+        if (src[srcOffset + COUNT] == 0) {
+            return;
+        }
+        if (sketch[offset + COUNT] == 0) {
+            System.arraycopy(src, srcOffset, sketch, offset, SIZE);
+            return;
+        }
+        merge(sketch, offset + POSITIVE, positiveTop(sketch, offset), src, srcOffset + POSITIVE, positiveTop(src, srcOffset));
+        merge(sketch, offset + NEGATIVE, negativeTop(sketch, offset), src, srcOffset + NEGATIVE, negativeTop(src, srcOffset));
+        sketch[offset + ZERO] += src[srcOffset + ZERO];
+        sketch[offset + COUNT] += src[srcOffset + COUNT];
+        sketch[offset + MIN] = Math.min(sketch[offset + MIN], src[srcOffset + MIN]);
+        sketch[offset + MAX] = Math.max(sketch[offset + MAX], src[srcOffset + MAX]);
+    }
+
+    /**
+     * Estimates a percentile the way {@link org.rrd4j.data.DataProcessor#getPercentile(String, double)}
+     * computes it: the highest value left once the top (100 - percentile)% of values are
+     * discarded, NaN for less than two values.
+     */
+    static double getPercentile(double[] sketch, int offset, double percentile) {
+        double count = sketch[offset + COUNT];
+        if (count <= 1) {
+            return Double.NaN;
+        }
+        double rank = count - Math.ceil(count * (100.0 - percentile) / 100.0);
+        return rank > 0 ? getValue(sketch, offset, rank) : Double.NaN;
+    }
+
+    /**
+     * Returns the value stored in the robin for the row of the given sketch: its
+     * {@link #ROW_PERCENTILE}th percentile, the only value of rows with a single value,
+     * NaN for empty rows.
+     */
+    static double getRowValue(double[] sketch, int offset) {
+        double count = sketch[offset + COUNT];
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double rank = count - Math.ceil(count * (100.0 - ROW_PERCENTILE) / 100.0);
+        return getValue(sketch, offset, Math.max(rank, 1));
+    }
+
+    // estimates the value of the given rank, ranks starting with one
+    private static double getValue(double[] sketch, int offset, double rank) {
+        double min = sketch[offset + MIN];
+        double max = sketch[offset + MAX];
+        if (rank >= sketch[offset + COUNT]) {
+            return max;
+        }
+        double seen = 0;
+        // negative values first, the largest magnitude first
+        int top = negativeTop(sketch, offset);
+        if (top > 0) {
+            int store = offset + NEGATIVE;
+            for (int i = BINS - 1; i >= 0; i--) {
+                seen += sketch[store + i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, -estimate(top - BINS + 1 + i)));
+                }
+            }
+        }
+        seen += sketch[offset + ZERO];
+        if (seen >= rank) {
+            return Math.max(min, Math.min(max, 0));
+        }
+        top = positiveTop(sketch, offset);
+        if (top > 0) {
+            int store = offset + POSITIVE;
+            for (int i = 0; i < BINS; i++) {
+                seen += sketch[store + i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, estimate(top - BINS + 1 + i)));
+                }
+            }
+        }
+        return max;
+    }
+
+    // key of the largest positive value, zero without positive values
+    private static int positiveTop(double[] sketch, int offset) {
+        double max = sketch[offset + MAX];
+        return sketch[offset + COUNT] > 0 && max >= MIN_NORMAL ? key(max) : 0;
+    }
+
+    // key of the largest negative magnitude, zero without negative values
+    private static int negativeTop(double[] sketch, int offset) {
+        double min = sketch[offset + MIN];
+        return sketch[offset + COUNT] > 0 && -min >= MIN_NORMAL ? key(-min) : 0;
+    }
+
+    // adds to the store whose last bucket holds the key top, empty stores having a zero top
+    private static void insert(double[] sketch, int store, int top, int key, double weight) {
+        if (key > top) {
+            shift(sketch, store, top, key);
+            top = key;
+        }
+        sketch[store + Math.max(key - top + BINS - 1, 0)] += weight;
+    }
+
+    private static void merge(double[] sketch, int store, int top, double[] src, int srcStore, int srcTop) {
+        if (srcTop == 0) {
+            return;
+        }
+        if (srcTop > top) {
+            shift(sketch, store, top, srcTop);
+            top = srcTop;
+        }
+        int delta = top - srcTop;
+        for (int i = 0; i < BINS; i++) {
+            double count = src[srcStore + i];
+            if (count != 0) {
+                sketch[store + Math.max(i - delta, 0)] += count;
+            }
+        }
+    }
+
+    // moves buckets down once the last bucket of a store moves from key top to key newTop
+    private static void shift(double[] sketch, int store, int top, int newTop) {
+        int shift = newTop - top;
+        if (top == 0 || shift <= 0) {
+            return;
+        }
+        double collapsed = 0;
+        for (int i = 0; i <= Math.min(shift, BINS - 1); i++) {
+            collapsed += sketch[store + i];
+        }
+        if (shift < BINS - 1) {
+            System.arraycopy(sketch, store + shift + 1, sketch, store + 1, BINS - 1 - shift);
+            Arrays.fill(sketch, store + BINS - shift, store + BINS, 0);
+        }
+        else {
+            Arrays.fill(sketch, store + 1, store + BINS, 0);
+        }
+        sketch[store] = collapsed;
+    }
+
+    // keys grow with normal magnitudes, starting with one
+    static int key(double magnitude) {
+        return (int) Math.ceil(Math.log(Math.min(magnitude, Double.MAX_VALUE)) / LOG_GAMMA) + KEY_OFFSET;
+    }
+
+    // magnitude within RELATIVE_ACCURACY of any magnitude of the given key
+    static double estimate(int key) {
+        return Math.exp((key - KEY_OFFSET) * LOG_GAMMA + LOG_ESTIMATE);
+    }
+}
@@ -117,6 +117,16 @@ public interface Robin extends RrdUpdater {
 
     public void bulkStore(double newValue, int bulkCount) throws IOException;
 
+    /**
+     * Stores the first <code>count</code> values of the given array, the oldest one first.
+     * Only the last values are kept if <code>count</code> exceeds the size of the archive.
+     *
+     * @param newValues Values to be stored
+     * @param count Number of values to store
+     * @throws IOException Thrown in case of I/O error
+     */
+    public void store(double[] newValues, int count) throws IOException;
+
     public double[] getValues(int index, int count) throws IOException;
 
 }
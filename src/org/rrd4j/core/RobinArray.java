@@ -1,6 +1,7 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Class to represent archive values for a single datasource. Robin class is the heart of
@@ -15,17 +16,27 @@ import java.io.IOException;
  * @author Sasa Markovic
  */
 public class RobinArray implements Robin {
+    // number of values copied at once to another robin
+    private static final int COPY_BLOCK = 8 * 1024;
+
     private final Archive parentArc;
     private final RrdInt pointer;
     private final RrdDoubleArray values;
     private int rows;
 
     RobinArray(Archive parentArc, int rows, boolean shouldInitialize) throws IOException {
+        this(parentArc, rows, shouldInitialize, false);
+    }
+
+    RobinArray(Archive parentArc, int rows, boolean shouldInitialize, boolean sparse) throws IOException {
         this.parentArc = parentArc;
         this.pointer = new RrdInt(this);
         this.values = new RrdDoubleArray(this, rows);
         this.rows = rows;
-        if (shouldInitialize) {
+        if (shouldInitialize && sparse) {
+            pointer.set(RobinPointer.SPARSE_START);
+        }
+        else if (shouldInitialize) {
             pointer.set(0);
             values.set(0, Double.NaN, rows);
         }
@@ -40,29 +51,65 @@ public class RobinArray implements Robin {
 
     // stores single value
     public void store(double newValue) throws IOException {
-        int position = pointer.get();
-        values.set(position, newValue);
-        pointer.set((position + 1) % rows);
+        int stored = pointer.get();
+        values.set(RobinPointer.position(stored), newValue);
+        pointer.set(RobinPointer.advance(stored, 1, rows));
     }
 
     // stores the same value several times
     public void bulkStore(double newValue, int bulkCount) throws IOException {
         assert bulkCount <= rows: "Invalid number of bulk updates: " + bulkCount + " rows=" + rows;
 
-        int position = pointer.get();
+        int stored = pointer.get();
+        int position = RobinPointer.position(stored);
 
         // update tail
         int tailUpdateCount = Math.min(rows - position, bulkCount);
 
         values.set(position, newValue, tailUpdateCount);
-        pointer.set((position + tailUpdateCount) % rows);
 
         // do we need to update from the start?
         int headUpdateCount = bulkCount - tailUpdateCount;
         if (headUpdateCount > 0) {
             values.set(0, newValue, headUpdateCount);
-            pointer.set(headUpdateCount);
         }
+        pointer.set(RobinPointer.advance(stored, bulkCount, rows));
+    }
+
+    // stores the first count values, the oldest one first
+    public void store(double[] newValues, int count) throws IOException {
+        assert count <= newValues.length: "Invalid number of values: " + count + " length=" + newValues.length;
+
+        // only the last rows values survive
+        int skip = Math.max(0, count - rows);
+        count -= skip;
+        int stored = pointer.get();
+        int position = RobinPointer.position(stored);
+
+        // update tail
+        int tailUpdateCount = Math.min(rows - position, count);
+        values.writeDouble(position, newValues, skip, tailUpdateCount);
+
+        // do we need to update from the start?
+        int headUpdateCount = count - tailUpdateCount;
+        if (headUpdateCount > 0) {
+            values.writeDouble(0, newValues, skip + tailUpdateCount, headUpdateCount);
+        }
+        pointer.set(RobinPointer.advance(stored, count, rows));
+    }
+
+    // writes unknown values to slots never written, before writing out of order
+    private void fillUnwritten() throws IOException {
+        int stored = pointer.get();
+        if (stored < 0) {
+            int position = RobinPointer.position(stored);
+            values.set(position, Double.NaN, rows - position);
+            pointer.set(position);
+        }
+    }
+
+    void setWriteBack(RrdWriteBack writeBack) throws IOException {
+        pointer.setWriteBack(writeBack);
     }
 
     public void update(double[] newValues) throws IOException {
@@ -95,7 +142,7 @@ public class RobinArray implements Robin {
     }
 
     public String dump() throws IOException {
-        StringBuilder buffer = new StringBuilder("Robin " + pointer.get() + "/" + rows + ": ");
+        StringBuilder buffer = new StringBuilder("Robin " + RobinPointer.position(pointer.get()) + "/" + rows + ": ");
         double[] values = getValues();
         for (double value : values) {
             buffer.append(Util.formatDouble(value, true)).append(" ");
@@ -108,7 +155,11 @@ public class RobinArray implements Robin {
      * @see org.rrd4j.core.Robin#getValue(int)
      */
     public double getValue(int index) throws IOException {
-        int arrayIndex = (pointer.get() + index) % rows;
+        int stored = pointer.get();
+        if (RobinPointer.unwrittenCount(stored, rows, index, 1) > 0) {
+            return Double.NaN;
+        }
+        int arrayIndex = (RobinPointer.position(stored) + index) % rows;
         return values.get(arrayIndex);
     }
 
@@ -116,6 +167,7 @@ public class RobinArray implements Robin {
      * @see org.rrd4j.core.Robin#setValue(int, double)
      */
     public void setValue(int index, double value) throws IOException {
+        fillUnwritten();
         int arrayIndex = (pointer.get() + index) % rows;
         values.set(arrayIndex, value);
     }
@@ -123,24 +175,27 @@ public class RobinArray implements Robin {
     public double[] getValues(int index, int count) throws IOException {
         assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
 
-        int startIndex = (pointer.get() + index) % rows;
+        int stored = pointer.get();
+        int unwritten = RobinPointer.unwrittenCount(stored, rows, index, count);
+        if (unwritten > 0) {
+            double[] result = new double[count];
+            Arrays.fill(result, 0, unwritten, Double.NaN);
+            if (unwritten < count) {
+                // written values of a sparse robin start at the first slot
+                values.get(0, result, unwritten, count - unwritten);
+            }
+            return result;
+        }
+        int startIndex = (RobinPointer.position(stored) + index) % rows;
         int tailReadCount = Math.min(rows - startIndex, count);
-        double[] tailValues = values.get(startIndex, tailReadCount);
         if (tailReadCount < count) {
-            int headReadCount = count - tailReadCount;
-            double[] headValues = values.get(0, headReadCount);
-            double[] values = new double[count];
-            int k = 0;
-            for (double tailValue : tailValues) {
-                values[k++] = tailValue;
-            }
-            for (double headValue : headValues) {
-                values[k++] = headValue;
-            }
-            return values;
+            double[] result = new double[count];
+            values.get(startIndex, result, 0, tailReadCount);
+            values.get(0, result, tailReadCount, count - tailReadCount);
+            return result;
         }
         else {
-            return tailValues;
+            return values.get(startIndex, tailReadCount);
         }
     }
 
@@ -168,9 +223,14 @@ public class RobinArray implements Robin {
         }
         Robin robin = (Robin) other;
         int rowsDiff = rows - robin.getSize();
-        for (int i = 0; i < robin.getSize(); i++) {
-            int j = i + rowsDiff;
-            robin.store(j >= 0 ? getValue(j) : Double.NaN);
+        // rows this robin does not have come first
+        if (rowsDiff < 0) {
+            robin.bulkStore(Double.NaN, -rowsDiff);
+        }
+        int first = Math.max(0, rowsDiff);
+        for (int copied = first; copied < rows; copied += COPY_BLOCK) {
+            int count = Math.min(COPY_BLOCK, rows - copied);
+            robin.store(getValues(copied, count), count);
         }
     }
 
@@ -178,6 +238,7 @@ public class RobinArray implements Robin {
      * @see org.rrd4j.core.Robin#filterValues(double, double)
      */
     public void filterValues(double minValue, double maxValue) throws IOException {
+        fillUnwritten();
         for (int i = 0; i < rows; i++) {
             double value = values.get(i);
             if (!Double.isNaN(minValue) && !Double.isNaN(value) && minValue > value) {
@@ -1,6 +1,7 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Class to represent archive values for a single datasource. Robin class is the heart of
@@ -15,6 +16,9 @@ import java.io.IOException;
  * @author Fabrice Bacchella
  */
 public class RobinMatrix implements Robin {
+    // number of values copied at once to another robin
+    private static final int COPY_BLOCK = 8 * 1024;
+
     private final Archive parentArc;
     private final RrdInt pointer;
     private final RrdDoubleMatrix values;
@@ -41,28 +45,60 @@ public class RobinMatrix implements Robin {
 
     // stores single value
     public void store(double newValue) throws IOException {
-        int position = pointer.get();
-        values.set(column, position, newValue);
-        pointer.set((position + 1) % rows);
+        int stored = pointer.get();
+        values.set(column, RobinPointer.position(stored), newValue);
+        pointer.set(RobinPointer.advance(stored, 1, rows));
     }
 
     // stores the same value several times
     public void bulkStore(double newValue, int bulkCount) throws IOException {
         assert bulkCount <= rows: "Invalid number of bulk updates: " + bulkCount + " rows=" + rows;
 
-        int position = pointer.get();
+        int stored = pointer.get();
+        int position = RobinPointer.position(stored);
 
         // update tail
         int tailUpdateCount = Math.min(rows - position, bulkCount);
 
         values.set(column, position, newValue, tailUpdateCount);
-        pointer.set((position + tailUpdateCount) % rows);
 
         // do we need to update from the start?
         int headUpdateCount = bulkCount - tailUpdateCount;
         if (headUpdateCount > 0) {
             values.set(column, 0, newValue, headUpdateCount);
-            pointer.set(headUpdateCount);
+        }
+        pointer.set(RobinPointer.advance(stored, bulkCount, rows));
+    }
+
+    // stores the first count values, the oldest one first
+    public void store(double[] newValues, int count) throws IOException {
+        assert count <= newValues.length: "Invalid number of values: " + count + " length=" + newValues.length;
+
+        // only the last rows values survive
+        int skip = Math.max(0, count - rows);
+        count -= skip;
+        int stored = pointer.get();
+        int position = RobinPointer.position(stored);
+
+        // update tail
+        int tailUpdateCount = Math.min(rows - position, count);
+        values.set(column, position, newValues, skip, tailUpdateCount);
+
+        // do we need to update from the start?
+        int headUpdateCount = count - tailUpdateCount;
+        if (headUpdateCount > 0) {
+            values.set(column, 0, newValues, skip + tailUpdateCount, headUpdateCount);
+        }
+        pointer.set(RobinPointer.advance(stored, count, rows));
+    }
+
+    // writes unknown values to slots never written, before writing out of order
+    private void fillUnwritten() throws IOException {
+        int stored = pointer.get();
+        if (stored < 0) {
+            int position = RobinPointer.position(stored);
+            values.set(column, position, Double.NaN, rows - position);
+            pointer.set(position);
         }
     }
 
@@ -104,7 +140,7 @@ public class RobinMatrix implements Robin {
     }
 
     public String dump() throws IOException {
-        StringBuilder buffer = new StringBuilder("Robin " + pointer.get() + "/" + rows + ": ");
+        StringBuilder buffer = new StringBuilder("Robin " + RobinPointer.position(pointer.get()) + "/" + rows + ": ");
         double[] values = getValues();
         for (double value : values) {
             buffer.append(Util.formatDouble(value, true)).append(" ");
@@ -121,7 +157,11 @@ public class RobinMatrix implements Robin {
      * @throws IOException Thrown in case of I/O specific error.
      */
     public double getValue(int index) throws IOException {
-        int arrayIndex = (pointer.get() + index) % rows;
+        int stored = pointer.get();
+        if (RobinPointer.unwrittenCount(stored, rows, index, 1) > 0) {
+            return Double.NaN;
+        }
+        int arrayIndex = (RobinPointer.position(stored) + index) % rows;
         return values.get(column, arrayIndex);
     }
 
@@ -133,6 +173,7 @@ public class RobinMatrix implements Robin {
      * @throws IOException Thrown in case of I/O specific error.
      */
     public void setValue(int index, double value) throws IOException {
+        fillUnwritten();
         int arrayIndex = (pointer.get() + index) % rows;
         values.set(column, arrayIndex, value);
     }
@@ -140,24 +181,27 @@ public class RobinMatrix implements Robin {
     public double[] getValues(int index, int count) throws IOException {
         assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
 
-        int startIndex = (pointer.get() + index) % rows;
+        int stored = pointer.get();
+        int unwritten = RobinPointer.unwrittenCount(stored, rows, index, count);
+        if (unwritten > 0) {
+            double[] result = new double[count];
+            Arrays.fill(result, 0, unwritten, Double.NaN);
+            if (unwritten < count) {
+                // written values of a sparse robin start at the first slot
+                values.get(column, 0, result, unwritten, count - unwritten);
+            }
+            return result;
+        }
+        int startIndex = (RobinPointer.position(stored) + index) % rows;
         int tailReadCount = Math.min(rows - startIndex, count);
-        double[] tailValues = values.get(column, startIndex, tailReadCount);
         if (tailReadCount < count) {
-            int headReadCount = count - tailReadCount;
-            double[] headValues = values.get(column, 0, headReadCount);
-            double[] values = new double[count];
-            int k = 0;
-            for (double tailValue : tailValues) {
-                values[k++] = tailValue;
-            }
-            for (double headValue : headValues) {
-                values[k++] = headValue;
-            }
-            return values;
+            double[] result = new double[count];
+            values.get(column, startIndex, result, 0, tailReadCount);
+            values.get(column, 0, result, tailReadCount, count - tailReadCount);
+            return result;
         }
         else {
-            return tailValues;
+            return values.get(column, startIndex, tailReadCount);
         }
     }
 
@@ -192,9 +236,14 @@ public class RobinMatrix implements Robin {
         }
         Robin robin = (Robin) other;
         int rowsDiff = rows - robin.getSize();
-        for (int i = 0; i < robin.getSize(); i++) {
-            int j = i + rowsDiff;
-            robin.store(j >= 0 ? getValue(j) : Double.NaN);
+        // rows this robin does not have come first
+        if (rowsDiff < 0) {
+            robin.bulkStore(Double.NaN, -rowsDiff);
+        }
+        int first = Math.max(0, rowsDiff);
+        for (int copied = first; copied < rows; copied += COPY_BLOCK) {
+            int count = Math.min(COPY_BLOCK, rows - copied);
+            robin.store(getValues(copied, count), count);
         }
     }
 
@@ -208,6 +257,7 @@ public class RobinMatrix implements Robin {
      * @throws IOException Thrown in case of I/O error
      */
     public void filterValues(double minValue, double maxValue) throws IOException {
+        fillUnwritten();
         for (int i = 0; i < rows; i++) {
             double value = values.get(column, i);
             if (!Double.isNaN(minValue) && !Double.isNaN(value) && minValue > value) {
@@ -0,0 +1,48 @@
+package org.rrd4j.core;
+
+/**
+ * Helpers for robin pointers of sparse RRDs (see {@link RrdDef#setSparse(boolean)}).<p>
+ *
+ * Robins of sparse RRDs are not filled with unknown values when created. Until the pointer
+ * wraps around for the first time, it is stored as <code>~position</code>: slots from
+ * <code>position</code> to the end of the robin were never written and hold unknown values.
+ * Values are always stored at the pointer, so the robin is fully written once it wraps, and
+ * the pointer is stored as is from then on.
+ */
+final class RobinPointer {
+    /**
+     * Stored pointer of a sparse robin which was never written.
+     */
+    static final int SPARSE_START = ~0;
+
+    private RobinPointer() {
+    }
+
+    /**
+     * Returns the position of the pointer within the robin.
+     */
+    static int position(int stored) {
+        return stored >= 0 ? stored : ~stored;
+    }
+
+    /**
+     * Returns the stored pointer once <code>count</code> values, no more than the number of
+     * rows, got stored at the pointer.
+     */
+    static int advance(int stored, int count, int rows) {
+        int position = position(stored);
+        int next = (position + count) % rows;
+        return stored < 0 && position + count < rows ? ~next : next;
+    }
+
+    /**
+     * Returns how many of the <code>count</code> values starting at index <code>index</code>
+     * (the oldest value has zero index) were never written.
+     */
+    static int unwrittenCount(int stored, int rows, int index, int count) {
+        if (stored >= 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(count, rows - ~stored - index));
+    }
+}
@@ -1,6 +1,8 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 
 /**
  * Base implementation class for all backend classes. Each Round Robin Database object
@@ -43,6 +45,12 @@ import java.io.IOException;
  * </ul>
  */
 public abstract class RrdBackend {
+    /**
+     * Maximum number of doubles transferred at once by bulk reads and writes, so that the
+     * memory they need does not depend on the size of archives.
+     */
+    private static final int CHUNK_DOUBLES = 8 * 1024;
+
     private static boolean instanceCreated = false;
     private final String path;
 
@@ -125,6 +133,18 @@ public abstract class RrdBackend {
         return true;
     }
 
+    /**
+     * Called when a RRD primitive gets allocated, before it is read or written, so that
+     * backends may store arrays of archived values apart from header and state values.
+     * Does nothing by default.
+     *
+     * @param offset    Storage offset of the primitive
+     * @param byteCount Number of bytes of the primitive
+     * @param array     True for arrays of archived values
+     */
+    void allocated(long offset, long byteCount, boolean array) {
+    }
+
     /**
      * Reads all RRD bytes from the underlying storage
      *
@@ -137,169 +157,194 @@ public abstract class RrdBackend {
         return b;
     }
 
+    /**
+     * Writes the remaining bytes of the given buffer to the underlying storage starting
+     * from the given storage offset. Bytes are consumed from the current buffer position
+     * up to its limit.<p>
+     *
+     * The default implementation copies buffer contents to a byte array and delegates to
+     * {@link #write(long, byte[])}. Backends with direct access to their storage should
+     * override this method to avoid the intermediate copy.
+     *
+     * @param offset Storage offset.
+     * @param src    Buffer holding bytes that should be copied to the underlying storage
+     * @throws IOException Thrown in case of I/O error
+     */
+    protected void write(long offset, ByteBuffer src) throws IOException {
+        write(offset, getBytes(src));
+    }
+
+    /**
+     * Reads bytes from the underlying storage starting from the given storage offset,
+     * filling the given buffer from its current position up to its limit.<p>
+     *
+     * The default implementation reads a byte array through {@link #read(long, byte[])}
+     * and copies it to the buffer. Backends with direct access to their storage should
+     * override this method to avoid the intermediate copy.
+     *
+     * @param offset Storage offset.
+     * @param dst    Buffer which receives bytes from the underlying storage
+     * @throws IOException Thrown in case of I/O error
+     */
+    protected void read(long offset, ByteBuffer dst) throws IOException {
+        if (dst.hasArray() && dst.arrayOffset() == 0 && dst.position() == 0 &&
+                dst.remaining() == dst.array().length) {
+            read(offset, dst.array());
+            dst.position(dst.limit());
+        }
+        else {
+            byte[] b = new byte[dst.remaining()];
+            read(offset, b);
+            dst.put(b);
+        }
+    }
+
     final void writeInt(long offset, int value) throws IOException {
-        write(offset, getIntBytes(value));
+        ByteBuffer bb = buffers.get().intBuffer;
+        bb.clear();
+        bb.putInt(value).flip();
+        write(offset, bb);
     }
 
     final void writeLong(long offset, long value) throws IOException {
-        write(offset, getLongBytes(value));
+        ByteBuffer bb = buffers.get().longBuffer;
+        bb.clear();
+        bb.putLong(value).flip();
+        write(offset, bb);
     }
 
     final void writeDouble(long offset, double value) throws IOException {
-        write(offset, getDoubleBytes(value));
+        ByteBuffer bb = buffers.get().longBuffer;
+        bb.clear();
+        bb.putDouble(value).flip();
+        write(offset, bb);
     }
 
     final void writeDouble(long offset, double value, int count) throws IOException {
-        byte[] b = getDoubleBytes(value);
-        byte[] image = new byte[8 * count];
-        for (int i = 0, k = 0; i < count; i++) {
-            image[k++] = b[0];
-            image[k++] = b[1];
-            image[k++] = b[2];
-            image[k++] = b[3];
-            image[k++] = b[4];
-            image[k++] = b[5];
-            image[k++] = b[6];
-            image[k++] = b[7];
+        // the same chunk is written repeatedly
+        PrimitiveBuffers b = buffers.get();
+        int chunkCount = Math.min(count, CHUNK_DOUBLES);
+        b.chunkView.clear();
+        for (int i = 0; i < chunkCount; i++) {
+            b.chunkView.put(value);
+        }
+        for (int written = 0; written < count; written += chunkCount) {
+            b.chunk.clear();
+            b.chunk.limit(8 * Math.min(chunkCount, count - written));
+            write(offset + 8L * written, b.chunk);
         }
-        write(offset, image);
-        image = null;
     }
 
     final void writeDouble(long offset, double[] values) throws IOException {
-        int count = values.length;
-        byte[] image = new byte[8 * count];
-        for (int i = 0, k = 0; i < count; i++) {
-            byte[] b = getDoubleBytes(values[i]);
-            image[k++] = b[0];
-            image[k++] = b[1];
-            image[k++] = b[2];
-            image[k++] = b[3];
-            image[k++] = b[4];
-            image[k++] = b[5];
-            image[k++] = b[6];
-            image[k++] = b[7];
+        writeDouble(offset, values, 0, values.length);
+    }
+
+    final void writeDouble(long offset, double[] values, int from, int count) throws IOException {
+        PrimitiveBuffers b = buffers.get();
+        for (int written = 0; written < count; written += CHUNK_DOUBLES) {
+            int chunkCount = Math.min(CHUNK_DOUBLES, count - written);
+            b.chunkView.clear();
+            b.chunkView.put(values, from + written, chunkCount);
+            b.chunk.clear();
+            b.chunk.limit(8 * chunkCount);
+            write(offset + 8L * written, b.chunk);
         }
-        write(offset, image);
-        image = null;
     }
 
     final void writeString(long offset, String value) throws IOException {
         value = value.trim();
-        byte[] b = new byte[RrdPrimitive.STRING_LENGTH * 2];
-        for (int i = 0, k = 0; i < RrdPrimitive.STRING_LENGTH; i++) {
-            char c = (i < value.length()) ? value.charAt(i) : ' ';
-            byte[] cb = getCharBytes(c);
-            b[k++] = cb[0];
-            b[k++] = cb[1];
+        ByteBuffer bb = buffers.get().stringBuffer;
+        bb.clear();
+        for (int i = 0; i < RrdPrimitive.STRING_LENGTH; i++) {
+            bb.putChar((i < value.length()) ? value.charAt(i) : ' ');
         }
-        write(offset, b);
+        bb.flip();
+        write(offset, bb);
     }
 
     final int readInt(long offset) throws IOException {
-        byte[] b = new byte[4];
-        read(offset, b);
-        return getInt(b);
+        ByteBuffer bb = buffers.get().intBuffer;
+        bb.clear();
+        read(offset, bb);
+        return bb.getInt(0);
     }
 
     final long readLong(long offset) throws IOException {
-        byte[] b = new byte[8];
-        read(offset, b);
-        return getLong(b);
+        ByteBuffer bb = buffers.get().longBuffer;
+        bb.clear();
+        read(offset, bb);
+        return bb.getLong(0);
     }
 
     final double readDouble(long offset) throws IOException {
-        byte[] b = new byte[8];
-        read(offset, b);
-        return getDouble(b);
+        ByteBuffer bb = buffers.get().longBuffer;
+        bb.clear();
+        read(offset, bb);
+        return bb.getDouble(0);
     }
 
     final double[] readDouble(long offset, int count) throws IOException {
-        int byteCount = 8 * count;
-        byte[] image = new byte[byteCount];
-        read(offset, image);
         double[] values = new double[count];
-        for (int i = 0, k = -1; i < count; i++) {
-            byte[] b = new byte[]{
-                    image[++k], image[++k], image[++k], image[++k],
-                    image[++k], image[++k], image[++k], image[++k]
-            };
-            values[i] = getDouble(b);
-        }
-        image = null;
+        readDouble(offset, values, 0, count);
         return values;
     }
 
+    final void readDouble(long offset, double[] values, int from, int count) throws IOException {
+        PrimitiveBuffers b = buffers.get();
+        for (int done = 0; done < count; done += CHUNK_DOUBLES) {
+            int chunkCount = Math.min(CHUNK_DOUBLES, count - done);
+            b.chunk.clear();
+            b.chunk.limit(8 * chunkCount);
+            read(offset + 8L * done, b.chunk);
+            b.chunkView.clear();
+            b.chunkView.get(values, from + done, chunkCount);
+        }
+    }
+
     final String readString(long offset) throws IOException {
-        byte[] b = new byte[RrdPrimitive.STRING_LENGTH * 2];
+        ByteBuffer bb = buffers.get().stringBuffer;
+        bb.clear();
+        read(offset, bb);
         char[] c = new char[RrdPrimitive.STRING_LENGTH];
-        read(offset, b);
-        for (int i = 0, k = -1; i < RrdPrimitive.STRING_LENGTH; i++) {
-            byte[] cb = new byte[]{b[++k], b[++k]};
-            c[i] = getChar(cb);
+        for (int i = 0; i < RrdPrimitive.STRING_LENGTH; i++) {
+            c[i] = bb.getChar(2 * i);
         }
         return new String(c).trim();
     }
 
     // static helper methods
 
-    private static byte[] getIntBytes(int value) {
-        byte[] b = new byte[4];
-        b[0] = (byte) ((value >>> 24) & 0xFF);
-        b[1] = (byte) ((value >>> 16) & 0xFF);
-        b[2] = (byte) ((value >>> 8) & 0xFF);
-        b[3] = (byte) ((value >>> 0) & 0xFF);
-        return b;
-    }
-
-    private static byte[] getLongBytes(long value) {
-        byte[] b = new byte[8];
-        b[0] = (byte) ((int) (value >>> 56) & 0xFF);
-        b[1] = (byte) ((int) (value >>> 48) & 0xFF);
-        b[2] = (byte) ((int) (value >>> 40) & 0xFF);
-        b[3] = (byte) ((int) (value >>> 32) & 0xFF);
-        b[4] = (byte) ((int) (value >>> 24) & 0xFF);
-        b[5] = (byte) ((int) (value >>> 16) & 0xFF);
-        b[6] = (byte) ((int) (value >>> 8) & 0xFF);
-        b[7] = (byte) ((int) (value >>> 0) & 0xFF);
-        return b;
-    }
-
-    private static byte[] getCharBytes(char value) {
-        byte[] b = new byte[2];
-        b[0] = (byte) ((value >>> 8) & 0xFF);
-        b[1] = (byte) ((value >>> 0) & 0xFF);
+    private static byte[] getBytes(ByteBuffer src) {
+        if (src.hasArray() && src.arrayOffset() == 0 && src.position() == 0 &&
+                src.remaining() == src.array().length) {
+            src.position(src.limit());
+            return src.array();
+        }
+        byte[] b = new byte[src.remaining()];
+        src.get(b);
         return b;
     }
 
-    private static byte[] getDoubleBytes(double value) {
-        byte[] bytes = getLongBytes(Double.doubleToLongBits(value));
-        return bytes;
-    }
-
-    private static int getInt(byte[] b) {
-        assert b.length == 4 : "Invalid number of bytes for integer conversion";
-        return ((b[0] << 24) & 0xFF000000) + ((b[1] << 16) & 0x00FF0000) +
-                ((b[2] << 8) & 0x0000FF00) + ((b[3] << 0) & 0x000000FF);
-    }
-
-    private static long getLong(byte[] b) {
-        assert b.length == 8 : "Invalid number of bytes for long conversion";
-        int high = getInt(new byte[]{b[0], b[1], b[2], b[3]});
-        int low = getInt(new byte[]{b[4], b[5], b[6], b[7]});
-        long value = ((long) (high) << 32) + (low & 0xFFFFFFFFL);
-        return value;
-    }
-
-    private static char getChar(byte[] b) {
-        assert b.length == 2 : "Invalid number of bytes for char conversion";
-        return (char) (((b[0] << 8) & 0x0000FF00) + ((b[1] << 0) & 0x000000FF));
+    /**
+     * Per-thread scratch buffers used to encode and decode RRD primitives. Each buffer
+     * wraps an array of the exact primitive size, so that the default
+     * {@link #read(long, ByteBuffer)} and {@link #write(long, ByteBuffer)} implementations
+     * can hand the backing array over to byte array based backends without copying.
+     * Bulk transfers of doubles go through a single chunk, whatever their length.
+     */
+    private static final class PrimitiveBuffers {
+        final ByteBuffer intBuffer = ByteBuffer.allocate(RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_INT]);
+        final ByteBuffer longBuffer = ByteBuffer.allocate(RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_LONG]);
+        final ByteBuffer stringBuffer = ByteBuffer.allocate(RrdPrimitive.RRD_PRIM_SIZES[RrdPrimitive.RRD_STRING]);
+        final ByteBuffer chunk = ByteBuffer.allocate(8 * CHUNK_DOUBLES);
+        final DoubleBuffer chunkView = chunk.asDoubleBuffer();
     }
 
-    private static double getDouble(byte[] b) {
-        assert b.length == 8 : "Invalid number of bytes for double conversion";
-		return Double.longBitsToDouble(getLong(b));
-	}
+    private static final ThreadLocal<PrimitiveBuffers> buffers = new ThreadLocal<PrimitiveBuffers>() {
+        protected PrimitiveBuffers initialValue() {
+            return new PrimitiveBuffers();
+        }
+    };
 
 	static boolean isInstanceCreated() {
 		return instanceCreated;
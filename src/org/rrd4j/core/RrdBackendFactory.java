@@ -12,7 +12,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * Factory classes are used to create concrete {@link RrdBackend} implementations.
  * Each factory creates unlimited number of specific backend objects.
  *
- * Rrd4j supports four different backend types (backend factories) out of the box:<p>
+ * Rrd4j supports five different backend types (backend factories) out of the box:<p>
  * <ul>
  * <li>{@link RrdFileBackend}: objects of this class are created from the
  * {@link RrdFileBackendFactory} class. This was the default backend used in all
@@ -35,6 +35,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * <li>{@link RrdMemoryBackend}: objects of this class are created from the
  * {@link RrdMemoryBackendFactory} class. This backend stores all data in memory. Once
  * JVM exits, all data gets lost. The backend is extremely fast and memory hungry.
+ *
+ * <li>{@link RrdCompressedBackend}: objects of this class are created from the
+ * {@link RrdCompressedBackendFactory} class. This backend stores RRD data in compressed
+ * files on the disk, which take a fraction of the space of regular RRD files. Changes are
+ * kept in memory and written back periodically.
  * </ul>
  *
  * Each backend factory is identifed by its {@link #getFactoryName() name}. Constructors
@@ -56,6 +61,8 @@ public abstract class RrdBackendFactory {
         registerFactory(nioFactory);
         RrdSafeFileBackendFactory safeFactory = new RrdSafeFileBackendFactory();
         registerFactory(safeFactory);
+        RrdCompressedBackendFactory compressedFactory = new RrdCompressedBackendFactory();
+        registerFactory(compressedFactory);
         selectDefaultFactory();
     }
 
@@ -78,6 +85,8 @@ public abstract class RrdBackendFactory {
      *             java.nio.* package. RRD data is stored in files on the disk
      *             <li><b>MEMORY</b>: Factory which creates memory-oriented backends.
      *             RRD data is stored in memory, it gets lost as soon as JVM exits.
+     *             <li><b>COMPRESSED</b>: Factory which creates backends storing RRD data
+     *             in compressed files on the disk
      *             </ul>
      * @return Backend factory for the given factory name
      */
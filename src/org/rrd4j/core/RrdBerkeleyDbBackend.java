@@ -5,6 +5,7 @@ import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Database;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -33,6 +34,11 @@ public class RrdBerkeleyDbBackend extends RrdByteArrayBackend {
         dirty = true;
     }
 
+    protected synchronized void write(long offset, ByteBuffer src) throws IOException {
+        super.write(offset, src);
+        dirty = true;
+    }
+
     public void close() throws IOException {
         if (dirty) {
             DatabaseEntry theKey = new DatabaseEntry(getPath().getBytes("UTF-8"));
@@ -1,6 +1,7 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Abstract byte array based backend.
@@ -27,6 +28,22 @@ public abstract class RrdByteArrayBackend extends RrdBackend {
         }
     }
 
+    protected synchronized void write(long offset, ByteBuffer src) throws IOException {
+        int pos = (int) offset;
+        src.get(buffer, pos, src.remaining());
+    }
+
+    protected synchronized void read(long offset, ByteBuffer dst) throws IOException {
+        int pos = (int) offset;
+        int length = dst.remaining();
+        if (pos + length <= buffer.length) {
+            dst.put(buffer, pos, length);
+        }
+        else {
+            throw new IOException("Not enough bytes available in memory; RRD " + getPath());
+        }
+    }
+
     /**
      * Returns the number of RRD bytes held in memory.
      *
@@ -0,0 +1,547 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backend which stores RRD files compressed on the disk. Arrays of archived values, which are
+ * mostly long runs of unknown values or slowly changing ones, are split in fixed-size blocks,
+ * each one compressed on its own (see {@link XorBlockCodec}). The header and the states of
+ * datasources and archives are stored uncompressed, and updated in place. An index gives the
+ * place of every block in the file, so that any robin slot is read by decoding a single block.<p>
+ *
+ * Only a few decoded blocks are kept in memory. Changes are written back to the disk periodically
+ * (see {@link RrdCompressedBackendFactory#setSyncPeriod(int)}) and when the backend is closed.
+ * Changed blocks are written to free space of the file, then a new index, and the file header
+ * gets switched to the new index last, so that a failed write back leaves the previous archived
+ * values in place. Uncompressed states are updated after that: should the write back stop in
+ * between, updates since the previous write back can be replayed.
+ */
+public class RrdCompressedBackend extends RrdFileBackend {
+    static final int MAGIC = 0x52524443; // "RRDC"
+    static final int FORMAT_VERSION = 2;
+    // magic, format version, RRD length, block size, block count, index offset and size
+    static final int HEADER_LENGTH = 40;
+    // length, uncompressed flag, file offset and stored size of a block
+    private static final int INDEX_ENTRY_LENGTH = 20;
+    // file space is allocated by multiples of this size
+    private static final int SLOT_SIZE = 8;
+    // decoded blocks of archived values kept in memory, besides changed ones
+    private static final int CACHED_BLOCKS = 16;
+
+    private final int blockSize;
+    private long length;
+    // blocks by RRD offset, covering the RRD up to laidOut
+    private final List<Block> blocks = new ArrayList<Block>();
+    private long laidOut;
+    // unchanged decoded blocks, the least recently used first
+    private final LinkedHashMap<Block, Block> cache = new LinkedHashMap<Block, Block>(CACHED_BLOCKS, 0.75f, true);
+    // index referenced by the file header
+    private long indexOffset = -1;
+    private int indexSize;
+    // free space of the file by offset, and the end of used space
+    private final TreeMap<Long, Long> free = new TreeMap<Long, Long>();
+    private long fileEnd = slot(HEADER_LENGTH);
+    private boolean dirty = false;
+
+    private final Runnable syncRunnable = new Runnable() {
+        public void run() {
+            try {
+                sync();
+            }
+            catch (IOException e) {
+                // retried on next period and on close
+            }
+        }
+    };
+
+    private ScheduledFuture<?> syncRunnableHandle = null;
+
+    /**
+     * Creates RrdCompressedBackend object for the given file path.
+     *
+     * @param path         Path to a file
+     * @param readOnly     True, if file should be open in a read-only mode. False otherwise
+     * @param syncExecutor Executor used to write changes back to the disk periodically
+     * @param syncPeriod   See {@link RrdCompressedBackendFactory#setSyncPeriod(int)} for explanation
+     * @param blockSize    Size of uncompressed blocks for new files, see
+     *                     {@link RrdCompressedBackendFactory#setBlockSize(int)}
+     * @throws IOException Thrown in case of I/O error
+     */
+    protected RrdCompressedBackend(String path, boolean readOnly, ScheduledExecutorService syncExecutor,
+                                   int syncPeriod, int blockSize) throws IOException {
+        super(path, readOnly);
+        try {
+            if (file.length() == 0) {
+                this.blockSize = blockSize;
+            }
+            else {
+                this.blockSize = readIndex();
+            }
+            if (!readOnly) {
+                syncRunnableHandle = syncExecutor.scheduleWithFixedDelay(syncRunnable, syncPeriod, syncPeriod, TimeUnit.SECONDS);
+            }
+        }
+        catch (IOException e) {
+            super.close();
+            throw e;
+        }
+    }
+
+    // reads the file header and the index, returns the block size
+    private int readIndex() throws IOException {
+        long fileLength = file.length();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        if (fileLength < HEADER_LENGTH) {
+            throw new IOException("File " + getPath() + " is not a compressed RRD file");
+        }
+        file.seek(0);
+        file.readFully(header.array());
+        if (header.getInt() != MAGIC) {
+            throw new IOException("File " + getPath() + " is not a compressed RRD file");
+        }
+        int formatVersion = header.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported compressed RRD format version " + formatVersion + " in file " + getPath());
+        }
+        length = header.getLong();
+        int storedBlockSize = header.getInt();
+        int blockCount = header.getInt();
+        indexOffset = header.getLong();
+        indexSize = header.getInt();
+        if (storedBlockSize <= 0 || length < 0 || blockCount < 0 || indexSize != INDEX_ENTRY_LENGTH * blockCount ||
+                indexOffset < HEADER_LENGTH || indexOffset + indexSize > fileLength) {
+            throw new IOException("Corrupted compressed RRD file " + getPath());
+        }
+        ByteBuffer index = ByteBuffer.allocate(indexSize);
+        file.seek(indexOffset);
+        file.readFully(index.array());
+        // used space of the file by offset
+        TreeMap<Long, Long> used = new TreeMap<Long, Long>();
+        used.put(indexOffset, slot(indexSize));
+        for (int i = 0; i < blockCount; i++) {
+            Block block = new Block(laidOut, index.getInt(), index.getInt() != 0);
+            block.offset = block.committedOffset = index.getLong();
+            block.size = block.committedSize = index.getInt();
+            if (block.length <= 0 || block.length > length - laidOut || block.size < 0 ||
+                    (block.offset >= 0 ? block.offset < HEADER_LENGTH || block.offset + block.size > fileLength :
+                            block.offset != -1 || block.raw)) {
+                throw new IOException("Corrupted compressed RRD file " + getPath());
+            }
+            if (block.offset >= 0) {
+                used.put(block.offset, slot(block.size));
+            }
+            blocks.add(block);
+            laidOut += block.length;
+        }
+        if (laidOut != length) {
+            throw new IOException("Corrupted compressed RRD file " + getPath());
+        }
+        // space between used slots, such as blocks written after the last index, is free
+        for (Map.Entry<Long, Long> slot : used.entrySet()) {
+            if (slot.getKey() > fileEnd) {
+                free.put(fileEnd, slot.getKey() - fileEnd);
+            }
+            fileEnd = Math.max(fileEnd, slot.getKey() + slot.getValue());
+        }
+        return storedBlockSize;
+    }
+
+    /**
+     * Blocks follow allocations of RRD primitives: header and state values get uncompressed
+     * blocks, arrays of archived values get their own compressed blocks. Allocations are only
+     * followed while a new RRD is created.
+     */
+    synchronized void allocated(long offset, long byteCount, boolean array) {
+        if (offset == laidOut && offset + byteCount <= length) {
+            layOut(byteCount, !array);
+        }
+    }
+
+    private void layOut(long byteCount, boolean raw) {
+        Block last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (raw && last != null && last.raw && last.offset < 0 && last.length + byteCount <= blockSize) {
+            // consecutive state values share a block
+            Block merged = new Block(last.start, last.length + (int) byteCount, true);
+            merged.data = new byte[merged.length];
+            System.arraycopy(last.data, 0, merged.data, 0, last.length);
+            merged.dirty = true;
+            blocks.set(blocks.size() - 1, merged);
+            laidOut += byteCount;
+            dirty = true;
+            return;
+        }
+        for (long done = 0; done < byteCount; ) {
+            Block block = new Block(laidOut, (int) Math.min(blockSize, byteCount - done), raw);
+            if (raw) {
+                block.data = new byte[block.length];
+                block.dirty = true;
+            }
+            blocks.add(block);
+            laidOut += block.length;
+            done += block.length;
+        }
+        dirty = true;
+    }
+
+    // returns the block holding the given RRD offset
+    private Block getBlock(long offset) {
+        if (offset >= laidOut) {
+            // not allocated through RRD primitives
+            layOut(length - laidOut, false);
+        }
+        int low = 0, high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blocks.get(middle).start <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return blocks.get(low);
+    }
+
+    // returns the decoded bytes of a block
+    private byte[] getData(Block block) throws IOException {
+        if (block.raw) {
+            if (block.data == null) {
+                block.data = new byte[block.length];
+                file.seek(block.offset);
+                file.readFully(block.data);
+            }
+            return block.data;
+        }
+        if (block.data != null) {
+            if (!block.dirty) {
+                cache.get(block);
+            }
+            return block.data;
+        }
+        byte[] data = new byte[block.length];
+        if (block.offset >= 0) {
+            byte[] encoded = new byte[block.size];
+            file.seek(block.offset);
+            file.readFully(encoded);
+            try {
+                XorBlockCodec.decode(encoded, data, data.length);
+            }
+            catch (RuntimeException e) {
+                IOException ioe = new IOException("Corrupted block at offset " + block.start +
+                        " in compressed RRD file " + getPath());
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+        block.data = data;
+        cache.put(block, block);
+        trimCache();
+        return data;
+    }
+
+    // forgets the least recently used decoded blocks, changed blocks being kept until written back
+    private void trimCache() {
+        Iterator<Block> eldest = cache.keySet().iterator();
+        while (cache.size() > CACHED_BLOCKS) {
+            eldest.next().data = null;
+            eldest.remove();
+        }
+    }
+
+    // writes a block where the index on the disk does not point
+    private void store(Block block) throws IOException {
+        byte[] stored = block.raw ? block.data : XorBlockCodec.encode(block.data, block.length);
+        long offset = allocate(stored.length, Long.MAX_VALUE);
+        if (block.offset >= 0 && block.offset != block.committedOffset) {
+            // left by a failed write back
+            release(block.offset, block.size);
+        }
+        file.seek(offset);
+        file.write(stored);
+        block.offset = offset;
+        block.size = stored.length;
+        block.dirty = false;
+    }
+
+    // moves a stored compressed block to free space before its current place, if any
+    private void relocate(Block block) throws IOException {
+        long offset = allocate(block.size, block.offset);
+        if (offset < 0) {
+            return;
+        }
+        byte[] stored = new byte[block.size];
+        file.seek(block.offset);
+        file.readFully(stored);
+        file.seek(offset);
+        file.write(stored);
+        if (block.offset != block.committedOffset) {
+            release(block.offset, block.size);
+        }
+        block.offset = offset;
+    }
+
+    private static long slot(long size) {
+        return (size + SLOT_SIZE - 1) / SLOT_SIZE * SLOT_SIZE;
+    }
+
+    // first fit in free space before the given offset, or at the end of the file if unlimited
+    private long allocate(int size, long before) {
+        long needed = slot(size);
+        for (Map.Entry<Long, Long> space : free.entrySet()) {
+            long offset = space.getKey(), available = space.getValue();
+            if (offset + needed > before) {
+                return -1;
+            }
+            if (available >= needed) {
+                free.remove(offset);
+                if (available > needed) {
+                    free.put(offset + needed, available - needed);
+                }
+                return offset;
+            }
+        }
+        if (before != Long.MAX_VALUE) {
+            return -1;
+        }
+        long offset = fileEnd;
+        fileEnd += needed;
+        return offset;
+    }
+
+    private void release(long offset, int size) {
+        long released = slot(size);
+        Long next = free.remove(offset + released);
+        if (next != null) {
+            released += next;
+        }
+        SortedMap<Long, Long> before = free.headMap(offset);
+        if (!before.isEmpty() && before.lastKey() + free.get(before.lastKey()) == offset) {
+            offset = before.lastKey();
+            released += free.get(offset);
+        }
+        free.put(offset, released);
+    }
+
+    private void checkRange(long offset, int count) throws IOException {
+        if (offset < 0 || offset + count > length) {
+            throw new IOException("Not enough bytes available in file " + getPath());
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException("File " + getPath() + " is open in read-only mode");
+        }
+    }
+
+    protected synchronized void write(long offset, byte[] b) throws IOException {
+        write(offset, ByteBuffer.wrap(b));
+    }
+
+    protected synchronized void read(long offset, byte[] b) throws IOException {
+        read(offset, ByteBuffer.wrap(b));
+    }
+
+    protected synchronized void write(long offset, ByteBuffer src) throws IOException {
+        checkWritable();
+        checkRange(offset, src.remaining());
+        while (src.hasRemaining()) {
+            Block block = getBlock(offset);
+            byte[] data = getData(block);
+            int pos = (int) (offset - block.start);
+            int count = Math.min(block.length - pos, src.remaining());
+            src.get(data, pos, count);
+            if (!block.raw && !block.dirty) {
+                cache.remove(block);
+            }
+            block.dirty = true;
+            dirty = true;
+            offset += count;
+        }
+    }
+
+    protected synchronized void read(long offset, ByteBuffer dst) throws IOException {
+        checkRange(offset, dst.remaining());
+        while (dst.hasRemaining()) {
+            Block block = getBlock(offset);
+            byte[] data = getData(block);
+            int pos = (int) (offset - block.start);
+            int count = Math.min(block.length - pos, dst.remaining());
+            dst.put(data, pos, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Returns the uncompressed RRD length.
+     *
+     * @return RRD length in bytes
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the uncompressed RRD length. This method is called only once, immediately
+     * after a new RRD file gets created.
+     *
+     * @param length Length of the RRD
+     * @throws IOException Thrown in case of I/O error.
+     */
+    protected synchronized void setLength(long length) throws IOException {
+        checkWritable();
+        if (laidOut > 0 && length != this.length) {
+            throw new IOException("Length of compressed RRD file " + getPath() + " cannot be changed");
+        }
+        this.length = length;
+        dirty = true;
+    }
+
+    /**
+     * Returns the number of bytes the RRD takes on the disk.
+     *
+     * @return Compressed length in bytes
+     * @throws IOException Thrown in case of I/O error
+     */
+    public long getCompressedLength() throws IOException {
+        return file.length();
+    }
+
+    /**
+     * Writes changes kept in memory back to the disk.
+     *
+     * @throws IOException Thrown in case of I/O error
+     */
+    protected synchronized void sync() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        if (laidOut < length) {
+            layOut(length - laidOut, false);
+        }
+        // new and changed compressed blocks, where the index on the disk does not point
+        long used = slot(HEADER_LENGTH) + slot(INDEX_ENTRY_LENGTH * blocks.size());
+        for (Block block : blocks) {
+            if (block.raw ? block.offset < 0 : block.dirty) {
+                store(block);
+                if (!block.raw) {
+                    cache.put(block, block);
+                }
+            }
+            used += block.offset >= 0 ? slot(block.size) : 0;
+        }
+        trimCache();
+        if (fileEnd > used + used / 2) {
+            // blocks rewritten since the file was opened leave holes: blocks past the used size move
+            for (Block block : blocks) {
+                if (!block.raw && block.offset >= used) {
+                    relocate(block);
+                }
+            }
+        }
+        ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_LENGTH * blocks.size());
+        for (Block block : blocks) {
+            index.putInt(block.length);
+            index.putInt(block.raw ? 1 : 0);
+            index.putLong(block.offset);
+            index.putInt(block.size);
+        }
+        long newIndexOffset = allocate(index.capacity(), Long.MAX_VALUE);
+        file.seek(newIndexOffset);
+        file.write(index.array());
+        file.getFD().sync();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(length);
+        header.putInt(blockSize);
+        header.putInt(blocks.size());
+        header.putLong(newIndexOffset);
+        header.putInt(index.capacity());
+        file.seek(0);
+        file.write(header.array());
+        // states last, in place
+        for (Block block : blocks) {
+            if (block.raw && block.dirty) {
+                file.seek(block.offset);
+                file.write(block.data);
+                block.dirty = false;
+            }
+        }
+        file.getFD().sync();
+        // space of replaced blocks and index is free once the new index is used
+        for (Block block : blocks) {
+            if (block.offset != block.committedOffset) {
+                if (block.committedOffset >= 0) {
+                    release(block.committedOffset, block.committedSize);
+                }
+                block.committedOffset = block.offset;
+                block.committedSize = block.size;
+            }
+        }
+        if (indexOffset >= 0) {
+            release(indexOffset, indexSize);
+        }
+        indexOffset = newIndexOffset;
+        indexSize = index.capacity();
+        if (!free.isEmpty() && free.lastKey() + free.get(free.lastKey()) >= fileEnd) {
+            fileEnd = free.lastKey();
+            free.remove(fileEnd);
+        }
+        if (file.length() > fileEnd) {
+            file.setLength(fileEnd);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Writes pending changes to the disk and closes the underlying file.
+     *
+     * @throws IOException Thrown in case of I/O error
+     */
+    public void close() throws IOException {
+        try {
+            if (!readOnly) {
+                syncRunnableHandle.cancel(false);
+                sync();
+            }
+        }
+        finally {
+            super.close();
+        }
+    }
+
+    // a range of RRD bytes, stored as a whole
+    private static final class Block {
+        final long start;
+        final int length;
+        // stored uncompressed, at a place which does not change
+        final boolean raw;
+        // stored bytes in the file, no offset for blocks of zeros never written
+        long offset = -1;
+        int size;
+        // stored bytes used by the index on the disk
+        long committedOffset = -1;
+        int committedSize;
+        // decoded bytes, always kept for uncompressed blocks once read
+        byte[] data;
+        boolean dirty;
+
+        Block(long start, int length, boolean raw) {
+            this.start = start;
+            this.length = length;
+            this.raw = raw;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Factory class which creates actual {@link RrdCompressedBackend} objects. RRD files created
+ * with this factory take a fraction of the space of regular RRD files on the disk, but they
+ * can only be read with this factory.
+ */
+public class RrdCompressedBackendFactory extends RrdFileBackendFactory {
+    /**
+     * Factory name, "COMPRESSED".
+     */
+    public static final String NAME = "COMPRESSED";
+
+    /**
+     * Period in seconds between consecutive write backs of in-memory changes to the disk,
+     * 300 seconds (5 minutes) by default. Default value can be changed via
+     * {@link #setSyncPeriod(int)} method.
+     */
+    public static final int DEFAULT_SYNC_PERIOD = 300; // seconds
+
+    private static int syncPeriod = DEFAULT_SYNC_PERIOD;
+
+    /**
+     * Size in bytes of uncompressed blocks, 4KB. Default value can be changed via
+     * {@link #setBlockSize(int)} method.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private static ScheduledExecutorService syncExecutor = Executors.newScheduledThreadPool(
+            RrdNioBackendFactory.DEFAULT_SYNC_CORE_POOL_SIZE,
+            new RrdNioBackendFactory.DaemonThreadFactory("RRD4J Compressed Sync"));
+
+    /**
+     * Returns time between two consecutive write backs. If not changed via
+     * {@link #setSyncPeriod(int)} method call, defaults to {@link #DEFAULT_SYNC_PERIOD}.
+     *
+     * @return Time in seconds between consecutive write backs.
+     */
+    public static int getSyncPeriod() {
+        return syncPeriod;
+    }
+
+    /**
+     * Sets time between consecutive write backs of in-memory changes to the disk.
+     *
+     * @param syncPeriod Time in seconds between consecutive write backs.
+     */
+    public static void setSyncPeriod(int syncPeriod) {
+        RrdCompressedBackendFactory.syncPeriod = syncPeriod;
+    }
+
+    /**
+     * Returns the size of uncompressed blocks. If not changed via {@link #setBlockSize(int)}
+     * method call, defaults to {@link #DEFAULT_BLOCK_SIZE}.
+     *
+     * @return Block size in bytes.
+     */
+    public static int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the size of uncompressed blocks for RRD files created afterwards. Larger blocks
+     * compress better, smaller blocks make random accesses cheaper.
+     *
+     * @param blockSize Block size in bytes, must be a positive multiple of 8.
+     */
+    public static void setBlockSize(int blockSize) {
+        if (blockSize <= 0 || blockSize % 8 != 0) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        RrdCompressedBackendFactory.blockSize = blockSize;
+    }
+
+    /**
+     * Creates RrdCompressedBackend object for the given file path.
+     *
+     * @param path     File path
+     * @param readOnly True, if the file should be accessed in read/only mode.
+     *                 False otherwise.
+     * @return RrdCompressedBackend object which handles all I/O operations for the given file path
+     * @throws IOException Thrown in case of I/O error.
+     */
+    protected RrdBackend open(String path, boolean readOnly) throws IOException {
+        return new RrdCompressedBackend(path, readOnly, syncExecutor, syncPeriod, blockSize);
+    }
+
+    /**
+     * Returns the name of this factory.
+     *
+     * @return Factory name (equals to string "COMPRESSED")
+     */
+    public String getFactoryName() {
+        return NAME;
+    }
+}
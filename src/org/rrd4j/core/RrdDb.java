@@ -3,7 +3,12 @@ package org.rrd4j.core;
 import org.rrd4j.ConsolFun;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Main class used to create and manipulate round robin databases (RRDs). Use this class to perform
@@ -49,6 +54,10 @@ public class RrdDb implements RrdUpdater {
      * prefix to identify external RRDTool file source used in various RrdDb constructors
      */
     public static final String PREFIX_RRDTool = "rrdtool:/";
+    /**
+     * prefix to identify external snapshot file source used in various RrdDb constructors
+     */
+    public static final String PREFIX_SNAPSHOT = "snapshot:/";
 
     // static final String RRDTOOL = "rrdtool";
     static final int XML_BUFFER_CAPACITY = 100000; // bytes
@@ -58,10 +67,18 @@ public class RrdDb implements RrdUpdater {
 
     private final Header header;
     private final Datasource[] datasources;
+    // datasource name to index lookup, built on first use
+    private volatile Map<String, Integer> dsIndexes;
+    // values of completed primary steps, reused across updates
+    private double[] archiveValues;
+    private UpdatePlan updatePlan;
     private final Archive[] archives;
 
     private boolean closed = false;
 
+    private RrdWriteBack writeBack;
+    private ScheduledFuture<?> flushHandle;
+
     /**
      * <p>Constructor used to create new RRD object from the definition. This RRD object will be backed
      * with a storage (backend) of the default type. Initially, storage type defaults to "NIO"
@@ -142,9 +159,10 @@ public class RrdDb implements RrdUpdater {
         }
 
         String path = rrdDef.getPath();
+        long size = rrdDef.getEstimatedSize();
         backend = factory.open(path, false);
         try {
-            backend.setLength(rrdDef.getEstimatedSize());
+            backend.setLength(size);
             // create header
             header = new Header(this, rrdDef);
             // create datasources
@@ -157,7 +175,7 @@ public class RrdDb implements RrdUpdater {
             ArcDef[] arcDefs = rrdDef.getArcDefs();
             archives = new Archive[arcDefs.length];
             for (int i = 0; i < arcDefs.length; i++) {
-                archives[i] = new Archive(this, arcDefs[i]);
+                archives[i] = new Archive(this, arcDefs[i], rrdDef.isSparse());
             }
         }
         catch (IOException e) {
@@ -301,12 +319,19 @@ public class RrdDb implements RrdUpdater {
      * RrdDb rrd = new RrdDb("copy.rrd", "rrdtool:/original.rrd");
      * </pre>
      * <p/>
+     * <p>Snapshots created with {@link #exportSnapshot(String) exportSnapshot()} are imported
+     * with the <code>snapshot:/</code> prefix:</p>
+     * <p/>
+     * <pre>
+     * RrdDb rrd = new RrdDb("copy.rrd", "snapshot:/original.snap");
+     * </pre>
+     * <p/>
      * <p>Note that the prefix <code>xml:/</code> or <code>rrdtool:/</code> is necessary to distinguish
      * between XML and RRDTool's binary sources. If no prefix is supplied, XML format is assumed</p>
      *
      * @param rrdPath      Path to a RRD file which will be created
      * @param externalPath Path to an external file which should be imported, with an optional
-     *                     <code>xml:/</code> or <code>rrdtool:/</code> prefix.
+     *                     <code>xml:/</code>, <code>rrdtool:/</code> or <code>snapshot:/</code> prefix.
      * @throws IOException Thrown in case of I/O error
      */
     public RrdDb(String rrdPath, String externalPath) throws IOException {
@@ -355,12 +380,19 @@ public class RrdDb implements RrdUpdater {
      * RrdDb rrd = new RrdDb("copy.rrd", "rrdtool:/original.rrd");
      * </pre>
      * <p/>
+     * <p>Snapshots created with {@link #exportSnapshot(String) exportSnapshot()} are imported
+     * with the <code>snapshot:/</code> prefix:</p>
+     * <p/>
+     * <pre>
+     * RrdDb rrd = new RrdDb("copy.rrd", "snapshot:/original.snap");
+     * </pre>
+     * <p/>
      * <p>Note that the prefix <code>xml:/</code> or <code>rrdtool:/</code> is necessary to distinguish
      * between XML and RRDTool's binary sources. If no prefix is supplied, XML format is assumed</p>
      *
      * @param rrdPath      Path to RRD which will be created
      * @param externalPath Path to an external file which should be imported, with an optional
-     *                     <code>xml:/</code> or <code>rrdtool:/</code> prefix.
+     *                     <code>xml:/</code>, <code>rrdtool:/</code> or <code>snapshot:/</code> prefix.
      * @param factory      Backend factory which will be used to create storage (backend) for this RRD.
      * @throws IOException Thrown in case of I/O error
      * @see RrdBackendFactory
@@ -371,6 +403,9 @@ public class RrdDb implements RrdUpdater {
             String rrdToolPath = externalPath.substring(PREFIX_RRDTool.length());
             reader = new RrdToolReader(rrdToolPath);
         }
+        else if (externalPath.startsWith(PREFIX_SNAPSHOT)) {
+            reader = new SnapshotReader(externalPath.substring(PREFIX_SNAPSHOT.length()));
+        }
         else if (externalPath.startsWith(PREFIX_XML)) {
             externalPath = externalPath.substring(PREFIX_XML.length());
             reader = new XmlReader(externalPath);
@@ -393,15 +428,22 @@ public class RrdDb implements RrdUpdater {
             for (int i = 0; i < archives.length; i++) {
                 archives[i] = new Archive(this, reader, i);
             }
-            reader.release();
-
-            // XMLReader is a rather huge DOM tree, release memory ASAP
-            reader = null;
+            // restore archived values, all archives at once
+            Robin[][] robins = new Robin[archives.length][datasources.length];
+            for (int i = 0; i < archives.length; i++) {
+                for (int j = 0; j < datasources.length; j++) {
+                    robins[i][j] = archives[i].getRobin(j);
+                }
+            }
+            reader.importValues(robins);
         }
         catch (IOException e) {
             backend.close();
             throw e;
         }
+        finally {
+            reader.release();
+        }
     }
 
     /**
@@ -412,7 +454,134 @@ public class RrdDb implements RrdUpdater {
     public synchronized void close() throws IOException {
         if (!closed) {
             closed = true;
-            backend.close();
+            try {
+                disableWriteBack();
+            }
+            finally {
+                backend.close();
+            }
+        }
+    }
+
+    /**
+     * <p>Enables write-back mode. In this mode, values which change on each update (last update
+     * time, datasource and archive states, archive pointers) are kept in memory and written to
+     * the backend only when {@link #flush()} gets called, every <code>flushPeriod</code> seconds
+     * and when the RRD gets closed. Archived values are still written immediately, so they
+     * always reach the backend before the pointers which cover them.</p>
+     * <p/>
+     * <p>This greatly reduces the number of backend writes per update. The price is durability:
+     * if the JVM dies, the RRD is found as it was at the last flush and updates stored
+     * since then must be replayed. Until they are, the rows just after the archive pointers,
+     * which are the oldest rows of the archives, may hold values archived after the last
+     * flush. Replaying the updates writes the same rows again.</p>
+     * <p/>
+     * <p>The periodic flush does not keep the RRD reachable: an RRD dropped without being
+     * closed loses the values not flushed yet.</p>
+     * <p/>
+     * <p>Write-back mode is not available for backends which do not allow caching,
+     * such as {@link RrdSafeFileBackend}.</p>
+     *
+     * @param flushPeriod Time in seconds between automatic flushes, zero to flush only
+     *                    on {@link #flush()} and {@link #close()}.
+     * @throws IOException Thrown in case of I/O error.
+     * @throws IllegalStateException Thrown if the backend does not allow caching.
+     */
+    public synchronized void enableWriteBack(int flushPeriod) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("RRD already closed");
+        }
+        if (!backend.isCachingAllowed()) {
+            throw new IllegalStateException("Backend of " + getPath() + " does not allow caching, " +
+                    "write-back mode not available");
+        }
+        if (flushPeriod < 0) {
+            throw new IllegalArgumentException("Invalid flush period: " + flushPeriod);
+        }
+        disableWriteBack();
+        writeBack = new RrdWriteBack();
+        header.setWriteBack(writeBack);
+        for (Datasource datasource : datasources) {
+            datasource.setWriteBack(writeBack);
+        }
+        for (Archive archive : archives) {
+            archive.setWriteBack(writeBack);
+        }
+        if (flushPeriod > 0) {
+            FlushTask task = new FlushTask(this);
+            flushHandle = RrdWriteBack.flushExecutor.scheduleWithFixedDelay(task, flushPeriod, flushPeriod, TimeUnit.SECONDS);
+            task.handle = flushHandle;
+        }
+    }
+
+    // flushes an RRD periodically, until the RRD is no longer reachable
+    private static class FlushTask implements Runnable {
+        private final WeakReference<RrdDb> rrdDb;
+        private volatile ScheduledFuture<?> handle;
+
+        FlushTask(RrdDb rrdDb) {
+            this.rrdDb = new WeakReference<RrdDb>(rrdDb);
+        }
+
+        public void run() {
+            RrdDb db = rrdDb.get();
+            if (db == null) {
+                if (handle != null) {
+                    handle.cancel(false);
+                }
+                return;
+            }
+            try {
+                db.flush();
+            }
+            catch (IOException e) {
+                // values stay in memory, next flush will retry
+            }
+        }
+    }
+
+    /**
+     * Writes all pending values and leaves write-back mode. Does nothing if write-back mode
+     * is not enabled.
+     *
+     * @throws IOException Thrown in case of I/O error.
+     */
+    public synchronized void disableWriteBack() throws IOException {
+        if (writeBack != null) {
+            if (flushHandle != null) {
+                flushHandle.cancel(false);
+                flushHandle = null;
+            }
+            writeBack.flush();
+            header.setWriteBack(null);
+            for (Datasource datasource : datasources) {
+                datasource.setWriteBack(null);
+            }
+            for (Archive archive : archives) {
+                archive.setWriteBack(null);
+            }
+            writeBack = null;
+        }
+    }
+
+    /**
+     * Checks if write-back mode is enabled. See {@link #enableWriteBack(int)}.
+     *
+     * @return <code>true</code> if write-back mode is enabled, <code>false</code> otherwise
+     */
+    public synchronized boolean isWriteBack() {
+        return writeBack != null;
+    }
+
+    /**
+     * Writes all values held in memory in write-back mode to the backend. Does nothing if
+     * write-back mode is not enabled or nothing changed since the last flush.
+     *
+     * @throws IOException Thrown in case of I/O error.
+     */
+    public synchronized void flush() throws IOException {
+        if (writeBack != null && !closed) {
+            writeBack.flush();
         }
     }
 
@@ -552,12 +721,100 @@ public class RrdDb implements RrdUpdater {
             throw new IllegalArgumentException("Bad sample time: " + newTime +
                     ". Last update time was " + lastTime + ", at least one second step is required");
         }
-        double[] newValues = sample.getValues();
+        store(getUpdatePlan(), lastTime, newTime, sample.getValues());
+        header.setLastUpdateTime(newTime);
+    }
+
+    /**
+     * <p>Stores several samples at once. Samples must be supplied in chronological order,
+     * each one at least one second after the previous one and after the last update time
+     * of this RRD. The whole batch is validated before anything gets stored.</p>
+     * <p/>
+     * <p>The result is the same as updating samples one by one, but archived values are
+     * stored in contiguous runs and the last update time gets written only once. This is
+     * much faster when backfilling large amounts of data. See {@link SampleBatch} for a
+     * convenient way to build batches.</p>
+     *
+     * @param times  Sample timestamps, in seconds
+     * @param values Datasource values, one array per sample. Each array must hold exactly
+     *               one value per datasource, <code>Double.NaN</code> for unknown values.
+     * @throws IOException Thrown in case of I/O error.
+     * @throws IllegalArgumentException Thrown if samples are not properly ordered or
+     *                                  the number of values does not match.
+     */
+    public synchronized void storeBatch(long[] times, double[][] values) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("RRD already closed, cannot store samples");
+        }
+        if (times.length != values.length) {
+            throw new IllegalArgumentException("Got " + times.length + " timestamps but " +
+                    values.length + " sample values");
+        }
+        if (times.length == 0) {
+            return;
+        }
+        long lastTime = header.getLastUpdateTime();
+        for (int i = 0; i < times.length; i++) {
+            long previousTime = i == 0 ? lastTime : times[i - 1];
+            if (previousTime >= times[i]) {
+                throw new IllegalArgumentException("Bad sample time: " + times[i] +
+                        ". Previous time was " + previousTime + ", at least one second step is required");
+            }
+            if (values[i].length != datasources.length) {
+                throw new IllegalArgumentException("Invalid number of values for sample " + times[i] +
+                        ": " + values[i].length + ", exactly " + datasources.length + " needed");
+            }
+        }
+        UpdatePlan plan = getUpdatePlan();
+        for (Archive archive : archives) {
+            archive.startBatch();
+        }
+        try {
+            for (int i = 0; i < times.length; i++) {
+                store(plan, lastTime, times[i], values[i]);
+                lastTime = times[i];
+            }
+        }
+        finally {
+            try {
+                for (Archive archive : archives) {
+                    archive.finishBatch();
+                }
+            }
+            finally {
+                header.setLastUpdateTime(lastTime);
+            }
+        }
+    }
+
+    /**
+     * Creates an empty batch of samples for this RRD. See {@link SampleBatch} for
+     * more information.
+     *
+     * @return Empty sample batch
+     * @throws IOException Thrown in case of I/O error.
+     */
+    public SampleBatch createSampleBatch() throws IOException {
+        return new SampleBatch(this);
+    }
+
+    private void store(UpdatePlan plan, long lastTime, long newTime, double[] newValues) throws IOException {
+        long step = plan.step;
+        if (archiveValues == null) {
+            archiveValues = new double[datasources.length];
+        }
         for (int i = 0; i < datasources.length; i++) {
-            double newValue = newValues[i];
-            datasources[i].process(newTime, newValue);
+            archiveValues[i] = datasources[i].process(plan.datasources[i], step, lastTime, newTime, newValues[i]);
+        }
+        long endTime = Util.normalize(lastTime, step) + step;
+        if (newTime >= endTime) {
+            // how many updates?
+            long numSteps = (Util.normalize(newTime, step) - endTime) / step + 1L;
+            // ACTION!
+            for (int i = 0; i < archives.length; i++) {
+                archives[i].archive(plan.archives[i], archiveValues, numSteps, step, lastTime);
+            }
         }
-        header.setLastUpdateTime(newTime);
     }
 
     synchronized FetchData fetchData(FetchRequest request) throws IOException {
@@ -678,13 +935,6 @@ public class RrdDb implements RrdUpdater {
         return buffer.toString();
     }
 
-    final void archive(Datasource datasource, double value, long numUpdates) throws IOException {
-        int dsIndex = getDsIndex(datasource.getDsName());
-        for (Archive archive : archives) {
-            archive.archive(dsIndex, value, numUpdates);
-        }
-    }
-
     /**
      * Returns internal index number for the given datasource name.
      *
@@ -693,12 +943,43 @@ public class RrdDb implements RrdUpdater {
      * @throws IOException Thrown in case of I/O error.
      */
     public int getDsIndex(String dsName) throws IOException {
-        for (int i = 0; i < datasources.length; i++) {
-            if (datasources[i].getDsName().equals(dsName)) {
-                return i;
+        Map<String, Integer> indexes = dsIndexes;
+        if (indexes == null) {
+            indexes = new HashMap<String, Integer>();
+            for (int i = 0; i < datasources.length; i++) {
+                indexes.put(datasources[i].getDsName(), i);
             }
+            dsIndexes = indexes;
+        }
+        Integer dsIndex = indexes.get(dsName);
+        if (dsIndex == null) {
+            throw new IllegalArgumentException("Unknown datasource name: " + dsName);
+        }
+        return dsIndex;
+    }
+
+    /**
+     * Called when a datasource gets renamed.
+     */
+    void dsNamesChanged() {
+        dsIndexes = null;
+    }
+
+    /**
+     * Returns the update plan of this RRD, built from its current definition.
+     */
+    private UpdatePlan getUpdatePlan() throws IOException {
+        if (updatePlan == null) {
+            updatePlan = new UpdatePlan(header, datasources, archives);
         }
-        throw new IllegalArgumentException("Unknown datasource name: " + dsName);
+        return updatePlan;
+    }
+
+    /**
+     * Drops the update plan, called whenever the RRD definition changes.
+     */
+    synchronized void definitionChanged() {
+        updatePlan = null;
     }
 
     /**
@@ -734,7 +1015,7 @@ public class RrdDb implements RrdUpdater {
      * @throws IOException Thrown in case of I/O related error
      */
     public synchronized void dumpXml(OutputStream destination) throws IOException {
-        XmlWriter writer = new XmlWriter(destination);
+        XmlWriter writer = new XmlWriter(destination, false);
         writer.startTag("rrd");
         // dump header
         header.appendXml(writer);
@@ -823,6 +1104,56 @@ public class RrdDb implements RrdUpdater {
         dumpXml(filename);
     }
 
+    /**
+     * <p>Writes a compressed binary snapshot of this RRD to the given output stream. Snapshots are
+     * much smaller and faster to import than XML dumps, and are the preferred way to copy RRDs
+     * between hosts. To create a RRD from a snapshot, use the <code>snapshot:/</code> prefix:</p>
+     * <p/>
+     * <pre>
+     * RrdDb rrd = new RrdDb("copy.rrd", "snapshot:/original.snap");
+     * </pre>
+     * <p/>
+     * <p>The output stream is not closed.</p>
+     *
+     * @param destination Output stream to receive the snapshot
+     * @throws IOException Thrown in case of I/O related error
+     */
+    public synchronized void exportSnapshot(OutputStream destination) throws IOException {
+        exportSnapshot(destination, true);
+    }
+
+    /**
+     * Writes a binary snapshot of this RRD to the given output stream, see
+     * {@link #exportSnapshot(OutputStream)}.
+     *
+     * @param destination Output stream to receive the snapshot
+     * @param compress    true to compress archived values, false to store them as they are
+     * @throws IOException Thrown in case of I/O related error
+     */
+    public synchronized void exportSnapshot(OutputStream destination, boolean compress) throws IOException {
+        new SnapshotWriter(destination, compress).write(this);
+    }
+
+    /**
+     * Writes a compressed binary snapshot of this RRD to a file, see
+     * {@link #exportSnapshot(OutputStream)}.
+     *
+     * @param filename Path to the snapshot file which will be created
+     * @throws IOException Thrown in case of I/O related error
+     */
+    public synchronized void exportSnapshot(String filename) throws IOException {
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(filename, false);
+            exportSnapshot(outputStream);
+        }
+        finally {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+    }
+
     /**
      * Returns time of last update operation as timestamp (in seconds).
      *
@@ -1012,6 +1343,7 @@ public class RrdDb implements RrdUpdater {
      * @throws IOException Thrown in case of I/O related error.
      */
     public synchronized byte[] getBytes() throws IOException {
+        flush();
         return backend.readAll();
     }
 
@@ -0,0 +1,569 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of open RRD files designed for many files and many concurrent updater threads.<p>
+ *
+ * Open files are spread over a number of independently locked stripes, so threads working
+ * on different files rarely contend. Files are opened and closed outside of stripe locks.<p>
+ *
+ * When released by all its users, an RRD file is not closed but kept open as an <i>idle</i>
+ * handle, since reopening is expensive. Idle handles are closed, least recently released first
+ * across the whole pool, only when the pool is full and another file needs to be opened.
+ * Requesting the creation of a file already in use returns the open instance, as
+ * {@link RrdDbPoolNew} does. If the pool is full and no handle
+ * is idle, requests wait until a file gets released, or until the request timeout expires
+ * (see {@link #setRequestTimeout(long, TimeUnit)}), in which case an
+ * {@link InterruptedIOException} is thrown.<p>
+ *
+ * Idle files stay open until evicted: call {@link #closeIdleFiles()} before touching RRD files
+ * from outside of the pool.
+ */
+public class RrdDbPoolStriped extends RrdDbPool {
+    /**
+     * Default number of stripes, 16.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    // longest single wait for capacity before looking for idle files again
+    private static final long EVICTION_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Stripe[] stripes;
+    private final ResizableSemaphore capacity;
+    private int maxCapacity;
+    private volatile long requestTimeout = Long.MAX_VALUE;
+    // orders idle files by release, across stripes
+    private final AtomicLong releaseCount = new AtomicLong();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /**
+     * Creates a pool with {@link #INITIAL_CAPACITY} capacity and {@link #DEFAULT_STRIPES} stripes.
+     */
+    public RrdDbPoolStriped() {
+        this(INITIAL_CAPACITY, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a pool with the given capacity and number of stripes.
+     *
+     * @param capacity Maximum number of simultaneously open RRD files, idle ones included
+     * @param stripes  Number of independently locked stripes, rounded up to a power of two
+     */
+    public RrdDbPoolStriped(int capacity, int stripes) {
+        if (!(RrdBackendFactory.getDefaultFactory() instanceof RrdFileBackendFactory)) {
+            throw new RuntimeException("Cannot create instance of " + getClass().getName() + " with " +
+                    "a default backend factory not derived from RrdFileBackendFactory");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Invalid number of stripes: " + stripes);
+        }
+        int stripeCount = Integer.highestOneBit(stripes);
+        if (stripeCount < stripes) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.maxCapacity = capacity;
+        this.capacity = new ResizableSemaphore(capacity);
+    }
+
+    public RrdDb requestRrdDb(final String path) throws IOException {
+        return requestRrdDb(path, requestTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Requests a RrdDb reference for the given RRD file path, waiting at most for the given time
+     * if the pool is full. See {@link RrdDbPool#requestRrdDb(String)}.
+     *
+     * @param path    Path to existing RRD file
+     * @param timeout Maximum time to wait
+     * @param unit    Time unit of the timeout argument
+     * @return reference for the give RRD file
+     * @throws InterruptedIOException Thrown if the timeout expires or the thread gets interrupted
+     * @throws IOException Thrown in case of I/O error
+     */
+    public RrdDb requestRrdDb(final String path, long timeout, TimeUnit unit) throws IOException {
+        return request(Util.getCanonicalPath(path), false, unit.toNanos(timeout), new Opener() {
+            public RrdDb open() throws IOException {
+                return new RrdDb(path);
+            }
+        });
+    }
+
+    public RrdDb requestRrdDb(final RrdDef rrdDef) throws IOException {
+        return request(Util.getCanonicalPath(rrdDef.getPath()), true, requestTimeout, new Opener() {
+            public RrdDb open() throws IOException {
+                return new RrdDb(rrdDef);
+            }
+        });
+    }
+
+    public RrdDb requestRrdDb(final String path, final String sourcePath) throws IOException {
+        return request(Util.getCanonicalPath(path), true, requestTimeout, new Opener() {
+            public RrdDb open() throws IOException {
+                return new RrdDb(path, sourcePath);
+            }
+        });
+    }
+
+    private RrdDb request(String canonicalPath, boolean create, long timeout, Opener opener) throws IOException {
+        long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeout;
+        requestCount.incrementAndGet();
+        Stripe stripe = getStripe(canonicalPath);
+        Entry entry;
+        RrdDb replaced = null;
+        stripe.lock.lock();
+        try {
+            while (true) {
+                entry = stripe.entries.get(canonicalPath);
+                if (entry == null) {
+                    entry = new Entry();
+                    stripe.entries.put(canonicalPath, entry);
+                    break;
+                }
+                if (!entry.busy) {
+                    if (!create || entry.count > 0) {
+                        // already open, just increase usage count
+                        if (entry.count++ == 0) {
+                            stripe.idle.remove(canonicalPath);
+                        }
+                        hitCount.incrementAndGet();
+                        return entry.db;
+                    }
+                    if (entry.count == 0) {
+                        // idle file gets replaced by a new one, its slot is reused
+                        stripe.idle.remove(canonicalPath);
+                        replaced = entry.db;
+                        entry.db = null;
+                        break;
+                    }
+                }
+                // wait until the file is opened or closed by another thread, or released
+                await(stripe, deadline);
+            }
+            entry.busy = true;
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+        missCount.incrementAndGet();
+        boolean permit = replaced != null;
+        RrdDb rrdDb = null;
+        try {
+            if (replaced != null) {
+                replaced.close();
+            }
+            if (!permit) {
+                acquirePermit(deadline);
+                permit = true;
+            }
+            rrdDb = opener.open();
+        }
+        finally {
+            stripe.lock.lock();
+            try {
+                entry.busy = false;
+                if (rrdDb != null) {
+                    entry.db = rrdDb;
+                    entry.count = 1;
+                }
+                else {
+                    stripe.entries.remove(canonicalPath);
+                    if (permit) {
+                        capacity.release();
+                    }
+                }
+                stripe.changed.signalAll();
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+        return rrdDb;
+    }
+
+    public void release(RrdDb rrdDb) throws IOException {
+        String canonicalPath = rrdDb.getCanonicalPath();
+        Stripe stripe = getStripe(canonicalPath);
+        Entry entry;
+        stripe.lock.lock();
+        try {
+            entry = stripe.entries.get(canonicalPath);
+            if (entry == null || entry.busy || entry.db != rrdDb || entry.count == 0) {
+                // not obtained from this pool
+                return;
+            }
+            if (--entry.count > 0) {
+                return;
+            }
+            if (!rrdDb.isClosed() && !capacity.hasQueuedThreads() && capacity.availablePermits() >= 0) {
+                // keep it open for the next request
+                entry.released = releaseCount.incrementAndGet();
+                stripe.idle.put(canonicalPath, entry);
+                stripe.changed.signalAll();
+                return;
+            }
+            entry.busy = true;
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+        try {
+            close(stripe, canonicalPath, entry);
+        }
+        finally {
+            capacity.release();
+        }
+    }
+
+    private void acquirePermit(long deadline) throws IOException {
+        long start = System.nanoTime();
+        try {
+            while (!capacity.tryAcquire()) {
+                if (evictIdle()) {
+                    // the slot of the evicted file is ours
+                    return;
+                }
+                long remaining = remaining(deadline);
+                if (remaining <= 0) {
+                    timeoutCount.incrementAndGet();
+                    throw new InterruptedIOException("Timed out waiting for a free slot in the RRD pool");
+                }
+                if (capacity.tryAcquire(Math.min(remaining, EVICTION_RETRY_NANOS), TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free slot in the RRD pool");
+        }
+        finally {
+            waitTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void await(Stripe stripe, long deadline) throws IOException {
+        long remaining = remaining(deadline);
+        if (remaining <= 0) {
+            timeoutCount.incrementAndGet();
+            throw new InterruptedIOException("Timed out waiting for an RRD file held in the pool");
+        }
+        long start = System.nanoTime();
+        try {
+            stripe.changed.awaitNanos(remaining);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an RRD file held in the pool");
+        }
+        finally {
+            waitTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    /**
+     * Closes the least recently released idle file of the pool. Its slot is not returned
+     * to the pool but handed over to the caller.
+     *
+     * @return true if a file was evicted
+     */
+    private boolean evictIdle() throws IOException {
+        String canonicalPath;
+        Entry entry;
+        Stripe stripe;
+        long released;
+        while (true) {
+            // each stripe keeps its idle files in release order, so the oldest one heads a stripe
+            stripe = null;
+            entry = null;
+            released = 0;
+            for (Stripe candidate : stripes) {
+                candidate.lock.lock();
+                try {
+                    Iterator<Entry> idleEntries = candidate.idle.values().iterator();
+                    if (idleEntries.hasNext()) {
+                        Entry eldest = idleEntries.next();
+                        if (entry == null || eldest.released < released) {
+                            stripe = candidate;
+                            entry = eldest;
+                            released = eldest.released;
+                        }
+                    }
+                }
+                finally {
+                    candidate.lock.unlock();
+                }
+            }
+            if (stripe == null) {
+                return false;
+            }
+            stripe.lock.lock();
+            try {
+                Iterator<Map.Entry<String, Entry>> idleEntries = stripe.idle.entrySet().iterator();
+                if (!idleEntries.hasNext()) {
+                    continue;
+                }
+                Map.Entry<String, Entry> eldest = idleEntries.next();
+                if (eldest.getValue() != entry || entry.released != released) {
+                    // requested or evicted meanwhile, look again
+                    continue;
+                }
+                idleEntries.remove();
+                canonicalPath = eldest.getKey();
+                entry.busy = true;
+                break;
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+        evictionCount.incrementAndGet();
+        try {
+            close(stripe, canonicalPath, entry);
+        }
+        catch (IOException e) {
+            capacity.release();
+            throw e;
+        }
+        return true;
+    }
+
+    private void close(Stripe stripe, String canonicalPath, Entry entry) throws IOException {
+        try {
+            entry.db.close();
+        }
+        finally {
+            stripe.lock.lock();
+            try {
+                stripe.entries.remove(canonicalPath);
+                entry.db = null;
+                entry.busy = false;
+                stripe.changed.signalAll();
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle RRD files held in the pool. Files currently in use are not affected.
+     *
+     * @throws IOException Thrown in case of I/O error
+     */
+    public void closeIdleFiles() throws IOException {
+        while (evictIdle()) {
+            capacity.release();
+        }
+    }
+
+    private Stripe getStripe(String canonicalPath) {
+        int h = canonicalPath.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    public synchronized void setCapacity(int newCapacity) {
+        if (newCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + newCapacity);
+        }
+        int delta = newCapacity - maxCapacity;
+        maxCapacity = newCapacity;
+        if (delta > 0) {
+            capacity.release(delta);
+        }
+        else {
+            // excess files get closed when released
+            capacity.reducePermits(-delta);
+        }
+    }
+
+    public synchronized int getCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * Returns the maximum time {@link #requestRrdDb(String)} and its variants wait for a free
+     * slot or for a file busy in another thread.
+     *
+     * @param unit Time unit of the returned value
+     * @return Request timeout, <code>Long.MAX_VALUE</code> if requests wait forever
+     */
+    public long getRequestTimeout(TimeUnit unit) {
+        long timeout = requestTimeout;
+        return timeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.convert(timeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum time {@link #requestRrdDb(String)} and its variants wait for a free slot
+     * or for a file busy in another thread. By default requests wait forever.
+     *
+     * @param timeout Maximum time to wait, <code>Long.MAX_VALUE</code> to wait forever
+     * @param unit    Time unit of the timeout argument
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        }
+        requestTimeout = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(timeout);
+    }
+
+    public String[] getOpenFiles() {
+        List<String> openFiles = new ArrayList<String>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Map.Entry<String, Entry> entry : stripe.entries.entrySet()) {
+                    if (entry.getValue().db != null) {
+                        openFiles.add(entry.getKey());
+                    }
+                }
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+        return openFiles.toArray(new String[openFiles.size()]);
+    }
+
+    public int getOpenFileCount() {
+        return getOpenFiles().length;
+    }
+
+    /**
+     * Returns the number of open RRD files not used by anyone.
+     *
+     * @return Number of idle RRD files held in the pool
+     */
+    public int getIdleFileCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                count += stripe.idle.size();
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of requests served so far.
+     *
+     * @return Number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of requests served with a file already open, in use or idle.
+     *
+     * @return Number of hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of requests which had to open or create a file.
+     *
+     * @return Number of misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of idle files closed to make room for other files.
+     *
+     * @return Number of evictions
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of requests which failed because the request timeout expired.
+     *
+     * @return Number of timeouts
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Returns the total time requests spent waiting for a free slot or for a file busy
+     * in another thread.
+     *
+     * @param unit Time unit of the returned value
+     * @return Total wait time
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private interface Opener {
+        RrdDb open() throws IOException;
+    }
+
+    private static final class Entry {
+        RrdDb db;
+        int count;
+        // position in the release order while idle
+        long released;
+        // true while the file gets opened or closed
+        boolean busy;
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        // idle files, least recently released first
+        final LinkedHashMap<String, Entry> idle = new LinkedHashMap<String, Entry>();
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -51,6 +51,7 @@ public class RrdDef {
     private long startTime = Util.getTime() + DEFAULT_INITIAL_SHIFT;
     private long step = DEFAULT_STEP;
     private int version = DEFAULTVERSION;
+    private boolean sparse = false;
 
     private List<DsDef> dsDefs = new ArrayList<DsDef>();
     private List<ArcDef> arcDefs = new ArrayList<ArcDef>();
@@ -208,6 +209,31 @@ public class RrdDef {
         this.version = version;
     }
 
+    /**
+     * Checks if archives of the RRD will be created sparse.
+     *
+     * @return true if archived values are not initialized on creation
+     * @see #setSparse(boolean)
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * Sets whether archives of the RRD are created sparse. Archived values of a sparse RRD
+     * are not filled with unknown values on creation: slots never written are tracked per
+     * archive and read as unknown, so creation only writes the header, whatever the number of
+     * archived rows. Storage left untouched by file backends stays unallocated on most file systems.<p>
+     *
+     * Sparse RRD files cannot be read by older releases of Rrd4j until all their archives
+     * have been fully written once. Defaults to false.
+     *
+     * @param sparse true to create archives sparse
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
     /**
      * Adds single datasource definition represented with object of class <code>DsDef</code>.
      *
@@ -580,15 +606,20 @@ public class RrdDef {
      * RrdDef object.
      *
      * @return Estimated byte count of the underlying RRD storage.
+     * @throws IllegalArgumentException Thrown if the sketches of a PERCENTILE archive are too large
      */
     public long getEstimatedSize() {
         int dsCount = dsDefs.size();
         int arcCount = arcDefs.size();
         int rowsCount = 0;
+        long sketchSize = 0;
         for (ArcDef arcDef : arcDefs) {
             rowsCount += arcDef.getRows();
+            if (arcDef.getConsolFun() == ConsolFun.PERCENTILE) {
+                sketchSize += PercentileSketch.getStorageSize(dsCount, arcDef.getSteps(), arcDef.getRows());
+            }
         }
-        return calculateSize(dsCount, arcCount, rowsCount);
+        return calculateSize(dsCount, arcCount, rowsCount) + sketchSize;
     }
 
     static long calculateSize(int dsCount, int arcCount, int rowsCount) {
@@ -18,6 +18,11 @@ class RrdDouble extends RrdPrimitive {
         if (!isCachingAllowed()) {
             writeDouble(value);
         }
+        else if (isWriteBack()) {
+            cache = value;
+            cached = true;
+            markDirty();
+        }
         // caching allowed
         else if (!cached || !Util.equal(cache, value)) {
             // update cache
@@ -26,6 +31,10 @@ class RrdDouble extends RrdPrimitive {
         }
     }
 
+    void writeCache() throws IOException {
+        writeDouble(cache);
+    }
+
     double get() throws IOException {
         if (!isCachingAllowed()) {
             return readDouble();
@@ -32,4 +32,10 @@ class RrdDoubleArray extends RrdPrimitive {
         return readDouble(index, count);
     }
 
+    void get(int index, double[] values, int from, int count) throws IOException {
+        assert index + count <= length : "Invalid index/count supplied: " + index +
+                "/" + count + " (length=" + length + ")";
+        readDouble(index, values, from, count);
+    }
+
 }
@@ -3,14 +3,21 @@ package org.rrd4j.core;
 import java.io.IOException;
 
 class RrdDoubleMatrix extends RrdPrimitive {
+    // maximum number of doubles transferred at once by row operations
+    private static final int BLOCK_SIZE = 8 * 1024;
+
     private int rows;
     private int columns;
 
     RrdDoubleMatrix(RrdUpdater updater, int row, int column, boolean shouldInitialize) throws IOException {
+        this(updater, row, column, shouldInitialize, false);
+    }
+
+    RrdDoubleMatrix(RrdUpdater updater, int row, int column, boolean shouldInitialize, boolean sparse) throws IOException {
         super(updater, RrdPrimitive.RRD_DOUBLE,row * column, false);
         this.rows = row;
         this.columns = column;
-        if(shouldInitialize)
+        if(shouldInitialize && !sparse)
             writeDouble(0, Double.NaN, rows*columns);
     }
 
@@ -27,12 +34,68 @@ class RrdDoubleMatrix extends RrdPrimitive {
     }
 
     public void set(int column, int index, double[] newValues) throws IOException {
-        int count = newValues.length;
+        set(column, index, newValues, 0, newValues.length);
+    }
+
+    void set(int column, int index, double[] newValues, int from, int count) throws IOException {
         // rollovers not allowed!
         assert index + count <= rows:	"Invalid robin index supplied: index=" + index +
         ", count=" + count + ", length=" + rows;
         for(int i = columns * index + column, c=0; c < count; i+=columns, c++)
-            writeDouble(i, newValues[c]);
+            writeDouble(i, newValues[from + c]);
+    }
+
+    /**
+     * Writes <code>count</code> complete rows in one pass. Row values are taken from
+     * <code>rowValues</code>, laid out row after row, starting with row <code>from</code>.
+     */
+    void setRows(int index, double[] rowValues, int from, int count) throws IOException {
+        // rollovers not allowed!
+        assert index + count <= rows:	"Invalid robin index supplied: index=" + index +
+        ", count=" + count + ", length=" + rows;
+        assert rowValues.length >= (from + count) * columns: "Invalid number of row values: " + rowValues.length;
+        writeDouble(columns * index, rowValues, columns * from, columns * count);
+    }
+
+    /**
+     * Writes <code>count</code> consecutive values of row <code>index</code>, starting with
+     * column <code>column</code>.
+     */
+    void setRow(int index, int column, double[] newValues, int from, int count) throws IOException {
+        assert index < rows && column + count <= columns: "Invalid row/column supplied: " + index +
+        "/" + column + ", count=" + count;
+        writeDouble(columns * index + column, newValues, from, count);
+    }
+
+    /**
+     * Writes the same row <code>count</code> times, starting at row <code>index</code>.
+     */
+    void setRows(int index, double[] row, int count) throws IOException {
+        // rollovers not allowed!
+        assert index + count <= rows:	"Invalid robin index supplied: index=" + index +
+        ", count=" + count + ", length=" + rows;
+        if (count == 1) {
+            setRows(index, row, 0, 1);
+            return;
+        }
+        int blockRows = Math.min(count, Math.max(1, BLOCK_SIZE / columns));
+        double[] block = new double[blockRows * columns];
+        for (int r = 0; r < blockRows; r++) {
+            System.arraycopy(row, 0, block, r * columns, columns);
+        }
+        for (int done = 0; done < count; done += blockRows) {
+            setRows(index + done, block, 0, Math.min(blockRows, count - done));
+        }
+    }
+
+    /**
+     * Reads <code>count</code> complete rows in one pass into <code>rowValues</code>, laid out
+     * row after row, starting with row <code>from</code>.
+     */
+    void getRows(int index, double[] rowValues, int from, int count) throws IOException {
+        assert index + count <= rows: "Invalid index/count supplied: " + index +
+        "/" + count + " (length=" + rows + ")";
+        readDouble(columns * index, rowValues, columns * from, columns * count);
     }
 
     double get(int column, int index) throws IOException {
@@ -44,10 +107,37 @@ class RrdDoubleMatrix extends RrdPrimitive {
         assert index + count <= rows: "Invalid index/count supplied: " + index +
         "/" + count + " (length=" + rows + ")";
         double[] values = new double[count];
+        get(column, index, values, 0, count);
+        return values;
+    }
+
+    void get(int column, int index, double[] values, int from, int count) throws IOException {
+        assert index + count <= rows: "Invalid index/count supplied: " + index +
+        "/" + count + " (length=" + rows + ")";
         for(int i = columns * index + column, c=0; c < count; i+=columns, c++) {
-            values[c] = readDouble(i);
+            values[from + c] = readDouble(i);
+        }
+    }
+
+    /**
+     * Reads several columns at once. Rows are read in contiguous blocks and split
+     * into columns in memory: values of column <code>columnIndexes[c]</code> are copied
+     * to <code>values[c]</code>, starting at position <code>offset</code>.
+     */
+    void get(int[] columnIndexes, int index, int count, double[][] values, int offset) throws IOException {
+        assert index + count <= rows: "Invalid index/count supplied: " + index +
+        "/" + count + " (length=" + rows + ")";
+        int blockRows = Math.max(1, BLOCK_SIZE / columns);
+        for (int done = 0; done < count; done += blockRows) {
+            int readRows = Math.min(blockRows, count - done);
+            double[] block = readDouble(columns * (index + done), columns * readRows);
+            for (int c = 0; c < columnIndexes.length; c++) {
+                double[] columnValues = values[c];
+                for (int r = 0, i = columnIndexes[c]; r < readRows; r++, i += columns) {
+                    columnValues[offset + done + r] = block[i];
+                }
+            }
         }
-        return values;
     }
 
     /**
@@ -18,6 +18,11 @@ class RrdInt extends RrdPrimitive {
         if (!isCachingAllowed()) {
             writeInt(value);
         }
+        else if (isWriteBack()) {
+            cache = value;
+            cached = true;
+            markDirty();
+        }
         // caching allowed
         else if (!cached || cache != value) {
             // update cache
@@ -26,6 +31,10 @@ class RrdInt extends RrdPrimitive {
         }
     }
 
+    void writeCache() throws IOException {
+        writeInt(cache);
+    }
+
     int get() throws IOException {
         if (!isCachingAllowed()) {
             return readInt();
@@ -18,6 +18,11 @@ class RrdLong extends RrdPrimitive {
         if (!isCachingAllowed()) {
             writeLong(value);
         }
+        else if (isWriteBack()) {
+            cache = value;
+            cached = true;
+            markDirty();
+        }
         // caching allowed
         else if (!cached || cache != value) {
             // update cache
@@ -26,6 +31,10 @@ class RrdLong extends RrdPrimitive {
         }
     }
 
+    void writeCache() throws IOException {
+        writeLong(cache);
+    }
+
     long get() throws IOException {
         if (!isCachingAllowed()) {
             return readLong();
@@ -1,20 +1,43 @@
 package org.rrd4j.core;
 
-import sun.nio.ch.DirectBuffer;
-
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Backend which is used to store RRD data to ordinary disk files
- * using java.nio.* package. This is the default backend engine.
+ * using java.nio.* package. This is the default backend engine.<p>
+ *
+ * Reads and writes never touch the position of the shared mapped buffer, so
+ * concurrent readers and the updater thread do not block each other. The mapping
+ * itself is guarded by a read/write lock which is held exclusively only while the
+ * file gets (re)mapped or unmapped. Ints, longs and doubles are transferred with a single
+ * memory access, so that a concurrent reader never sees half of a value being written.<p>
+ *
+ * The file is mapped as a list of fixed-size segments (see
+ * {@link RrdNioBackendFactory#setSegmentSize(int)}), so RRD files larger than 2GB can be
+ * accessed without copying. Reads and writes spanning a segment boundary are split
+ * transparently.<p>
+ *
+ * Mappings are released on close using the strategy set with
+ * {@link RrdNioBackendFactory#setUnmapper(RrdNioUnmapper)}.
  */
 public class RrdNioBackend extends RrdFileBackend {
-    private MappedByteBuffer byteBuffer;
+    /**
+     * Transfers up to this number of bytes are done byte by byte with absolute
+     * buffer access; larger ones go through a private view of the mapped buffer.
+     */
+    private static final int ABSOLUTE_ACCESS_LIMIT = 2 * RrdPrimitive.STRING_LENGTH;
+
+    private static final MappedByteBuffer[] NOT_MAPPED = new MappedByteBuffer[0];
+
+    private final int segmentSize;
+    private volatile MappedByteBuffer[] segments = NOT_MAPPED;
+    private final ReadWriteLock mappingLock = new ReentrantReadWriteLock();
 
     private final Runnable syncRunnable = new Runnable() {
         public void run() {
@@ -26,6 +49,7 @@ public class RrdNioBackend extends RrdFileBackend {
 
     /**
      * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
+     * The file is mapped in segments of {@link RrdNioBackendFactory#DEFAULT_SEGMENT_SIZE} bytes.
      *
      * @param path       Path to a file
      * @param readOnly   True, if file should be open in a read-only mode. False otherwise
@@ -33,7 +57,25 @@ public class RrdNioBackend extends RrdFileBackend {
      * @throws IOException Thrown in case of I/O error
      */
     protected RrdNioBackend(String path, boolean readOnly, ScheduledExecutorService syncExecutor, int syncPeriod) throws IOException {
+        this(path, readOnly, syncExecutor, syncPeriod, RrdNioBackendFactory.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
+     *
+     * @param path        Path to a file
+     * @param readOnly    True, if file should be open in a read-only mode. False otherwise
+     * @param syncPeriod  See {@link RrdNioBackendFactory#setSyncPeriod(int)} for explanation
+     * @param segmentSize See {@link RrdNioBackendFactory#setSegmentSize(int)} for explanation
+     * @throws IOException Thrown in case of I/O error
+     */
+    protected RrdNioBackend(String path, boolean readOnly, ScheduledExecutorService syncExecutor, int syncPeriod,
+                            int segmentSize) throws IOException {
         super(path, readOnly);
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
         try {
             mapFile();
             if (!readOnly) {
@@ -51,16 +93,22 @@ public class RrdNioBackend extends RrdFileBackend {
         if (length > 0) {
             FileChannel.MapMode mapMode =
                     readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
-            byteBuffer = file.getChannel().map(mapMode, 0, length);
+            int count = (int) ((length - 1) / segmentSize + 1);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i * segmentSize;
+                mapped[i] = file.getChannel().map(mapMode, start, Math.min(segmentSize, length - start));
+                RrdNioBackendFactory.mapped(mapped[i]);
+            }
+            segments = mapped;
         }
     }
 
     private void unmapFile() {
-        if (byteBuffer != null) {
-            if (byteBuffer instanceof DirectBuffer) {
-                ((DirectBuffer) byteBuffer).cleaner().clean();
-            }
-            byteBuffer = null;
+        MappedByteBuffer[] mapped = segments;
+        segments = NOT_MAPPED;
+        for (MappedByteBuffer segment : mapped) {
+            RrdNioBackendFactory.unmap(segment);
         }
     }
 
@@ -71,10 +119,16 @@ public class RrdNioBackend extends RrdFileBackend {
      * @param newLength Length of the RRD file
      * @throws IOException Thrown in case of I/O error.
      */
-    protected synchronized void setLength(long newLength) throws IOException {
-        unmapFile();
-        super.setLength(newLength);
-        mapFile();
+    protected void setLength(long newLength) throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            unmapFile();
+            super.setLength(newLength);
+            mapFile();
+        }
+        finally {
+            mappingLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -83,13 +137,63 @@ public class RrdNioBackend extends RrdFileBackend {
      * @param offset Starting file offset
      * @param b      Bytes to be written.
      */
-    protected synchronized void write(long offset, byte[] b) throws IOException {
-        if (byteBuffer != null) {
-            byteBuffer.position((int) offset);
-            byteBuffer.put(b);
+    protected void write(long offset, byte[] b) throws IOException {
+        write(offset, ByteBuffer.wrap(b));
+    }
+
+    /**
+     * Reads a number of bytes from the RRD file on the disk
+     *
+     * @param offset Starting file offset
+     * @param b      Buffer which receives bytes read from the file.
+     */
+    protected void read(long offset, byte[] b) throws IOException {
+        read(offset, ByteBuffer.wrap(b));
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer to the underlying RRD file on the disk
+     *
+     * @param offset Starting file offset
+     * @param src    Buffer holding bytes to be written.
+     */
+    protected void write(long offset, ByteBuffer src) throws IOException {
+        mappingLock.readLock().lock();
+        try {
+            MappedByteBuffer[] mapped = segments;
+            if (mapped.length == 0) {
+                throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
+            }
+            while (src.hasRemaining()) {
+                long index = offset / segmentSize;
+                int pos = (int) (offset % segmentSize);
+                // offsets past the last segment leave nothing to transfer
+                int length = index < mapped.length ? Math.min(src.remaining(), mapped[(int) index].capacity() - pos) : 0;
+                if (length <= 0) {
+                    throw new IOException("Write failed, offset " + offset + " beyond the end of file " + getPath());
+                }
+                MappedByteBuffer segment = mapped[(int) index];
+                if (length == src.remaining() && isPrimitive(length, src, segment)) {
+                    putPrimitive(segment, pos, src, length);
+                }
+                else if (length <= ABSOLUTE_ACCESS_LIMIT) {
+                    for (int i = 0; i < length; i++) {
+                        segment.put(pos + i, src.get());
+                    }
+                }
+                else {
+                    ByteBuffer view = segment.duplicate();
+                    view.position(pos);
+                    int srcLimit = src.limit();
+                    src.limit(src.position() + length);
+                    view.put(src);
+                    src.limit(srcLimit);
+                }
+                offset += length;
+            }
         }
-        else {
-            throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
+        finally {
+            mappingLock.readLock().unlock();
         }
     }
 
@@ -97,15 +201,74 @@ public class RrdNioBackend extends RrdFileBackend {
      * Reads a number of bytes from the RRD file on the disk
      *
      * @param offset Starting file offset
-     * @param b      Buffer which receives bytes read from the file.
+     * @param dst    Buffer which receives bytes read from the file.
      */
-    protected synchronized void read(long offset, byte[] b) throws IOException {
-        if (byteBuffer != null) {
-            byteBuffer.position((int) offset);
-            byteBuffer.get(b);
+    protected void read(long offset, ByteBuffer dst) throws IOException {
+        mappingLock.readLock().lock();
+        try {
+            MappedByteBuffer[] mapped = segments;
+            if (mapped.length == 0) {
+                throw new IOException("Read failed, file " + getPath() + " not mapped for I/O");
+            }
+            while (dst.hasRemaining()) {
+                long index = offset / segmentSize;
+                int pos = (int) (offset % segmentSize);
+                // offsets past the last segment leave nothing to transfer
+                int length = index < mapped.length ? Math.min(dst.remaining(), mapped[(int) index].capacity() - pos) : 0;
+                if (length <= 0) {
+                    throw new IOException("Read failed, offset " + offset + " beyond the end of file " + getPath());
+                }
+                MappedByteBuffer segment = mapped[(int) index];
+                if (length == dst.remaining() && isPrimitive(length, dst, segment)) {
+                    getPrimitive(segment, pos, dst, length);
+                }
+                else if (length <= ABSOLUTE_ACCESS_LIMIT) {
+                    for (int i = 0; i < length; i++) {
+                        dst.put(segment.get(pos + i));
+                    }
+                }
+                else {
+                    ByteBuffer view = segment.duplicate();
+                    view.limit(pos + length);
+                    view.position(pos);
+                    dst.put(view);
+                }
+                offset += length;
+            }
+        }
+        finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    // whole values of primitive size, laid out in the byte order of the mapped buffer
+    private static boolean isPrimitive(int length, ByteBuffer buffer, MappedByteBuffer segment) {
+        return (length == 8 || length == 4 || length == 2) && buffer.order() == segment.order();
+    }
+
+    private static void putPrimitive(MappedByteBuffer segment, int pos, ByteBuffer src, int length) {
+        switch (length) {
+            case 8:
+                segment.putLong(pos, src.getLong());
+                break;
+            case 4:
+                segment.putInt(pos, src.getInt());
+                break;
+            default:
+                segment.putShort(pos, src.getShort());
         }
-        else {
-            throw new IOException("Read failed, file " + getPath() + " not mapped for I/O");
+    }
+
+    private static void getPrimitive(MappedByteBuffer segment, int pos, ByteBuffer dst, int length) {
+        switch (length) {
+            case 8:
+                dst.putLong(segment.getLong(pos));
+                break;
+            case 4:
+                dst.putInt(segment.getInt(pos));
+                break;
+            default:
+                dst.putShort(segment.getShort(pos));
         }
     }
 
@@ -114,8 +277,9 @@ public class RrdNioBackend extends RrdFileBackend {
      *
      * @throws IOException Thrown in case of I/O error
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
         // cancel synchronization
+        mappingLock.writeLock().lock();
         try {
             if (!readOnly) {
                 syncRunnableHandle.cancel(false);
@@ -124,6 +288,7 @@ public class RrdNioBackend extends RrdFileBackend {
             unmapFile();
         }
         finally {
+            mappingLock.writeLock().unlock();
             super.close();
         }
     }
@@ -132,9 +297,15 @@ public class RrdNioBackend extends RrdFileBackend {
      * This method forces all data cached in memory but not yet stored in the file,
      * to be stored in it.
      */
-    protected synchronized void sync() {
-        if (byteBuffer != null) {
-            byteBuffer.force();
+    protected void sync() {
+        mappingLock.readLock().lock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+        finally {
+            mappingLock.readLock().unlock();
         }
     }
 }
@@ -1,10 +1,17 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.MappedByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Factory class which creates actual {@link RrdNioBackend} objects. This is the default factory since
@@ -26,6 +33,15 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
 
     private static int syncPeriod = DEFAULT_SYNC_PERIOD;
 
+    /**
+     * Size in bytes of a single mapped file segment, 1GB. Files smaller than this value
+     * are mapped with a single buffer. Default value can be changed via
+     * {@link #setSegmentSize(int)} method.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private static int segmentSize = DEFAULT_SEGMENT_SIZE;
+
     /**
      * The core pool size for the sync executor. Defaults to 6.
      */
@@ -37,6 +53,11 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
     private static ScheduledExecutorService syncExecutor =
             Executors.newScheduledThreadPool(DEFAULT_SYNC_CORE_POOL_SIZE, new DaemonThreadFactory("RRD4J Sync"));
 
+    private static volatile RrdNioUnmapper unmapper = RrdNioUnmapper.getDefault();
+
+    private static final AtomicLong mappedBytes = new AtomicLong();
+    private static final ReferenceQueue<MappedByteBuffer> collectedBuffers = new ReferenceQueue<MappedByteBuffer>();
+    private static final Map<PendingUnmap, Boolean> pendingUnmaps = new ConcurrentHashMap<PendingUnmap, Boolean>();
 
     /**
      * Returns time between two consecutive background synchronizations. If not changed via
@@ -58,6 +79,100 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
         RrdNioBackendFactory.syncPeriod = syncPeriod;
     }
 
+    /**
+     * Returns the size of mapped file segments. If not changed via {@link #setSegmentSize(int)}
+     * method call, defaults to {@link #DEFAULT_SEGMENT_SIZE}.
+     *
+     * @return Segment size in bytes.
+     */
+    public static int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size of mapped file segments. RRD files are mapped in chunks of this size,
+     * which allows files larger than 2GB to be accessed through the NIO backend. The new
+     * value applies to RRD files opened afterwards.
+     *
+     * @param segmentSize Segment size in bytes, must be positive.
+     */
+    public static void setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        RrdNioBackendFactory.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the strategy used to release file mappings of closed RRD files. If not changed via
+     * {@link #setUnmapper(RrdNioUnmapper)} method call, defaults to {@link RrdNioUnmapper#getDefault()}.
+     *
+     * @return Unmapping strategy.
+     */
+    public static RrdNioUnmapper getUnmapper() {
+        return unmapper;
+    }
+
+    /**
+     * Sets the strategy used to release file mappings of closed RRD files.
+     *
+     * @param unmapper Unmapping strategy, use {@link RrdNioUnmapper#NONE} to leave mappings
+     *                 to the garbage collector.
+     */
+    public static void setUnmapper(RrdNioUnmapper unmapper) {
+        if (unmapper == null) {
+            throw new IllegalArgumentException("Unmapper must not be null");
+        }
+        RrdNioBackendFactory.unmapper = unmapper;
+    }
+
+    /**
+     * Returns the number of bytes currently mapped by NIO backends. Mappings of closed files which
+     * could not be released explicitly are included until they get garbage collected.
+     *
+     * @return Mapped bytes.
+     */
+    public static long getMappedBytes() {
+        expungeCollectedBuffers();
+        return mappedBytes.get();
+    }
+
+    /**
+     * Returns the number of mapped buffers belonging to closed files which could not be unmapped
+     * explicitly and wait to be garbage collected.
+     *
+     * @return Pending unmaps.
+     */
+    public static int getPendingUnmaps() {
+        expungeCollectedBuffers();
+        return pendingUnmaps.size();
+    }
+
+    static void mapped(MappedByteBuffer buffer) {
+        expungeCollectedBuffers();
+        mappedBytes.addAndGet(buffer.capacity());
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        expungeCollectedBuffers();
+        if (unmapper.unmap(buffer)) {
+            mappedBytes.addAndGet(-buffer.capacity());
+        }
+        else {
+            pendingUnmaps.put(new PendingUnmap(buffer, collectedBuffers), Boolean.TRUE);
+        }
+    }
+
+    private static void expungeCollectedBuffers() {
+        Reference<? extends MappedByteBuffer> ref;
+        while ((ref = collectedBuffers.poll()) != null) {
+            PendingUnmap pending = (PendingUnmap) ref;
+            if (pendingUnmaps.remove(pending) != null) {
+                mappedBytes.addAndGet(-pending.capacity);
+            }
+        }
+    }
+
     /**
      * Creates RrdNioBackend object for the given file path.
      *
@@ -68,7 +183,7 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
      * @throws IOException Thrown in case of I/O error.
      */
     protected RrdBackend open(String path, boolean readOnly) throws IOException {
-        return new RrdNioBackend(path, readOnly, syncExecutor, syncPeriod);
+        return new RrdNioBackend(path, readOnly, syncExecutor, syncPeriod, segmentSize);
     }
 
     /**
@@ -80,6 +195,18 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
         return NAME;
     }
 
+    /**
+     * Tracks a buffer which could not be unmapped until it gets garbage collected.
+     */
+    private static class PendingUnmap extends PhantomReference<MappedByteBuffer> {
+        final int capacity;
+
+        PendingUnmap(MappedByteBuffer buffer, ReferenceQueue<MappedByteBuffer> queue) {
+            super(buffer, queue);
+            this.capacity = buffer.capacity();
+        }
+    }
+
     /**
      * Daemon thread factory used by the monitor executors.
      * <p>
@@ -89,7 +216,7 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
      * with priority Thread.NORM_PRIORITY. New threads have names accessible via Thread.getName()
      * of "<pool-name> Pool [Thread-M]", where M is the sequence number of the thread created by this factory.
      */
-    private static class DaemonThreadFactory implements ThreadFactory {
+    static class DaemonThreadFactory implements ThreadFactory {
         final ThreadGroup group;
         final AtomicInteger threadNumber = new AtomicInteger(1);
         final String namePrefix;
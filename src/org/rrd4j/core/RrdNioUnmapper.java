@@ -0,0 +1,142 @@
+package org.rrd4j.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Strategy used by {@link RrdNioBackend} to release file mappings once an RRD file gets closed.<p>
+ *
+ * The JDK offers no public API to unmap a {@link MappedByteBuffer}; without explicit unmapping
+ * the mapping (and the virtual memory behind it) is kept until the buffer gets garbage collected.
+ * The default strategy is selected at class loading time, in the following order:
+ * <ul>
+ * <li><b>unsafe</b>: <code>sun.misc.Unsafe.invokeCleaner()</code>, available since Java 9.
+ * <li><b>cleaner</b>: the internal <code>cleaner()</code> method of direct buffers, available up to Java 8.
+ * <li><b>none</b>: mappings are left to the garbage collector. Such buffers are reported
+ * as pending by {@link RrdNioBackendFactory#getPendingUnmaps()}.
+ * </ul>
+ * A different strategy can be set with {@link RrdNioBackendFactory#setUnmapper(RrdNioUnmapper)}.
+ */
+public abstract class RrdNioUnmapper {
+    /**
+     * Strategy which never unmaps buffers and leaves them to the garbage collector.
+     */
+    public static final RrdNioUnmapper NONE = new RrdNioUnmapper() {
+        public boolean unmap(MappedByteBuffer buffer) {
+            return false;
+        }
+
+        public String getName() {
+            return "none";
+        }
+    };
+
+    private static final RrdNioUnmapper DEFAULT = selectDefault();
+
+    /**
+     * Returns the best unmapping strategy supported by the running JVM.
+     *
+     * @return Default unmapper
+     */
+    public static RrdNioUnmapper getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Releases the mapping held by the given buffer. The buffer must not be accessed afterwards.
+     *
+     * @param buffer Buffer to unmap
+     * @return true if the mapping was released, false if it is left to the garbage collector
+     */
+    public abstract boolean unmap(MappedByteBuffer buffer);
+
+    /**
+     * Returns the name of this strategy.
+     *
+     * @return Strategy name
+     */
+    public abstract String getName();
+
+    public String toString() {
+        return getName();
+    }
+
+    private static RrdNioUnmapper selectDefault() {
+        try {
+            return new UnsafeUnmapper();
+        }
+        catch (Exception e) {
+            // not a Java 9+ runtime
+        }
+        try {
+            return new CleanerUnmapper();
+        }
+        catch (Exception e) {
+            // no internal cleaner either
+        }
+        return NONE;
+    }
+
+    /**
+     * Uses <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code>, Java 9 and later.
+     */
+    private static class UnsafeUnmapper extends RrdNioUnmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        UnsafeUnmapper() throws Exception {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        }
+
+        public boolean unmap(MappedByteBuffer buffer) {
+            try {
+                invokeCleaner.invoke(unsafe, buffer);
+                return true;
+            }
+            catch (Exception e) {
+                return false;
+            }
+        }
+
+        public String getName() {
+            return "unsafe";
+        }
+    }
+
+    /**
+     * Uses the <code>cleaner()</code> method of internal direct buffer classes, Java 8 and earlier.
+     */
+    private static class CleanerUnmapper extends RrdNioUnmapper {
+        private final Method clean;
+
+        CleanerUnmapper() throws Exception {
+            clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+        }
+
+        public boolean unmap(MappedByteBuffer buffer) {
+            try {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner == null) {
+                    return false;
+                }
+                clean.invoke(bufferCleaner);
+                return true;
+            }
+            catch (Exception e) {
+                return false;
+            }
+        }
+
+        public String getName() {
+            return "cleaner";
+        }
+    }
+}
@@ -8,9 +8,11 @@ abstract class RrdPrimitive {
     static final int[] RRD_PRIM_SIZES = {4, 8, 8, 2 * STRING_LENGTH};
 
     private RrdBackend backend;
-    private int byteCount;
+    private long byteCount;
     private final long pointer;
     private final boolean cachingAllowed;
+    private RrdWriteBack writeBack;
+    private boolean dirty = false;
 
     RrdPrimitive(RrdUpdater updater, int type, boolean isConstant) throws IOException {
         this(updater, type, 1, isConstant);
@@ -18,13 +20,14 @@ abstract class RrdPrimitive {
 
     RrdPrimitive(RrdUpdater updater, int type, int count, boolean isConstant) throws IOException {
         this.backend = updater.getRrdBackend();
-        this.byteCount = RRD_PRIM_SIZES[type] * count;
+        this.byteCount = (long) RRD_PRIM_SIZES[type] * count;
         this.pointer = updater.getRrdAllocator().allocate(byteCount);
+        backend.allocated(pointer, byteCount, count > 1);
         this.cachingAllowed = isConstant || backend.isCachingAllowed();
     }
 
     final byte[] readBytes() throws IOException {
-        byte[] b = new byte[byteCount];
+        byte[] b = new byte[(int) byteCount];
         backend.read(pointer, b);
         return b;
     }
@@ -55,34 +58,44 @@ abstract class RrdPrimitive {
     }
 
     final double readDouble(int index) throws IOException {
-        long offset = pointer + index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
         return backend.readDouble(offset);
     }
 
     final double[] readDouble(int index, int count) throws IOException {
-        long offset = pointer + index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
         return backend.readDouble(offset, count);
     }
 
+    final void readDouble(int index, double[] values, int from, int count) throws IOException {
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        backend.readDouble(offset, values, from, count);
+    }
+
     final void writeDouble(double value) throws IOException {
         backend.writeDouble(pointer, value);
     }
 
     final void writeDouble(int index,  double value) throws IOException {
-        long offset = pointer + index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
         backend.writeDouble(offset, value);
     }
 
     final void writeDouble(int index, double value, int count) throws IOException {
-        long offset = pointer + index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
         backend.writeDouble(offset, value, count);
     }
 
     final void writeDouble(int index, double[] values) throws IOException {
-        long offset = pointer + index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
         backend.writeDouble(offset, values);
     }
 
+    final void writeDouble(int index, double[] values, int from, int count) throws IOException {
+        long offset = pointer + (long) index * RRD_PRIM_SIZES[RRD_DOUBLE];
+        backend.writeDouble(offset, values, from, count);
+    }
+
     final String readString() throws IOException {
         return backend.readString(pointer);
     }
@@ -94,4 +107,38 @@ abstract class RrdPrimitive {
     final boolean isCachingAllowed() {
         return cachingAllowed;
     }
+
+    /**
+     * Defers writes of this primitive until {@link #flush()} gets called. Any pending value
+     * is written before the write-back mode gets changed.
+     */
+    final void setWriteBack(RrdWriteBack writeBack) throws IOException {
+        assert writeBack == null || cachingAllowed : "Write-back requires caching";
+        flush();
+        this.writeBack = writeBack;
+    }
+
+    final boolean isWriteBack() {
+        return writeBack != null;
+    }
+
+    final void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            writeBack.add(this);
+        }
+    }
+
+    final void flush() throws IOException {
+        if (dirty) {
+            writeCache();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Writes the cached value of a write-back primitive.
+     */
+    void writeCache() throws IOException {
+    }
 }
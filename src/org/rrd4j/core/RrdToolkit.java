@@ -20,7 +20,8 @@ import java.util.Arrays;
  * </ul>
  *
  * <p>All these operations can be performed on the copy of the original RRD file, or on the
- * original file itself (with possible backup file creation)</p>
+ * original file itself (with possible backup file creation). To apply them to many files
+ * at once, see {@link RrdToolkitBatch}.</p>
  *
  * <p><b><u>IMPORTANT</u></b>: NEVER use methods found in this class on 'live' RRD files
  * (files which are currently in use).</p>
@@ -148,19 +149,23 @@ public class RrdToolkit {
     public static void renameDatasource(String sourcePath, String oldDsName, String newDsName) throws IOException {
         RrdDb rrd = new RrdDb(sourcePath);
         try {
-            if (rrd.containsDs(oldDsName)) {
-                Datasource datasource = rrd.getDatasource(oldDsName);
-                datasource.setDsName(newDsName);
-            }
-            else {
-                throw new IllegalArgumentException("Could not find datasource [" + oldDsName + "] in file " + sourcePath);
-            }
+            renameDatasource(rrd, oldDsName, newDsName);
         }
         finally {
             rrd.close();
         }
     }
 
+    static void renameDatasource(RrdDb rrd, String oldDsName, String newDsName) throws IOException {
+        if (rrd.containsDs(oldDsName)) {
+            Datasource datasource = rrd.getDatasource(oldDsName);
+            datasource.setDsName(newDsName);
+        }
+        else {
+            throw new IllegalArgumentException("Could not find datasource [" + oldDsName + "] in file " + rrd.getPath());
+        }
+    }
+
     /**
      * Updates single or all datasource names in the specified RRD file
      * by appending '!' (if not already present). Datasources with names ending with '!'
@@ -175,31 +180,35 @@ public class RrdToolkit {
     public static int forceZerosForNans(String sourcePath, String dsName) throws IOException {
         RrdDb rrd = new RrdDb(sourcePath);
         try {
-            Datasource[] datasources;
-            if (dsName == null) {
-                datasources = rrd.getDatasources();
+            return forceZerosForNans(rrd, dsName);
+        }
+        finally {
+            rrd.close();
+        }
+    }
+
+    static int forceZerosForNans(RrdDb rrd, String dsName) throws IOException {
+        Datasource[] datasources;
+        if (dsName == null) {
+            datasources = rrd.getDatasources();
+        }
+        else {
+            if (rrd.containsDs(dsName)) {
+                datasources = new Datasource[]{rrd.getDatasource(dsName)};
             }
             else {
-                if (rrd.containsDs(dsName)) {
-                    datasources = new Datasource[]{rrd.getDatasource(dsName)};
-                }
-                else {
-                    throw new IllegalArgumentException("Could not find datasource [" + dsName + "] in file " + sourcePath);
-                }
+                throw new IllegalArgumentException("Could not find datasource [" + dsName + "] in file " + rrd.getPath());
             }
-            int count = 0;
-            for (Datasource datasource : datasources) {
-                String currentDsName = datasource.getDsName();
-                if (!currentDsName.endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX)) {
-                    datasource.setDsName(currentDsName + DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX);
-                    count++;
-                }
-            }
-            return count;
         }
-        finally {
-            rrd.close();
+        int count = 0;
+        for (Datasource datasource : datasources) {
+            String currentDsName = datasource.getDsName();
+            if (!currentDsName.endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX)) {
+                datasource.setDsName(currentDsName + DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX);
+                count++;
+            }
         }
+        return count;
     }
 
     /**
@@ -313,7 +322,7 @@ public class RrdToolkit {
         copyFile(destPath, sourcePath, saveBackup);
     }
 
-    private static void copyFile(String sourcePath, String destPath, boolean saveBackup)
+    static void copyFile(String sourcePath, String destPath, boolean saveBackup)
             throws IOException {
         File source = new File(sourcePath);
         File dest = new File(destPath);
@@ -0,0 +1,449 @@
+package org.rrd4j.core;
+
+import org.rrd4j.ConsolFun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies the same {@link RrdToolkit} operations to many RRD files at once.<p>
+ *
+ * Operations are recorded first, then applied to every file by a bounded set of worker
+ * threads. Each file is processed in a single pass:
+ * <ul>
+ * <li>definition changes (datasources or archives added, removed or resized) are applied
+ * together: the file gets copied once to a temporary file in the same directory
+ * <li>other changes (renames, heartbeats, min/max values, X-files factors) are then made to
+ * the copy, in the order they were recorded
+ * </ul>
+ * The copy replaces the file only once all changes succeeded, files left as they are by all
+ * changes are not rewritten. A file failing to be processed is left unchanged and reported,
+ * other files are still processed.
+ * <pre>
+ * RrdToolkitBatch batch = new RrdToolkitBatch();
+ * batch.addDatasource(new DsDef("errors", DsType.COUNTER, 600, 0, Double.NaN));
+ * batch.resizeArchive(ConsolFun.AVERAGE, 1, 2016);
+ * batch.setDsHeartbeat("errors", 900);
+ * Map&lt;String, Exception&gt; failures = batch.apply("/var/rrd", ".rrd", true);
+ * </pre>
+ * <b><u>IMPORTANT</u></b>: as with {@link RrdToolkit}, never apply a batch to RRD files
+ * which are currently in use.
+ */
+public class RrdToolkitBatch {
+    private final List<DefChange> defChanges = new ArrayList<DefChange>();
+    private final List<DbChange> dbChanges = new ArrayList<DbChange>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long maxBytesPerSecond = 0;
+    private boolean saveBackup = false;
+
+    // time at which the next file may be read or written, when throttled
+    private long throttleTime;
+
+    /**
+     * Adds a datasource to each file. Archived values of the new datasource are unknown.
+     *
+     * @param newDatasource Datasource definition to be added
+     */
+    public void addDatasource(final DsDef newDatasource) {
+        defChanges.add(new DefChange() {
+            public boolean apply(RrdDef rrdDef) {
+                rrdDef.addDatasource(newDatasource);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Removes a datasource from each file.
+     *
+     * @param dsName Name of the datasource to be removed
+     */
+    public void removeDatasource(final String dsName) {
+        defChanges.add(new DefChange() {
+            public boolean apply(RrdDef rrdDef) {
+                rrdDef.removeDatasource(dsName);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Adds an archive to each file.
+     *
+     * @param newArchive Archive definition to be added
+     */
+    public void addArchive(final ArcDef newArchive) {
+        defChanges.add(new DefChange() {
+            public boolean apply(RrdDef rrdDef) {
+                rrdDef.addArchive(newArchive);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Removes an archive from each file.
+     *
+     * @param consolFun Consolidation function of the archive to be removed
+     * @param steps     Number of steps of the archive to be removed
+     */
+    public void removeArchive(final ConsolFun consolFun, final int steps) {
+        defChanges.add(new DefChange() {
+            public boolean apply(RrdDef rrdDef) {
+                rrdDef.removeArchive(consolFun, steps);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Resizes an archive of each file. Files where the archive already has the given size
+     * are not rewritten for it.
+     *
+     * @param consolFun Consolidation function of the archive to be resized
+     * @param steps     Number of steps of the archive to be resized
+     * @param newRows   New archive size (number of archive rows)
+     */
+    public void resizeArchive(final ConsolFun consolFun, final int steps, final int newRows) {
+        if (newRows < 2) {
+            throw new IllegalArgumentException("New archive size must be at least 2");
+        }
+        defChanges.add(new DefChange() {
+            public boolean apply(RrdDef rrdDef) {
+                ArcDef arcDef = rrdDef.findArchive(consolFun, steps);
+                if (arcDef.getRows() == newRows) {
+                    return false;
+                }
+                arcDef.setRows(newRows);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Renames a datasource of each file.
+     *
+     * @param oldDsName Old datasource name
+     * @param newDsName New datasource name
+     */
+    public void renameDatasource(final String oldDsName, final String newDsName) {
+        dbChanges.add(new DbChange() {
+            public void apply(RrdDb rrd) throws IOException {
+                RrdToolkit.renameDatasource(rrd, oldDsName, newDsName);
+            }
+        });
+    }
+
+    /**
+     * Appends '!' to datasource names of each file, so that they store zeros instead of NaNs
+     * (see {@link RrdToolkit#forceZerosForNans(String, String)}).
+     *
+     * @param dsName Datasource name or null for all datasources
+     */
+    public void forceZerosForNans(final String dsName) {
+        dbChanges.add(new DbChange() {
+            public void apply(RrdDb rrd) throws IOException {
+                RrdToolkit.forceZerosForNans(rrd, dsName);
+            }
+        });
+    }
+
+    /**
+     * Sets the heartbeat of a datasource of each file.
+     *
+     * @param dsName       Datasource name
+     * @param newHeartbeat New datasource heartbeat
+     */
+    public void setDsHeartbeat(final String dsName, final long newHeartbeat) {
+        dbChanges.add(new DbChange() {
+            public void apply(RrdDb rrd) throws IOException {
+                getDatasource(rrd, dsName).setHeartbeat(newHeartbeat);
+            }
+        });
+    }
+
+    /**
+     * Sets the valid value range of a datasource of each file.
+     *
+     * @param dsName               Datasource name
+     * @param newMinValue          New min value for the datasource
+     * @param newMaxValue          New max value for the datasource
+     * @param filterArchivedValues set to <code>true</code> if archived values outside
+     *                             of the specified min/max range should be replaced with NaNs.
+     */
+    public void setDsMinMaxValue(final String dsName, final double newMinValue, final double newMaxValue,
+                                 final boolean filterArchivedValues) {
+        dbChanges.add(new DbChange() {
+            public void apply(RrdDb rrd) throws IOException {
+                getDatasource(rrd, dsName).setMinMaxValue(newMinValue, newMaxValue, filterArchivedValues);
+            }
+        });
+    }
+
+    /**
+     * Sets the X-files factor of an archive of each file.
+     *
+     * @param consolFun Consolidation function of the target archive
+     * @param steps     Number of steps of the target archive
+     * @param newXff    New X-files factor for the target archive
+     */
+    public void setArcXff(final ConsolFun consolFun, final int steps, final double newXff) {
+        dbChanges.add(new DbChange() {
+            public void apply(RrdDb rrd) throws IOException {
+                getArchive(rrd, consolFun, steps).setXff(newXff);
+            }
+        });
+    }
+
+    /**
+     * Sets the number of files processed at the same time. Defaults to the number of processors.
+     *
+     * @param threads Number of worker threads
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the number of files processed at the same time.
+     *
+     * @return Number of worker threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Limits the rate at which files are read and written, all workers included. The
+     * limit is applied to whole files: each file gets read, and written back if rewritten,
+     * no sooner than the limit allows. Defaults to 0, no limit.
+     *
+     * @param maxBytesPerSecond Maximum number of bytes per second, 0 for no limit
+     */
+    public synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid rate: " + maxBytesPerSecond);
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Returns the maximum rate at which files are read and written.
+     *
+     * @return Maximum number of bytes per second, 0 for no limit
+     */
+    public synchronized long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Sets whether rewritten files are backed up first, with a <code>.bak</code> extension
+     * added to their name. Defaults to false.
+     *
+     * @param saveBackup true, if backup of rewritten files should be created
+     */
+    public void setSaveBackup(boolean saveBackup) {
+        this.saveBackup = saveBackup;
+    }
+
+    /**
+     * Checks whether rewritten files are backed up first.
+     *
+     * @return true, if backup of rewritten files is created
+     */
+    public boolean isSaveBackup() {
+        return saveBackup;
+    }
+
+    /**
+     * Applies recorded operations to all files with the given extension in a directory
+     * (see {@link RrdToolkit#getCanonicalPaths(String, String, boolean)}).
+     *
+     * @param directory Source directory
+     * @param extension File extension (like ".rrd", ".jrb", ".rrd.jrb")
+     * @param recursive true if all subdirectories should be traversed for the same extension, false otherwise
+     * @return Cause of failure of each file which could not be processed, by path
+     * @throws IOException Thrown if the directory cannot be listed, or if interrupted
+     */
+    public Map<String, Exception> apply(String directory, String extension, boolean recursive) throws IOException {
+        return apply(RrdToolkit.getCanonicalPaths(directory, extension, recursive));
+    }
+
+    /**
+     * Applies recorded operations to the given files, waiting until all of them are processed.
+     *
+     * @param paths Paths to RRD files
+     * @return Cause of failure of each file which could not be processed, by path
+     * @throws InterruptedIOException Thrown if the thread gets interrupted while waiting
+     */
+    public Map<String, Exception> apply(String[] paths) throws InterruptedIOException {
+        final Map<String, Exception> failures = new TreeMap<String, Exception>();
+        final AtomicInteger processed = new AtomicInteger();
+        final int total = paths.length;
+        synchronized (this) {
+            throttleTime = System.nanoTime();
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new RrdNioBackendFactory.DaemonThreadFactory("RRD4J Toolkit Batch"));
+        try {
+            for (final String path : paths) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            process(path);
+                        }
+                        catch (Exception e) {
+                            synchronized (failures) {
+                                failures.put(path, e);
+                            }
+                            fileFailed(path, e);
+                        }
+                        fileProcessed(path, processed.incrementAndGet(), total);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while applying toolkit operations");
+        }
+        synchronized (failures) {
+            return failures;
+        }
+    }
+
+    /**
+     * Called from a worker thread each time a file is processed, successfully or not.
+     * Does nothing by default.
+     *
+     * @param path      Path to the RRD file
+     * @param processed Number of files processed so far
+     * @param total     Number of files to process
+     */
+    protected void fileProcessed(String path, int processed, int total) {
+    }
+
+    /**
+     * Called from a worker thread when a file cannot be processed, before
+     * {@link #fileProcessed(String, int, int)}. Does nothing by default, failures are
+     * returned by {@link #apply(String[])}.
+     *
+     * @param path Path to the RRD file
+     * @param e    Cause of the failure
+     */
+    protected void fileFailed(String path, Exception e) {
+    }
+
+    private void process(String path) throws IOException {
+        File file = new File(path);
+        File tmpFile = null;
+        throttle(file.length());
+        try {
+            RrdDb rrd = new RrdDb(path);
+            try {
+                RrdDef rrdDef = rrd.getRrdDef();
+                // other changes are made to the copy too, so that a failing one leaves the file unchanged
+                boolean rewrite = !dbChanges.isEmpty();
+                for (DefChange change : defChanges) {
+                    rewrite |= change.apply(rrdDef);
+                }
+                if (rewrite) {
+                    tmpFile = File.createTempFile(file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+                    rrdDef.setPath(tmpFile.getPath());
+                    RrdDb rrdDest = new RrdDb(rrdDef);
+                    try {
+                        rrd.copyStateTo(rrdDest);
+                        applyDbChanges(rrdDest);
+                    }
+                    finally {
+                        rrdDest.close();
+                    }
+                }
+            }
+            finally {
+                rrd.close();
+            }
+            if (tmpFile != null) {
+                throttle(tmpFile.length());
+                RrdToolkit.copyFile(tmpFile.getPath(), path, saveBackup);
+                tmpFile = null;
+            }
+        }
+        finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private void applyDbChanges(RrdDb rrd) throws IOException {
+        for (DbChange change : dbChanges) {
+            change.apply(rrd);
+        }
+    }
+
+    private static Datasource getDatasource(RrdDb rrd, String dsName) throws IOException {
+        Datasource datasource = rrd.getDatasource(dsName);
+        if (datasource == null) {
+            throw new IllegalArgumentException("Could not find datasource [" + dsName + "] in file " + rrd.getPath());
+        }
+        return datasource;
+    }
+
+    private static Archive getArchive(RrdDb rrd, ConsolFun consolFun, int steps) throws IOException {
+        Archive archive = rrd.getArchive(consolFun, steps);
+        if (archive == null) {
+            throw new IllegalArgumentException("Could not find archive " + consolFun + "/" + steps + " in file " + rrd.getPath());
+        }
+        return archive;
+    }
+
+    // waits until the given number of bytes may be transferred
+    private void throttle(long bytes) throws InterruptedIOException {
+        long delay;
+        synchronized (this) {
+            if (maxBytesPerSecond == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long start = throttleTime - now > 0 ? throttleTime : now;
+            throttleTime = start + (long) (bytes * 1e9 / maxBytesPerSecond);
+            delay = start - now;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    // change to the definition, true if the file needs to be rewritten
+    private interface DefChange {
+        boolean apply(RrdDef rrdDef);
+    }
+
+    // change made in place
+    private interface DbChange {
+        void apply(RrdDb rrd) throws IOException;
+    }
+}
@@ -0,0 +1,417 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous updater for RRD files held in a {@link RrdDbPool}.<p>
+ *
+ * Samples submitted with {@link #submit(String, long, double...)} are queued per RRD file and
+ * stored by a bounded set of worker threads. Each worker drains all samples queued for a file
+ * in a single session: the file is requested from the pool once, all its samples are stored
+ * with {@link RrdDb#storeBatch(long[], double[][])}, and the file is released.<p>
+ *
+ * Samples of a given file are stored in submission order, and never by two workers at
+ * the same time. Files are identified by their canonical path. Samples not newer than the last
+ * update time of their file, or with more values than the file has datasources, cannot be
+ * stored: they are dropped and reported one by one to {@link #updateFailed(String, Exception)},
+ * the other samples of the file are still stored.<p>
+ *
+ * The number of queued samples is bounded: when the queue is full, {@link #submit(String, long, double...)}
+ * blocks until workers catch up.
+ * <pre>
+ * RrdUpdateQueue queue = new RrdUpdateQueue(RrdDbPool.getInstance(), 4, 100000);
+ * queue.submit("/path/file.rrd", time, value1, value2);
+ * ...
+ * queue.close();
+ * </pre>
+ */
+public class RrdUpdateQueue {
+    private final RrdDbPool pool;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore space;
+    private final int capacity;
+    private final Map<String, FileQueue> queues = new HashMap<String, FileQueue>();
+    private volatile boolean closed = false;
+
+    // number of samples submitted but not yet stored or dropped
+    private long pending = 0;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong drainCount = new AtomicLong();
+    private final AtomicLong drainTime = new AtomicLong();
+    private final AtomicLong latencyTotal = new AtomicLong();
+    private final AtomicLong latencyMax = new AtomicLong();
+
+    /**
+     * Creates a new update queue.
+     *
+     * @param pool     Pool used to open RRD files
+     * @param threads  Number of worker threads
+     * @param capacity Maximum number of samples queued before submitters get blocked
+     */
+    public RrdUpdateQueue(RrdDbPool pool, int threads, int capacity) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.pool = pool;
+        this.capacity = capacity;
+        this.space = new Semaphore(capacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new RrdNioBackendFactory.DaemonThreadFactory("RRD4J Update Queue"));
+    }
+
+    /**
+     * Queues a sample for the given RRD file, waiting if the queue is full. Data source values
+     * are assigned in the order of their definition inside the RRD, missing values are unknown.
+     *
+     * @param path   Path to the RRD file
+     * @param time   Sample timestamp, in seconds
+     * @param values Some (possibly all) data source values
+     * @throws InterruptedIOException Thrown if the thread gets interrupted while waiting
+     * @throws IOException Thrown if the canonical path of the file cannot be resolved
+     * @throws IllegalStateException Thrown if the queue is closed
+     */
+    public void submit(String path, long time, double... values) throws IOException {
+        String canonicalPath = Util.getCanonicalPath(path);
+        try {
+            space.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for space in the update queue");
+        }
+        enqueue(canonicalPath, time, values);
+    }
+
+    /**
+     * Queues a sample for the given RRD file, waiting at most for the given time if the queue is full.
+     *
+     * @param path    Path to the RRD file
+     * @param time    Sample timestamp, in seconds
+     * @param timeout Maximum time to wait
+     * @param unit    Time unit of the timeout argument
+     * @param values  Some (possibly all) data source values
+     * @return true if the sample was queued, false if the queue stayed full
+     * @throws InterruptedIOException Thrown if the thread gets interrupted while waiting
+     * @throws IOException Thrown if the canonical path of the file cannot be resolved
+     * @throws IllegalStateException Thrown if the queue is closed
+     */
+    public boolean offer(String path, long time, long timeout, TimeUnit unit, double... values)
+            throws IOException {
+        String canonicalPath = Util.getCanonicalPath(path);
+        try {
+            if (!space.tryAcquire(timeout, unit)) {
+                return false;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for space in the update queue");
+        }
+        enqueue(canonicalPath, time, values);
+        return true;
+    }
+
+    private void enqueue(String path, long time, double[] values) {
+        QueuedSample sample = new QueuedSample(time, values.clone(), System.nanoTime());
+        FileQueue fileQueue;
+        boolean schedule;
+        synchronized (queues) {
+            if (closed) {
+                space.release();
+                throw new IllegalStateException("Update queue already closed");
+            }
+            pending++;
+            fileQueue = queues.get(path);
+            if (fileQueue == null) {
+                fileQueue = new FileQueue(path);
+                queues.put(path, fileQueue);
+            }
+            fileQueue.samples.add(sample);
+            schedule = !fileQueue.scheduled;
+            fileQueue.scheduled = true;
+        }
+        submittedCount.incrementAndGet();
+        if (schedule) {
+            executor.execute(fileQueue);
+        }
+    }
+
+    private void drain(FileQueue fileQueue) {
+        List<QueuedSample> samples;
+        synchronized (queues) {
+            samples = fileQueue.samples;
+            fileQueue.samples = new ArrayList<QueuedSample>();
+        }
+        long start = System.nanoTime();
+        int stored = 0;
+        List<Exception> failures = new ArrayList<Exception>();
+        try {
+            try {
+                stored = store(fileQueue.path, samples, failures);
+            }
+            catch (Exception e) {
+                failures.add(e);
+            }
+            for (Exception failure : failures) {
+                updateFailed(fileQueue.path, failure);
+            }
+        }
+        finally {
+            // done even if updateFailed() throws, so that the file does not stay scheduled forever
+            long end = System.nanoTime();
+            drainCount.incrementAndGet();
+            drainTime.addAndGet(end - start);
+            storedCount.addAndGet(stored);
+            failedCount.addAndGet(samples.size() - stored);
+            long latency = end - samples.get(0).queued;
+            latencyTotal.addAndGet(latency);
+            long max = latencyMax.get();
+            while (latency > max && !latencyMax.compareAndSet(max, latency)) {
+                max = latencyMax.get();
+            }
+            space.release(samples.size());
+            boolean reschedule;
+            synchronized (queues) {
+                pending -= samples.size();
+                reschedule = !fileQueue.samples.isEmpty();
+                if (!reschedule) {
+                    fileQueue.scheduled = false;
+                    queues.remove(fileQueue.path);
+                }
+                if (pending == 0) {
+                    queues.notifyAll();
+                }
+            }
+            if (reschedule) {
+                // let other files go first
+                executor.execute(fileQueue);
+            }
+        }
+    }
+
+    // stores valid samples, rejected ones are added to the failures list
+    private int store(String path, List<QueuedSample> samples, List<Exception> failures) throws IOException {
+        RrdDb rrdDb = pool.requestRrdDb(path);
+        try {
+            SampleBatch batch = rrdDb.createSampleBatch();
+            int dsCount = rrdDb.getDsCount();
+            long lastTime = rrdDb.getLastUpdateTime();
+            for (QueuedSample sample : samples) {
+                if (sample.time <= lastTime) {
+                    failures.add(new IllegalArgumentException("Bad sample time: " + sample.time +
+                            ". Last update time was " + lastTime + ", at least one second step is required"));
+                    continue;
+                }
+                if (sample.values.length > dsCount) {
+                    failures.add(new IllegalArgumentException("Invalid number of values specified (found " +
+                            sample.values.length + ", only " + dsCount + " allowed)"));
+                    continue;
+                }
+                batch.add(sample.time, sample.values);
+                lastTime = sample.time;
+            }
+            int size = batch.getSize();
+            batch.update();
+            return size;
+        }
+        finally {
+            pool.release(rrdDb);
+        }
+    }
+
+    /**
+     * Called from a worker thread when queued samples cannot be stored, once for each rejected
+     * sample, or once for all the samples of a drain session which failed as a whole. Does nothing
+     * by default, failed samples are only counted (see {@link #getFailedCount()}).
+     *
+     * @param path  Canonical path to the RRD file
+     * @param e     Cause of the failure
+     */
+    protected void updateFailed(String path, Exception e) {
+    }
+
+    /**
+     * Waits until all samples submitted so far are stored.
+     *
+     * @throws InterruptedIOException Thrown if the thread gets interrupted while waiting
+     */
+    public void flush() throws InterruptedIOException {
+        synchronized (queues) {
+            while (pending > 0) {
+                try {
+                    queues.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing the update queue");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new samples, stores all queued ones and stops the worker threads.
+     *
+     * @throws InterruptedIOException Thrown if the thread gets interrupted while waiting
+     */
+    public void close() throws InterruptedIOException {
+        synchronized (queues) {
+            closed = true;
+        }
+        flush();
+        executor.shutdown();
+    }
+
+    /**
+     * Checks if this queue is closed.
+     *
+     * @return true if the queue no longer accepts samples
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the maximum number of queued samples.
+     *
+     * @return Queue capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of samples waiting to be stored, including the ones being stored.
+     *
+     * @return Queue depth
+     */
+    public long getQueueDepth() {
+        synchronized (queues) {
+            return pending;
+        }
+    }
+
+    /**
+     * Returns the number of RRD files with samples waiting to be stored.
+     *
+     * @return Number of pending files
+     */
+    public int getPendingFileCount() {
+        synchronized (queues) {
+            return queues.size();
+        }
+    }
+
+    /**
+     * Returns the number of samples submitted so far.
+     *
+     * @return Number of submitted samples
+     */
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    /**
+     * Returns the number of samples successfully stored so far.
+     *
+     * @return Number of stored samples
+     */
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    /**
+     * Returns the number of samples dropped because they could not be stored.
+     *
+     * @return Number of failed samples
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of drain sessions, each one storing all queued samples of a file.
+     *
+     * @return Number of drains
+     */
+    public long getDrainCount() {
+        return drainCount.get();
+    }
+
+    /**
+     * Returns the total time spent by workers in drain sessions.
+     *
+     * @param unit Time unit of the returned value
+     * @return Total drain time
+     */
+    public long getDrainTime(TimeUnit unit) {
+        return unit.convert(drainTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the average time between the submission of the oldest sample of a drain
+     * session and the end of the session.
+     *
+     * @param unit Time unit of the returned value
+     * @return Average drain latency
+     */
+    public long getAverageDrainLatency(TimeUnit unit) {
+        long drains = drainCount.get();
+        return drains == 0 ? 0 : unit.convert(latencyTotal.get() / drains, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time between the submission of a sample and the end of the
+     * drain session which stored it.
+     *
+     * @param unit Time unit of the returned value
+     * @return Maximum drain latency
+     */
+    public long getMaxDrainLatency(TimeUnit unit) {
+        return unit.convert(latencyMax.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private static final class QueuedSample {
+        final long time;
+        final double[] values;
+        final long queued;
+
+        QueuedSample(long time, double[] values, long queued) {
+            this.time = time;
+            this.values = values;
+            this.queued = queued;
+        }
+    }
+
+    private final class FileQueue implements Runnable {
+        final String path;
+        List<QueuedSample> samples = new ArrayList<QueuedSample>();
+        // true while a drain is queued or running
+        boolean scheduled = false;
+
+        FileQueue(String path) {
+            this.path = path;
+        }
+
+        public void run() {
+            drain(this);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Keeps track of RRD state primitives whose values are held in memory and not yet written
+ * to the backend. See {@link RrdDb#enableWriteBack(int)}.<p>
+ *
+ * Only header and datasource states, archive states and archive pointers are deferred.
+ * Archived values are written through, so they always reach the backend before the
+ * pointers which cover them.
+ */
+class RrdWriteBack {
+    /**
+     * Executor used to flush RRDs periodically.
+     */
+    static final ScheduledExecutorService flushExecutor =
+            Executors.newSingleThreadScheduledExecutor(new RrdNioBackendFactory.DaemonThreadFactory("RRD4J Flush"));
+
+    private final List<RrdPrimitive> dirtyPrimitives = new ArrayList<RrdPrimitive>();
+
+    void add(RrdPrimitive primitive) {
+        dirtyPrimitives.add(primitive);
+    }
+
+    boolean isDirty() {
+        return !dirtyPrimitives.isEmpty();
+    }
+
+    void flush() throws IOException {
+        int flushed = 0;
+        try {
+            for (RrdPrimitive primitive : dirtyPrimitives) {
+                primitive.flush();
+                flushed++;
+            }
+        }
+        finally {
+            // primitives not written yet stay dirty
+            dirtyPrimitives.subList(0, flushed).clear();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>Class to collect several samples and store them in a single operation. Objects of this
+ * class are never created directly (no public constructor is provided), use
+ * {@link RrdDb#createSampleBatch()} instead.</p>
+ * <p/>
+ * <p>Storing a batch gives the same result as updating each sample separately, but is
+ * much faster when lots of samples have to be stored at once, for example when backfilling
+ * historical data:</p>
+ * <pre>
+ * SampleBatch batch = rrdDb.createSampleBatch();
+ * for (...) {
+ *     batch.add(time, value1, value2);
+ * }
+ * batch.update();
+ * </pre>
+ * <p>Samples must be added in chronological order. Datasource values not supplied
+ * are treated as unknown.</p>
+ *
+ * @see RrdDb#storeBatch(long[], double[][])
+ */
+public class SampleBatch {
+    private final RrdDb parentDb;
+    private final int dsCount;
+    private long[] times = new long[16];
+    private double[][] values = new double[16][];
+    private int size = 0;
+
+    SampleBatch(RrdDb parentDb) throws IOException {
+        this.parentDb = parentDb;
+        this.dsCount = parentDb.getDsCount();
+    }
+
+    /**
+     * Adds a sample to this batch. Data source values are assigned in the order of
+     * their definition inside the RRD.
+     *
+     * @param time   Sample timestamp, in seconds.
+     * @param values Some (possibly all) data source values.
+     * @return This <code>SampleBatch</code> object
+     * @throws IllegalArgumentException Thrown if more values are supplied than the number
+     *                                  of data sources defined in the RRD.
+     */
+    public SampleBatch add(long time, double... values) {
+        if (values.length > dsCount) {
+            throw new IllegalArgumentException("Invalid number of values specified (found " +
+                    values.length + ", only " + dsCount + " allowed)");
+        }
+        if (size == times.length) {
+            long[] newTimes = new long[2 * size];
+            double[][] newValues = new double[2 * size][];
+            System.arraycopy(times, 0, newTimes, 0, size);
+            System.arraycopy(this.values, 0, newValues, 0, size);
+            times = newTimes;
+            this.values = newValues;
+        }
+        double[] sampleValues = new double[dsCount];
+        System.arraycopy(values, 0, sampleValues, 0, values.length);
+        Arrays.fill(sampleValues, values.length, dsCount, Double.NaN);
+        times[size] = time;
+        this.values[size] = sampleValues;
+        size++;
+        return this;
+    }
+
+    /**
+     * Adds a copy of the given sample to this batch.
+     *
+     * @param sample Sample to add
+     * @return This <code>SampleBatch</code> object
+     */
+    public SampleBatch add(Sample sample) {
+        return add(sample.getTime(), sample.getValues());
+    }
+
+    /**
+     * Returns the number of samples in this batch.
+     *
+     * @return Number of samples
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Stores all samples of this batch in the corresponding RRD. If the update operation
+     * succeedes, the batch gets emptied and can be reused.
+     *
+     * @throws IOException Thrown in case of I/O error.
+     * @throws IllegalArgumentException Thrown if samples are not in chronological order.
+     */
+    public void update() throws IOException {
+        long[] batchTimes = new long[size];
+        double[][] batchValues = new double[size][];
+        System.arraycopy(times, 0, batchTimes, 0, size);
+        System.arraycopy(values, 0, batchValues, 0, size);
+        parentDb.storeBatch(batchTimes, batchValues);
+        clear();
+    }
+
+    /**
+     * Removes all samples from this batch.
+     *
+     * @return This <code>SampleBatch</code> object
+     */
+    public SampleBatch clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        return this;
+    }
+}
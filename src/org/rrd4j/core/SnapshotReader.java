@@ -0,0 +1,305 @@
+package org.rrd4j.core;
+
+import org.rrd4j.ConsolFun;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Imports RRD snapshots written by {@link SnapshotWriter}. Definitions and states are read
+ * when the reader is created, archived values are read and decoded one block at a time,
+ * when requested.
+ */
+class SnapshotReader extends DataImporter {
+    private final String snapshotPath;
+    private RandomAccessFile file;
+    private final int compression;
+    private final int rrdVersion;
+    private final long step, lastUpdateTime;
+    private final String info;
+
+    private final String[] dsNames, dsTypes;
+    private final long[] heartbeats, nanSeconds;
+    private final double[] minValues, maxValues, lastValues, accumValues;
+
+    private final ConsolFun[] consolFuns;
+    private final double[] xffs;
+    private final int[] steps, rows;
+    private final double[][] stateAccumValues;
+    private final long[][] stateNanSteps;
+
+    // position and length of each value block, by archive and datasource
+    private final long[][] blockOffsets;
+    private final int[][] blockLengths, blockChecksums;
+    private byte[] block = new byte[0];
+
+    SnapshotReader(String snapshotPath) throws IOException {
+        this.snapshotPath = snapshotPath;
+        this.file = new RandomAccessFile(snapshotPath, "r");
+        try {
+            if (file.length() < 17 || file.readInt() != SnapshotWriter.MAGIC) {
+                throw new IOException("File " + snapshotPath + " is not a RRD4J snapshot");
+            }
+            int formatVersion = file.readInt();
+            if (formatVersion < 1 || formatVersion > SnapshotWriter.FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version " + formatVersion +
+                        " in file " + snapshotPath);
+            }
+            compression = file.readUnsignedByte();
+            if (compression != SnapshotWriter.RAW && compression != SnapshotWriter.XOR) {
+                throw new IOException("Unsupported snapshot compression " + compression +
+                        " in file " + snapshotPath);
+            }
+            int length = file.readInt();
+            int expectedChecksum = file.readInt();
+            if (length < 0 || file.getFilePointer() + length > file.length()) {
+                throw new IOException("Snapshot file " + snapshotPath + " is truncated");
+            }
+            byte[] bytes = new byte[length];
+            file.readFully(bytes);
+            verify(bytes, length, expectedChecksum);
+            DataInputStream definitions = new DataInputStream(new ByteArrayInputStream(bytes));
+            rrdVersion = definitions.readInt();
+            step = definitions.readLong();
+            lastUpdateTime = definitions.readLong();
+            info = formatVersion >= 2 ? definitions.readUTF() : null;
+            int dsCount = definitions.readInt();
+            int arcCount = definitions.readInt();
+            dsNames = new String[dsCount];
+            dsTypes = new String[dsCount];
+            heartbeats = new long[dsCount];
+            minValues = new double[dsCount];
+            maxValues = new double[dsCount];
+            lastValues = new double[dsCount];
+            accumValues = new double[dsCount];
+            nanSeconds = new long[dsCount];
+            for (int i = 0; i < dsCount; i++) {
+                dsNames[i] = definitions.readUTF();
+                dsTypes[i] = definitions.readUTF();
+                heartbeats[i] = definitions.readLong();
+                minValues[i] = definitions.readDouble();
+                maxValues[i] = definitions.readDouble();
+                lastValues[i] = definitions.readDouble();
+                accumValues[i] = definitions.readDouble();
+                nanSeconds[i] = definitions.readLong();
+            }
+            consolFuns = new ConsolFun[arcCount];
+            xffs = new double[arcCount];
+            steps = new int[arcCount];
+            rows = new int[arcCount];
+            stateAccumValues = new double[arcCount][dsCount];
+            stateNanSteps = new long[arcCount][dsCount];
+            for (int i = 0; i < arcCount; i++) {
+                consolFuns[i] = ConsolFun.valueOf(definitions.readUTF());
+                xffs[i] = definitions.readDouble();
+                steps[i] = definitions.readInt();
+                rows[i] = definitions.readInt();
+                for (int j = 0; j < dsCount; j++) {
+                    stateAccumValues[i][j] = definitions.readDouble();
+                    stateNanSteps[i][j] = definitions.readLong();
+                }
+            }
+            // locate value blocks, so that they can be read in any order
+            blockOffsets = new long[arcCount][dsCount];
+            blockLengths = new int[arcCount][dsCount];
+            blockChecksums = new int[arcCount][dsCount];
+            long position = file.getFilePointer();
+            byte[] sectionBytes = new byte[8];
+            for (int i = 0; i < arcCount; i++) {
+                for (int j = 0; j < dsCount; j++) {
+                    file.seek(position);
+                    file.readFully(sectionBytes);
+                    blockLengths[i][j] = (int) getBytes(sectionBytes, 0, 4);
+                    blockChecksums[i][j] = (int) getBytes(sectionBytes, 4, 4);
+                    blockOffsets[i][j] = position + 8;
+                    position += 8 + blockLengths[i][j];
+                    if (blockLengths[i][j] < 0 || position > file.length()) {
+                        throw new IOException("Snapshot file " + snapshotPath + " is truncated");
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            release();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    String getVersion() {
+        return Header.RRDTOOL_VERSION;
+    }
+
+    int getRrdVersion() {
+        return rrdVersion;
+    }
+
+    long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    long getStep() {
+        return step;
+    }
+
+    String getInfo() {
+        return info;
+    }
+
+    int getDsCount() {
+        return dsNames.length;
+    }
+
+    int getArcCount() {
+        return consolFuns.length;
+    }
+
+    String getDsName(int dsIndex) {
+        return dsNames[dsIndex];
+    }
+
+    String getDsType(int dsIndex) {
+        return dsTypes[dsIndex];
+    }
+
+    long getHeartbeat(int dsIndex) {
+        return heartbeats[dsIndex];
+    }
+
+    double getMinValue(int dsIndex) {
+        return minValues[dsIndex];
+    }
+
+    double getMaxValue(int dsIndex) {
+        return maxValues[dsIndex];
+    }
+
+    double getLastValue(int dsIndex) {
+        return lastValues[dsIndex];
+    }
+
+    double getAccumValue(int dsIndex) {
+        return accumValues[dsIndex];
+    }
+
+    long getNanSeconds(int dsIndex) {
+        return nanSeconds[dsIndex];
+    }
+
+    ConsolFun getConsolFun(int arcIndex) {
+        return consolFuns[arcIndex];
+    }
+
+    double getXff(int arcIndex) {
+        return xffs[arcIndex];
+    }
+
+    int getSteps(int arcIndex) {
+        return steps[arcIndex];
+    }
+
+    int getRows(int arcIndex) {
+        return rows[arcIndex];
+    }
+
+    double getStateAccumValue(int arcIndex, int dsIndex) {
+        return stateAccumValues[arcIndex][dsIndex];
+    }
+
+    int getStateNanSteps(int arcIndex, int dsIndex) {
+        return (int) stateNanSteps[arcIndex][dsIndex];
+    }
+
+    double[] getValues(int arcIndex, int dsIndex) throws IOException {
+        int length = blockLengths[arcIndex][dsIndex];
+        if (block.length < length) {
+            block = new byte[length];
+        }
+        file.seek(blockOffsets[arcIndex][dsIndex]);
+        file.readFully(block, 0, length);
+        verify(block, length, blockChecksums[arcIndex][dsIndex]);
+        double[] values = new double[rows[arcIndex]];
+        int end = compression == SnapshotWriter.XOR ?
+                decode(block, length, values) : decodeRaw(block, length, values);
+        if (end != length) {
+            throw new IOException("Corrupted value block in snapshot file " + snapshotPath);
+        }
+        return values;
+    }
+
+    private void verify(byte[] bytes, int length, int expectedChecksum) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, length);
+        if ((int) checksum.getValue() != expectedChecksum) {
+            throw new IOException("Checksum mismatch in snapshot file " + snapshotPath);
+        }
+    }
+
+    private static int decodeRaw(byte[] block, int length, double[] values) {
+        int pos = 0;
+        for (int i = 0; i < values.length && pos + 8 <= length; i++) {
+            values[i] = Double.longBitsToDouble(getBytes(block, pos, 8));
+            pos += 8;
+        }
+        return pos == values.length * 8 ? pos : -1;
+    }
+
+    private static int decode(byte[] block, int length, double[] values) {
+        int pos = 0;
+        long previous = 0;
+        int i = 0;
+        while (i < values.length && pos < length) {
+            int descriptor = block[pos++] & 0xFF;
+            if (descriptor == SnapshotWriter.REPEAT) {
+                int run = 0;
+                for (int shift = 0; pos < length; shift += 7) {
+                    int b = block[pos++];
+                    run |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                if (run > values.length - i) {
+                    return -1;
+                }
+                double value = Double.longBitsToDouble(previous);
+                for (int end = i + run; i < end; i++) {
+                    values[i] = value;
+                }
+            }
+            else {
+                int leading = descriptor >>> 4, trailing = descriptor & 0x0F;
+                int count = 8 - leading - trailing;
+                if (count <= 0 || pos + count > length) {
+                    return -1;
+                }
+                previous ^= getBytes(block, pos, count) << (trailing * 8);
+                pos += count;
+                values[i++] = Double.longBitsToDouble(previous);
+            }
+        }
+        return i == values.length ? pos : -1;
+    }
+
+    // reads the given number of bytes as the low-order bytes of a long, most significant first
+    private static long getBytes(byte[] block, int pos, int count) {
+        long bits = 0;
+        for (int end = pos + count; pos < end; pos++) {
+            bits = bits << 8 | (block[pos] & 0xFF);
+        }
+        return bits;
+    }
+
+    void release() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+}
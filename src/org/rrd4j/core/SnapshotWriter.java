@@ -0,0 +1,172 @@
+package org.rrd4j.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes RRD snapshots, a compact binary image of a RRD meant to be shipped between hosts and
+ * imported back with the <code>snapshot:/</code> prefix (see {@link SnapshotReader}).<p>
+ *
+ * A snapshot holds, in big-endian order: a magic number and format version, the compression
+ * mode, then the definitions section: the RRD layout version, the header (step, last update
+ * time and info string), the datasource definitions and states, the archive definitions and
+ * states. The archived values of each archive follow, one block per datasource, oldest value
+ * first. The definitions section and each value block are preceded by their length in bytes
+ * and their CRC32 checksum.<p>
+ *
+ * With compression on, each value is XORed with the previous one of its block, and only the
+ * non-zero bytes of the result are written after a one-byte descriptor. Runs of equal values,
+ * such as unknown values of a RRD not filled yet, take a few bytes.
+ */
+class SnapshotWriter {
+    static final int MAGIC = 0x52524453; // "RRDS"
+    // version 1 snapshots do not hold the info string
+    static final int FORMAT_VERSION = 2;
+
+    static final int RAW = 0;
+    static final int XOR = 1;
+
+    // descriptor of a run of values equal to the previous one, followed by the run length
+    static final int REPEAT = 0xFF;
+
+    private final DataOutputStream output;
+    private final boolean compress;
+    private byte[] block = new byte[1024];
+    private int blockLength;
+    private final CRC32 checksum = new CRC32();
+
+    SnapshotWriter(OutputStream destination, boolean compress) {
+        this.output = new DataOutputStream(new BufferedOutputStream(destination, 65536));
+        this.compress = compress;
+    }
+
+    void write(RrdDb rrdDb) throws IOException {
+        Header header = rrdDb.getHeader();
+        int dsCount = header.getDsCount();
+        int arcCount = header.getArcCount();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream definitions = new DataOutputStream(bytes);
+        definitions.writeInt(header.getVersion());
+        definitions.writeLong(header.getStep());
+        definitions.writeLong(header.getLastUpdateTime());
+        definitions.writeUTF(header.getInfo());
+        definitions.writeInt(dsCount);
+        definitions.writeInt(arcCount);
+        for (int i = 0; i < dsCount; i++) {
+            Datasource datasource = rrdDb.getDatasource(i);
+            definitions.writeUTF(datasource.getDsName());
+            definitions.writeUTF(datasource.getDsType().name());
+            definitions.writeLong(datasource.getHeartbeat());
+            definitions.writeDouble(datasource.getMinValue());
+            definitions.writeDouble(datasource.getMaxValue());
+            definitions.writeDouble(datasource.getLastValue());
+            definitions.writeDouble(datasource.getAccumValue());
+            definitions.writeLong(datasource.getNanSeconds());
+        }
+        for (int i = 0; i < arcCount; i++) {
+            Archive archive = rrdDb.getArchive(i);
+            definitions.writeUTF(archive.getConsolFun().name());
+            definitions.writeDouble(archive.getXff());
+            definitions.writeInt(archive.getSteps());
+            definitions.writeInt(archive.getRows());
+            for (int j = 0; j < dsCount; j++) {
+                ArcState state = archive.getArcState(j);
+                definitions.writeDouble(state.getAccumValue());
+                definitions.writeLong(state.getNanSteps());
+            }
+        }
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeByte(compress ? XOR : RAW);
+        byte[] definitionBytes = bytes.toByteArray();
+        writeSection(definitionBytes, definitionBytes.length);
+        for (int i = 0; i < arcCount; i++) {
+            Archive archive = rrdDb.getArchive(i);
+            for (int j = 0; j < dsCount; j++) {
+                double[] values = archive.getRobin(j).getValues();
+                if (compress) {
+                    encode(values);
+                }
+                else {
+                    encodeRaw(values);
+                }
+                writeSection(block, blockLength);
+            }
+        }
+        output.flush();
+    }
+
+    private void writeSection(byte[] bytes, int length) throws IOException {
+        checksum.reset();
+        checksum.update(bytes, 0, length);
+        output.writeInt(length);
+        output.writeInt((int) checksum.getValue());
+        output.write(bytes, 0, length);
+    }
+
+    private void encodeRaw(double[] values) {
+        blockLength = 0;
+        ensureCapacity(values.length * 8);
+        for (double value : values) {
+            putBytes(Double.doubleToRawLongBits(value), 8);
+        }
+    }
+
+    private void encode(double[] values) {
+        blockLength = 0;
+        long previous = 0;
+        int run = 0;
+        for (double value : values) {
+            long bits = Double.doubleToRawLongBits(value);
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                run++;
+                continue;
+            }
+            if (run > 0) {
+                putRun(run);
+                run = 0;
+            }
+            // descriptor: number of leading zero bytes, then number of trailing zero bytes
+            int leading = Long.numberOfLeadingZeros(xor) / 8;
+            int trailing = Long.numberOfTrailingZeros(xor) / 8;
+            ensureCapacity(9);
+            block[blockLength++] = (byte) (leading << 4 | trailing);
+            putBytes(xor >>> (trailing * 8), 8 - leading - trailing);
+        }
+        if (run > 0) {
+            putRun(run);
+        }
+    }
+
+    private void putRun(int run) {
+        ensureCapacity(6);
+        block[blockLength++] = (byte) REPEAT;
+        // variable length, 7 bits at a time
+        while (run >= 0x80) {
+            block[blockLength++] = (byte) (run & 0x7F | 0x80);
+            run >>>= 7;
+        }
+        block[blockLength++] = (byte) run;
+    }
+
+    // writes the given number of low-order bytes, most significant first
+    private void putBytes(long bits, int count) {
+        for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+            block[blockLength++] = (byte) (bits >>> shift);
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        if (blockLength + count > block.length) {
+            byte[] newBlock = new byte[Math.max(block.length * 2, blockLength + count)];
+            System.arraycopy(block, 0, newBlock, 0, blockLength);
+            block = newBlock;
+        }
+    }
+}
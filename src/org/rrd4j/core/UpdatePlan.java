@@ -0,0 +1,224 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+
+/**
+ * Definition of a RRD as needed to store samples: datasource types, consolidation functions
+ * and other constants are resolved once, so that updates neither read nor parse them again.
+ * The plan gets built by {@link RrdDb} on the first update and dropped whenever the
+ * definition changes.
+ */
+final class UpdatePlan {
+    private static final double MAX_32_BIT = Math.pow(2, 32);
+    private static final double MAX_64_BIT = Math.pow(2, 64);
+
+    final long step;
+    final DsPlan[] datasources;
+    final ArcPlan[] archives;
+
+    UpdatePlan(Header header, Datasource[] datasources, Archive[] archives) throws IOException {
+        this.step = header.getStep();
+        this.datasources = new DsPlan[datasources.length];
+        for (int i = 0; i < datasources.length; i++) {
+            this.datasources[i] = DsPlan.create(datasources[i]);
+        }
+        this.archives = new ArcPlan[archives.length];
+        for (int i = 0; i < archives.length; i++) {
+            this.archives[i] = ArcPlan.create(archives[i]);
+        }
+    }
+
+    /**
+     * Turns raw datasource values into rates, according to the datasource type.
+     */
+    abstract static class DsPlan {
+        final long heartbeat;
+        final double minValue, maxValue;
+        final boolean forceZeros;
+
+        DsPlan(Datasource datasource) throws IOException {
+            heartbeat = datasource.getHeartbeat();
+            minValue = datasource.getMinValue();
+            maxValue = datasource.getMaxValue();
+            forceZeros = datasource.getDsName().endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX);
+        }
+
+        static DsPlan create(Datasource datasource) throws IOException {
+            switch (datasource.getDsType()) {
+                case GAUGE:
+                    return new Gauge(datasource);
+                case COUNTER:
+                    return new Counter(datasource);
+                case ABSOLUTE:
+                    return new Absolute(datasource);
+                case DERIVE:
+                    return new Derive(datasource);
+                default:
+                    throw new IllegalArgumentException("Unsupported datasource type: " + datasource.getDsType());
+            }
+        }
+
+        /**
+         * Returns the value to accumulate between <code>oldTime</code> and <code>newTime</code>,
+         * NaN if unknown or out of the allowed range.
+         */
+        final double updateValue(long oldTime, double oldValue, long newTime, double newValue) {
+            if (newTime - oldTime > heartbeat) {
+                return Double.NaN;
+            }
+            double updateValue = rate(oldTime, oldValue, newTime, newValue);
+            if (!Double.isNaN(updateValue)) {
+                if (!Double.isNaN(minValue) && updateValue < minValue) {
+                    updateValue = Double.NaN;
+                }
+                if (!Double.isNaN(maxValue) && updateValue > maxValue) {
+                    updateValue = Double.NaN;
+                }
+            }
+            return updateValue;
+        }
+
+        abstract double rate(long oldTime, double oldValue, long newTime, double newValue);
+    }
+
+    static final class Gauge extends DsPlan {
+        Gauge(Datasource datasource) throws IOException {
+            super(datasource);
+        }
+
+        double rate(long oldTime, double oldValue, long newTime, double newValue) {
+            return newValue;
+        }
+    }
+
+    static final class Counter extends DsPlan {
+        Counter(Datasource datasource) throws IOException {
+            super(datasource);
+        }
+
+        double rate(long oldTime, double oldValue, long newTime, double newValue) {
+            if (Double.isNaN(newValue) || Double.isNaN(oldValue)) {
+                return Double.NaN;
+            }
+            double diff = newValue - oldValue;
+            if (diff < 0) {
+                diff += MAX_32_BIT;
+            }
+            if (diff < 0) {
+                diff += MAX_64_BIT - MAX_32_BIT;
+            }
+            return diff >= 0 ? diff / (newTime - oldTime) : Double.NaN;
+        }
+    }
+
+    static final class Absolute extends DsPlan {
+        Absolute(Datasource datasource) throws IOException {
+            super(datasource);
+        }
+
+        double rate(long oldTime, double oldValue, long newTime, double newValue) {
+            return Double.isNaN(newValue) ? Double.NaN : newValue / (newTime - oldTime);
+        }
+    }
+
+    static final class Derive extends DsPlan {
+        Derive(Datasource datasource) throws IOException {
+            super(datasource);
+        }
+
+        double rate(long oldTime, double oldValue, long newTime, double newValue) {
+            if (Double.isNaN(newValue) || Double.isNaN(oldValue)) {
+                return Double.NaN;
+            }
+            return (newValue - oldValue) / (newTime - oldTime);
+        }
+    }
+
+    /**
+     * Consolidates primary data points according to the archive consolidation function.
+     */
+    abstract static class ArcPlan {
+        final int steps, rows;
+        final double xff;
+        final boolean average;
+
+        ArcPlan(Archive archive) throws IOException {
+            steps = archive.getSteps();
+            rows = archive.getRows();
+            xff = archive.getXff();
+            average = this instanceof Average;
+        }
+
+        static ArcPlan create(Archive archive) throws IOException {
+            switch (archive.getConsolFun()) {
+                case AVERAGE:
+                    return new Average(archive);
+                case MIN:
+                    return new Min(archive);
+                case MAX:
+                    return new Max(archive);
+                case LAST:
+                    return new Last(archive);
+                default:
+                    return new Unsupported(archive);
+            }
+        }
+
+        /**
+         * Returns the new accumulated value once the known value <code>value</code> gets
+         * consolidated <code>count</code> times in a row, without iterating.
+         */
+        abstract double accumulate(double accumValue, double value, long count);
+    }
+
+    static final class Average extends ArcPlan {
+        Average(Archive archive) throws IOException {
+            super(archive);
+        }
+
+        double accumulate(double accumValue, double value, long count) {
+            return Util.sum(accumValue, count == 1 ? value : value * count);
+        }
+    }
+
+    static final class Min extends ArcPlan {
+        Min(Archive archive) throws IOException {
+            super(archive);
+        }
+
+        double accumulate(double accumValue, double value, long count) {
+            return Util.min(accumValue, value);
+        }
+    }
+
+    static final class Max extends ArcPlan {
+        Max(Archive archive) throws IOException {
+            super(archive);
+        }
+
+        double accumulate(double accumValue, double value, long count) {
+            return Util.max(accumValue, value);
+        }
+    }
+
+    static final class Last extends ArcPlan {
+        Last(Archive archive) throws IOException {
+            super(archive);
+        }
+
+        double accumulate(double accumValue, double value, long count) {
+            return value;
+        }
+    }
+
+    // consolidation functions archives do not compute, their accumulated value is left alone
+    static final class Unsupported extends ArcPlan {
+        Unsupported(Archive archive) throws IOException {
+            super(archive);
+        }
+
+        double accumulate(double accumValue, double value, long count) {
+            return accumValue;
+        }
+    }
+}
@@ -1,114 +1,419 @@
 package org.rrd4j.core;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.rrd4j.ConsolFun;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
-import java.io.File;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Reads RRD XML dumps with a streaming (SAX) parser. The dump is parsed twice: the first pass
+ * keeps everything but archived values, which are only counted; the second pass streams the
+ * values of all archives straight into the robins of the RRD being created, a block of rows
+ * at a time. Memory usage does not depend on the number of archived rows.
+ */
 class XmlReader extends DataImporter {
+    // number of rows buffered before being written to robins
+    private static final int ROW_BLOCK = 4096;
 
-    private Element root;
-    private Node[] dsNodes, arcNodes;
+    private final String xmlFilePath;
+    private final SAXParser parser;
+
+    private final Map<String, String> rootValues = new HashMap<String, String>();
+    private final List<Map<String, String>> dsValues = new ArrayList<Map<String, String>>();
+    private final List<ArcValues> arcValues = new ArrayList<ArcValues>();
 
     XmlReader(String xmlFilePath) throws IOException {
-        root = Util.Xml.getRootElement(new File(xmlFilePath));
-        dsNodes = Util.Xml.getChildNodes(root, "ds");
-        arcNodes = Util.Xml.getChildNodes(root, "rra");
+        this.xmlFilePath = xmlFilePath;
+        try {
+            parser = SAXParserFactory.newInstance().newSAXParser();
+        }
+        catch (ParserConfigurationException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        catch (SAXException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        parse(new DefinitionHandler());
+    }
+
+    private void parse(DefaultHandler handler) throws IOException {
+        // the parser decodes the file with the encoding it declares
+        InputStream input = new BufferedInputStream(new FileInputStream(xmlFilePath));
+        try {
+            parser.parse(input, handler);
+        }
+        catch (SAXException e) {
+            if (e.getException() instanceof IOException) {
+                throw (IOException) e.getException();
+            }
+            if (e.getException() instanceof RuntimeException) {
+                throw (RuntimeException) e.getException();
+            }
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private static void putValue(Map<String, String> values, String name, String value) {
+        if (!values.containsKey(name)) {
+            values.put(name, value);
+        }
+    }
+
+    private static String getValue(Map<String, String> values, String name) {
+        String value = values.get(name);
+        if (value == null) {
+            throw new IllegalStateException("XML Error, no such child: " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> getState(ArcValues arc, int dsIndex) {
+        if (arc.states == null) {
+            throw new IllegalArgumentException("XML Error, no such child: cdp_prep");
+        }
+        return arc.states.get(dsIndex);
     }
 
     String getVersion() {
-        return Util.Xml.getChildValue(root, "version");
+        return getValue(rootValues, "version");
     }
 
     long getLastUpdateTime() {
-        return Util.Xml.getChildValueAsLong(root, "lastupdate");
+        return Long.parseLong(getValue(rootValues, "lastupdate"));
     }
 
     long getStep() {
-        return Util.Xml.getChildValueAsLong(root, "step");
+        return Long.parseLong(getValue(rootValues, "step"));
     }
 
     int getDsCount() {
-        return dsNodes.length;
+        return dsValues.size();
     }
 
     int getArcCount() {
-        return arcNodes.length;
+        return arcValues.size();
     }
 
     String getDsName(int dsIndex) {
-        return Util.Xml.getChildValue(dsNodes[dsIndex], "name");
+        return getValue(dsValues.get(dsIndex), "name");
     }
 
     String getDsType(int dsIndex) {
-        return Util.Xml.getChildValue(dsNodes[dsIndex], "type");
+        return getValue(dsValues.get(dsIndex), "type");
     }
 
     long getHeartbeat(int dsIndex) {
-        return Util.Xml.getChildValueAsLong(dsNodes[dsIndex], "minimal_heartbeat");
+        return Long.parseLong(getValue(dsValues.get(dsIndex), "minimal_heartbeat"));
     }
 
     double getMinValue(int dsIndex) {
-        return Util.Xml.getChildValueAsDouble(dsNodes[dsIndex], "min");
+        return Util.parseDouble(getValue(dsValues.get(dsIndex), "min"));
     }
 
     double getMaxValue(int dsIndex) {
-        return Util.Xml.getChildValueAsDouble(dsNodes[dsIndex], "max");
+        return Util.parseDouble(getValue(dsValues.get(dsIndex), "max"));
     }
 
     double getLastValue(int dsIndex) {
-        return Util.Xml.getChildValueAsDouble(dsNodes[dsIndex], "last_ds");
+        return Util.parseDouble(getValue(dsValues.get(dsIndex), "last_ds"));
     }
 
     double getAccumValue(int dsIndex) {
-        return Util.Xml.getChildValueAsDouble(dsNodes[dsIndex], "value");
+        return Util.parseDouble(getValue(dsValues.get(dsIndex), "value"));
     }
 
     long getNanSeconds(int dsIndex) {
-        return Util.Xml.getChildValueAsLong(dsNodes[dsIndex], "unknown_sec");
+        return Long.parseLong(getValue(dsValues.get(dsIndex), "unknown_sec"));
     }
 
     ConsolFun getConsolFun(int arcIndex) {
-        return ConsolFun.valueOf(Util.Xml.getChildValue(arcNodes[arcIndex], "cf"));
+        return ConsolFun.valueOf(getValue(arcValues.get(arcIndex).values, "cf"));
     }
 
     double getXff(int arcIndex) {
-        return Util.Xml.getChildValueAsDouble(arcNodes[arcIndex], "xff");
+        return Util.parseDouble(getValue(arcValues.get(arcIndex).values, "xff"));
     }
 
     int getSteps(int arcIndex) {
-        return Util.Xml.getChildValueAsInt(arcNodes[arcIndex], "pdp_per_row");
+        return Integer.parseInt(getValue(arcValues.get(arcIndex).values, "pdp_per_row"));
     }
 
     double getStateAccumValue(int arcIndex, int dsIndex) {
-        Node cdpNode = Util.Xml.getFirstChildNode(arcNodes[arcIndex], "cdp_prep");
-        Node[] dsNodes = Util.Xml.getChildNodes(cdpNode, "ds");
-        return Util.Xml.getChildValueAsDouble(dsNodes[dsIndex], "value");
+        return Util.parseDouble(getValue(getState(arcValues.get(arcIndex), dsIndex), "value"));
     }
 
     int getStateNanSteps(int arcIndex, int dsIndex) {
-        Node cdpNode = Util.Xml.getFirstChildNode(arcNodes[arcIndex], "cdp_prep");
-        Node[] dsNodes = Util.Xml.getChildNodes(cdpNode, "ds");
-        return Util.Xml.getChildValueAsInt(dsNodes[dsIndex], "unknown_datapoints");
+        return Integer.parseInt(getValue(getState(arcValues.get(arcIndex), dsIndex), "unknown_datapoints"));
     }
 
     int getRows(int arcIndex) {
-        Node dbNode = Util.Xml.getFirstChildNode(arcNodes[arcIndex], "database");
-        Node[] rows = Util.Xml.getChildNodes(dbNode, "row");
-        return rows.length;
+        int rows = arcValues.get(arcIndex).rows;
+        if (rows < 0) {
+            throw new IllegalArgumentException("XML Error, no such child: database");
+        }
+        return rows;
     }
 
-    double[] getValues(int arcIndex, int dsIndex) {
-        Node dbNode = Util.Xml.getFirstChildNode(arcNodes[arcIndex], "database");
-        Node[] rows = Util.Xml.getChildNodes(dbNode, "row");
-        double[] values = new double[rows.length];
-        for (int i = 0; i < rows.length; i++) {
-            Node[] vNodes = Util.Xml.getChildNodes(rows[i], "v");
-            Node vNode = vNodes[dsIndex];
-            values[i] = Util.parseDouble(vNode.getFirstChild().getNodeValue().trim());
-        }
+    double[] getValues(int arcIndex, int dsIndex) throws IOException {
+        final double[] values = new double[getRows(arcIndex)];
+        final int column = dsIndex;
+        RowHandler[] handlers = new RowHandler[getArcCount()];
+        handlers[arcIndex] = new RowHandler() {
+            public void rows(double[][] columns, int first, int count) {
+                System.arraycopy(columns[column], 0, values, first, count);
+            }
+        };
+        parse(new ValueHandler(handlers));
         return values;
     }
+
+    void importValues(Robin[][] robins) throws IOException {
+        RowHandler[] handlers = new RowHandler[robins.length];
+        for (int i = 0; i < robins.length; i++) {
+            final Robin[] arcRobins = robins[i];
+            handlers[i] = new RowHandler() {
+                public void rows(double[][] columns, int first, int count) throws IOException {
+                    for (int j = 0; j < arcRobins.length; j++) {
+                        arcRobins[j].store(columns[j], count);
+                    }
+                }
+            };
+        }
+        parse(new ValueHandler(handlers));
+    }
+
+    private interface RowHandler {
+        void rows(double[][] columns, int first, int count) throws IOException;
+    }
+
+    private static class ArcValues {
+        final Map<String, String> values = new HashMap<String, String>();
+        List<Map<String, String>> states;
+        int rows = -1;
+    }
+
+    /**
+     * First pass: keeps the first value of each child element of the root, datasource, archive
+     * and archive state elements, and counts the rows of each archive.
+     */
+    private class DefinitionHandler extends DefaultHandler {
+        private int depth = 0;
+        private Map<String, String> ds;
+        private ArcValues arc;
+        private boolean inStates, inDatabase;
+        private Map<String, String> state;
+
+        // element whose text is being read
+        private Map<String, String> valueMap;
+        private String valueName;
+        private int valueDepth;
+        private final StringBuilder text = new StringBuilder();
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            depth++;
+            if (depth == 2) {
+                if (qName.equals("ds")) {
+                    ds = new HashMap<String, String>();
+                    dsValues.add(ds);
+                }
+                else if (qName.equals("rra")) {
+                    arc = new ArcValues();
+                    arcValues.add(arc);
+                }
+                else {
+                    startValue(rootValues, qName);
+                }
+            }
+            else if (depth == 3 && ds != null) {
+                startValue(ds, qName);
+            }
+            else if (depth == 3 && arc != null) {
+                if (qName.equals("cdp_prep") && arc.states == null) {
+                    arc.states = new ArrayList<Map<String, String>>();
+                    inStates = true;
+                }
+                else if (qName.equals("database") && arc.rows < 0) {
+                    arc.rows = 0;
+                    inDatabase = true;
+                }
+                else {
+                    startValue(arc.values, qName);
+                }
+            }
+            else if (depth == 4 && inStates && qName.equals("ds")) {
+                state = new HashMap<String, String>();
+                arc.states.add(state);
+            }
+            else if (depth == 4 && inDatabase && qName.equals("row")) {
+                arc.rows++;
+            }
+            else if (depth == 5 && state != null) {
+                startValue(state, qName);
+            }
+        }
+
+        private void startValue(Map<String, String> values, String name) {
+            valueMap = values;
+            valueName = name;
+            valueDepth = depth;
+            text.setLength(0);
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            // text of nested elements is skipped
+            if (valueMap != null && depth == valueDepth) {
+                text.append(ch, start, length);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            if (valueMap != null && depth == valueDepth) {
+                putValue(valueMap, valueName, text.toString().trim());
+                valueMap = null;
+            }
+            if (depth == 2) {
+                ds = null;
+                arc = null;
+            }
+            else if (depth == 3) {
+                inStates = false;
+                inDatabase = false;
+            }
+            else if (depth == 4) {
+                state = null;
+            }
+            depth--;
+        }
+    }
+
+    /**
+     * Second pass: streams the rows of the first database element of each archive with
+     * a handler, a block of rows at a time.
+     */
+    private class ValueHandler extends DefaultHandler {
+        private final RowHandler[] handlers;
+        private final int dsCount = getDsCount();
+        private final double[][] columns;
+        private int depth = 0;
+
+        private int arcIndex = -1;
+        private boolean databaseSeen, inDatabase, inRow, inValue;
+        private int rows, rowIndex, blockSize, dsIndex;
+        private final StringBuilder text = new StringBuilder();
+
+        ValueHandler(RowHandler[] handlers) {
+            this.handlers = handlers;
+            int maxRows = 0;
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlers[i] != null) {
+                    maxRows = Math.max(maxRows, getRows(i));
+                }
+            }
+            columns = new double[dsCount][Math.min(maxRows, ROW_BLOCK)];
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            depth++;
+            if (depth == 2 && qName.equals("rra")) {
+                arcIndex++;
+                databaseSeen = false;
+                if (arcIndex >= handlers.length) {
+                    throw modified();
+                }
+            }
+            else if (depth == 3 && arcIndex >= 0 && !databaseSeen && qName.equals("database")) {
+                databaseSeen = true;
+                if (handlers[arcIndex] != null) {
+                    inDatabase = true;
+                    rows = getRows(arcIndex);
+                    rowIndex = 0;
+                    blockSize = 0;
+                }
+            }
+            else if (depth == 4 && inDatabase && qName.equals("row")) {
+                if (rowIndex + blockSize == rows) {
+                    throw modified();
+                }
+                inRow = true;
+                dsIndex = 0;
+            }
+            else if (depth == 5 && inRow && qName.equals("v") && dsIndex < dsCount) {
+                inValue = true;
+                text.setLength(0);
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (inValue && depth == 5) {
+                text.append(ch, start, length);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (depth == 5 && inValue) {
+                columns[dsIndex++][blockSize] = Util.parseDouble(text.toString().trim());
+                inValue = false;
+            }
+            else if (depth == 4 && inRow) {
+                if (dsIndex < dsCount) {
+                    throw new IllegalArgumentException("XML Error, row " + (rowIndex + blockSize) +
+                            " of archive " + arcIndex + " holds " + dsIndex + " values, " + dsCount + " expected");
+                }
+                inRow = false;
+                if (++blockSize == columns[0].length) {
+                    flushRows();
+                }
+            }
+            else if (depth == 3 && inDatabase) {
+                if (blockSize > 0) {
+                    flushRows();
+                }
+                if (rowIndex != rows) {
+                    throw modified();
+                }
+                inDatabase = false;
+            }
+            else if (depth == 2 && arcIndex >= 0 && qName.equals("rra") && !databaseSeen) {
+                throw modified();
+            }
+            depth--;
+        }
+
+        public void endDocument() throws SAXException {
+            if (arcIndex != handlers.length - 1) {
+                throw modified();
+            }
+        }
+
+        private void flushRows() throws SAXException {
+            try {
+                handlers[arcIndex].rows(columns, rowIndex, blockSize);
+            }
+            catch (IOException e) {
+                throw new SAXException(e);
+            }
+            rowIndex += blockSize;
+            blockSize = 0;
+        }
+
+        private SAXException modified() {
+            return new SAXException(new IOException("XML file " + xmlFilePath + " modified during import"));
+        }
+    }
 }
\ No newline at end of file
@@ -12,9 +12,22 @@ import java.util.Stack;
 public class XmlWriter {
     static final String INDENT_STR = "   ";
 
+    // powers of ten used to scale doubles to 11 significant digits, see formatScientific()
+    private static final double[] POWERS_OF_TEN = new double[309];
+
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Double.parseDouble("1E" + i);
+        }
+    }
+
+    private static final String POSITIVE_ZERO = Util.formatDouble(0.0, true);
+    private static final String NEGATIVE_ZERO = Util.formatDouble(-0.0, true);
+
     private PrintWriter writer;
-    private StringBuilder indent = new StringBuilder("");
+    private String indent = "";
     private Stack<String> openTags = new Stack<String>();
+    private final char[] number = new char[24];
 
     /**
      * Creates XmlWriter with the specified output stream to send XML code to.
@@ -22,7 +35,18 @@ public class XmlWriter {
      * @param stream Output stream which receives XML code
      */
     public XmlWriter(OutputStream stream) {
-        writer = new PrintWriter(stream, true);
+        this(stream, true);
+    }
+
+    /**
+     * Creates XmlWriter with the specified output stream to send XML code to. Without
+     * automatic flushing, XML code is buffered until {@link #flush()} gets called.
+     *
+     * @param stream    Output stream which receives XML code
+     * @param autoFlush true if each line should be flushed to the stream
+     */
+    XmlWriter(OutputStream stream, boolean autoFlush) {
+        writer = new PrintWriter(stream, autoFlush);
     }
 
     /**
@@ -31,9 +55,13 @@ public class XmlWriter {
      * @param tag XML tag name
      */
     public void startTag(String tag) {
-        writer.println(indent + "<" + tag + ">");
+        writer.write(indent);
+        writer.write('<');
+        writer.write(tag);
+        writer.write('>');
+        writer.println();
         openTags.push(tag);
-        indent.append(INDENT_STR);
+        indent += INDENT_STR;
     }
 
     /**
@@ -41,8 +69,12 @@ public class XmlWriter {
      */
     public void closeTag() {
         String tag = openTags.pop();
-        indent.setLength(indent.length() - INDENT_STR.length());
-        writer.println(indent + "</" + tag + ">");
+        indent = indent.substring(INDENT_STR.length());
+        writer.write(indent);
+        writer.write("</");
+        writer.write(tag);
+        writer.write('>');
+        writer.println();
     }
 
     /**
@@ -52,13 +84,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, Object value) {
-        if (value != null) {
-            writer.println(indent + "<" + tag + ">" +
-                    escape(value.toString()) + "</" + tag + ">");
-        }
-        else {
-            writer.println(indent + "<" + tag + "></" + tag + ">");
-        }
+        writeEscapedTag(tag, value != null ? value.toString() : "");
     }
 
     /**
@@ -88,7 +114,15 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, double value, String nanString) {
-        writeTag(tag, Util.formatDouble(value, nanString, true));
+        int length = formatScientific(value);
+        if (length < 0) {
+            writeTag(tag, Util.formatDouble(value, nanString, true));
+        }
+        else {
+            writeStartTag(tag);
+            writer.write(number, 0, length);
+            writeEndTag(tag);
+        }
     }
 
     /**
@@ -98,7 +132,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, double value) {
-        writeTag(tag, Util.formatDouble(value, true));
+        writeTag(tag, value, "" + Double.NaN);
     }
 
     /**
@@ -175,10 +209,110 @@ public class XmlWriter {
      * @param comment comment string
      */
     public void writeComment(Object comment) {
-        writer.println(indent + "<!-- " + escape(comment.toString()) + " -->");
-	}
+        writer.write(indent);
+        writer.write("<!-- ");
+        writeEscaped(comment.toString());
+        writer.write(" -->");
+        writer.println();
+    }
+
+    private void writeEscapedTag(String tag, String value) {
+        writeStartTag(tag);
+        writeEscaped(value);
+        writeEndTag(tag);
+    }
+
+    private void writeStartTag(String tag) {
+        writer.write(indent);
+        writer.write('<');
+        writer.write(tag);
+        writer.write('>');
+    }
 
-	private static String escape(String s) {
-		return s.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-	}
+    private void writeEndTag(String tag) {
+        writer.write("</");
+        writer.write(tag);
+        writer.write('>');
+        writer.println();
+    }
+
+    private void writeEscaped(String s) {
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '<' || c == '>') {
+                writer.write(s, start, i - start);
+                writer.write(c == '<' ? "&lt;" : "&gt;");
+                start = i + 1;
+            }
+        }
+        writer.write(s, start, s.length() - start);
+    }
+
+    /**
+     * Formats a double into the number buffer exactly as {@link Util#formatDouble(double)} does,
+     * without going through DecimalFormat. Returns the number of characters written, or -1 for
+     * values it does not handle: NaNs, infinities, extreme exponents and values too close
+     * to a rounding tie, which need exact decimal rounding.
+     */
+    int formatScientific(double x) {
+        if (x == 0) {
+            String zero = 1 / x > 0 ? POSITIVE_ZERO : NEGATIVE_ZERO;
+            zero.getChars(0, zero.length(), number, 0);
+            return zero.length();
+        }
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            return -1;
+        }
+        double abs = Math.abs(x);
+        if (abs < 1E-290 || abs > 1E300) {
+            return -1;
+        }
+        int exp = (int) Math.floor(Math.log10(abs));
+        double scaled = scale(abs, exp);
+        // log10() may be off by one around powers of ten
+        if (scaled < 1E10) {
+            scaled = scale(abs, --exp);
+        }
+        else if (scaled >= 1E11) {
+            scaled = scale(abs, ++exp);
+        }
+        if (scaled < 1E10 || scaled >= 1E11) {
+            return -1;
+        }
+        long digits = (long) scaled;
+        double fraction = scaled - digits;
+        // scaling is accurate to a few units of 1E-5 here, let DecimalFormat break ties
+        if (Math.abs(fraction - 0.5) < 1E-3) {
+            return -1;
+        }
+        if (fraction > 0.5 && ++digits == 100000000000L) {
+            digits = 10000000000L;
+            exp++;
+        }
+        // sign, then the 11 digits shifted right by one, then the first digit moved before the dot
+        number[0] = x < 0 ? '-' : '+';
+        for (int i = 12; i >= 2; i--) {
+            number[i] = (char) ('0' + digits % 10);
+            digits /= 10;
+        }
+        number[1] = number[2];
+        number[2] = '.';
+        int pos = 13;
+        number[pos++] = 'E';
+        if (exp < 0) {
+            number[pos++] = '-';
+            exp = -exp;
+        }
+        if (exp >= 100) {
+            number[pos++] = (char) ('0' + exp / 100);
+        }
+        number[pos++] = (char) ('0' + exp / 10 % 10);
+        number[pos++] = (char) ('0' + exp % 10);
+        return pos;
+    }
+
+    private static double scale(double abs, int exp) {
+        return exp <= 10 ? abs * POWERS_OF_TEN[10 - exp] : abs / POWERS_OF_TEN[exp - 10];
+    }
 }
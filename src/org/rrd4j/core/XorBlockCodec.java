@@ -0,0 +1,224 @@
+package org.rrd4j.core;
+
+/**
+ * Compresses blocks of RRD bytes with the XOR scheme of Facebook's Gorilla time series
+ * database: the block is read as a sequence of 8-byte words, each word is XORed with the
+ * previous one and only the meaningful bits of the result are stored. A word equal to the
+ * previous one takes a single bit, which makes runs of unknown values and constant or slowly
+ * changing values very cheap.<p>
+ *
+ * RRD values are not always 8-byte aligned within a file, but always 4-byte aligned, so both
+ * word alignments are tried. Blocks which do not compress, such as headers, are stored as
+ * they are. The first byte of an encoded block gives the encoding used.
+ */
+final class XorBlockCodec {
+    private static final int RAW = 0;
+    private static final int XOR_ALIGNED = 1;
+    private static final int XOR_SHIFTED = 2;
+
+    private XorBlockCodec() {
+    }
+
+    /**
+     * Encodes the first <code>length</code> bytes of a block.
+     *
+     * @return Encoded bytes, never longer than <code>length + 1</code>
+     */
+    static byte[] encode(byte[] block, int length) {
+        BitWriter writer = new BitWriter(length - 1);
+        int mode = RAW;
+        if (encodeWords(block, length, 0, writer)) {
+            mode = XOR_ALIGNED;
+        }
+        int size = writer.pos;
+        BitWriter shifted = new BitWriter(mode == RAW ? length - 1 : size - 1);
+        if (encodeWords(block, length, 4, shifted)) {
+            mode = XOR_SHIFTED;
+            writer = shifted;
+            size = shifted.pos;
+        }
+        if (mode == RAW) {
+            byte[] encoded = new byte[length + 1];
+            System.arraycopy(block, 0, encoded, 1, length);
+            return encoded;
+        }
+        byte[] encoded = new byte[size + 1];
+        encoded[0] = (byte) mode;
+        System.arraycopy(writer.bytes, 0, encoded, 1, size);
+        return encoded;
+    }
+
+    // returns false if the encoded words do not fit in the writer
+    private static boolean encodeWords(byte[] block, int length, int start, BitWriter writer) {
+        int words = (length - start) / 8;
+        if (words < 2) {
+            return false;
+        }
+        writer.writeBytes(block, 0, start);
+        long previous = getWord(block, start);
+        writer.writeBits(previous, 64);
+        int previousLeading = -1, previousTrailing = 0;
+        for (int i = 1; i < words && !writer.overflow; i++) {
+            long word = getWord(block, start + 8 * i);
+            long xor = word ^ previous;
+            previous = word;
+            if (xor == 0) {
+                writer.writeBits(0, 1);
+                continue;
+            }
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // meaningful bits fit in the previous window
+                writer.writeBits(2, 2);
+                writer.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            }
+            else {
+                int meaningful = 64 - leading - trailing;
+                writer.writeBits(3, 2);
+                writer.writeBits(leading, 5);
+                writer.writeBits(meaningful - 1, 6);
+                writer.writeBits(xor >>> trailing, meaningful);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        writer.flush();
+        writer.writeBytes(block, start + 8 * words, length - start - 8 * words);
+        return !writer.overflow;
+    }
+
+    /**
+     * Decodes an encoded block into the first <code>length</code> bytes of <code>block</code>.
+     */
+    static void decode(byte[] encoded, byte[] block, int length) {
+        int mode = encoded[0];
+        if (mode == RAW) {
+            System.arraycopy(encoded, 1, block, 0, length);
+            return;
+        }
+        int start = mode == XOR_SHIFTED ? 4 : 0;
+        int words = (length - start) / 8;
+        BitReader reader = new BitReader(encoded, 1);
+        reader.readBytes(block, 0, start);
+        long value = reader.readBits(64);
+        putWord(block, start, value);
+        int leading = 0, trailing = 0;
+        for (int i = 1; i < words; i++) {
+            if (reader.readBits(1) != 0) {
+                if (reader.readBits(1) != 0) {
+                    leading = (int) reader.readBits(5);
+                    int meaningful = (int) reader.readBits(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                value ^= reader.readBits(64 - leading - trailing) << trailing;
+            }
+            putWord(block, start + 8 * i, value);
+        }
+        reader.align();
+        reader.readBytes(block, start + 8 * words, length - start - 8 * words);
+    }
+
+    private static long getWord(byte[] b, int pos) {
+        long word = 0;
+        for (int i = 0; i < 8; i++) {
+            word = word << 8 | (b[pos + i] & 0xFF);
+        }
+        return word;
+    }
+
+    private static void putWord(byte[] b, int pos, long word) {
+        for (int i = 7; i >= 0; i--) {
+            b[pos + i] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
+    private static final class BitWriter {
+        final byte[] bytes;
+        int pos;
+        int current, bitCount;
+        boolean overflow;
+
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(capacity, 0)];
+        }
+
+        // writes the low-order bits of value, most significant first
+        void writeBits(long value, int count) {
+            while (count > 0) {
+                int taken = Math.min(8 - bitCount, count);
+                int chunk = (int) (value >>> (count - taken)) & ((1 << taken) - 1);
+                current |= chunk << (8 - bitCount - taken);
+                bitCount += taken;
+                count -= taken;
+                if (bitCount == 8) {
+                    put((byte) current);
+                    current = 0;
+                    bitCount = 0;
+                }
+            }
+        }
+
+        void flush() {
+            if (bitCount > 0) {
+                put((byte) current);
+                current = 0;
+                bitCount = 0;
+            }
+        }
+
+        void writeBytes(byte[] b, int from, int count) {
+            for (int i = 0; i < count; i++) {
+                put(b[from + i]);
+            }
+        }
+
+        private void put(byte b) {
+            if (pos < bytes.length) {
+                bytes[pos++] = b;
+            }
+            else {
+                overflow = true;
+            }
+        }
+    }
+
+    private static final class BitReader {
+        final byte[] bytes;
+        int pos, bitCount;
+
+        BitReader(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        long readBits(int count) {
+            long value = 0;
+            while (count > 0) {
+                int taken = Math.min(8 - bitCount, count);
+                int chunk = (bytes[pos] >>> (8 - bitCount - taken)) & ((1 << taken) - 1);
+                value = value << taken | chunk;
+                bitCount += taken;
+                count -= taken;
+                if (bitCount == 8) {
+                    pos++;
+                    bitCount = 0;
+                }
+            }
+            return value;
+        }
+
+        void align() {
+            if (bitCount > 0) {
+                pos++;
+                bitCount = 0;
+            }
+        }
+
+        void readBytes(byte[] b, int from, int count) {
+            System.arraycopy(bytes, pos, b, from, count);
+            pos += count;
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
@@ -127,51 +128,43 @@ public class Archive {
     void loadData(DataChunk chunk, long startTime, long endTime)
             throws IOException {
 
-        long pointer;
-
-        if (chunk.start < 0) {
-            pointer = currentRow + 1;
-        }
-        else {
-            pointer = currentRow + chunk.start + 1;
-        }
-
-        db.rrdFile.ras.seek(dataOffset + (pointer * 8));
-        //cat.debug("Archive Base: " + dataOffset + " Archive Pointer: " + pointer);
-        //cat.debug("Start Offset: " + chunk.start + " End Offset: "
-        //          + (rowCount - chunk.end));
-
         double[][] data = chunk.data;
+        int dsCount = chunk.dsCount;
 
-        /*
-           * This is also terrible - cleanup - CT
-           */
+        // rows before the first or after the last archived one hold no valid data
+        int first = Math.max(chunk.start, 0);
+        int last = Math.min(rowCount - chunk.end, rowCount);
         int row = 0;
-        for (int i = chunk.start; i < rowCount - chunk.end; i++, row++) {
-            if (i < 0) {                   // no valid data yet
-                for (int ii = 0; ii < chunk.dsCount; ii++) {
-                    data[row][ii] = Double.NaN;
-                }
-            }
-            else if (i >= rowCount) {    // past valid data area
-                for (int ii = 0; ii < chunk.dsCount; ii++) {
-                    data[row][ii] = Double.NaN;
-                }
+        for (int i = chunk.start; i < first && row < data.length; i++, row++) {
+            Arrays.fill(data[row], Double.NaN);
+        }
+        if (first < last) {
+            double[] rows = readRows(first, last - first);
+            for (int r = 0; r < last - first; r++, row++) {
+                System.arraycopy(rows, r * dsCount, data[row], 0, dsCount);
             }
-            else {                       // inside the valid are but the pointer has to be wrapped
-                if (pointer >= rowCount) {
-                    pointer -= rowCount;
-
-                    db.rrdFile.ras.seek(dataOffset + (pointer * 8));
-                }
-
-                for (int ii = 0; ii < chunk.dsCount; ii++) {
-                    data[row][ii] = db.rrdFile.readDouble();
-                }
+        }
+        for (; row < data.length && row < rowCount - chunk.end - chunk.start; row++) {
+            Arrays.fill(data[row], Double.NaN);
+        }
+    }
 
-                pointer++;
-            }
+    /**
+     * Reads <code>count</code> consecutive rows, the <code>first</code> one being counted
+     * from the oldest row of the archive. Rows are returned one after another, each one
+     * holding a value per data source.
+     */
+    double[] readRows(int first, int count) throws IOException {
+        int dsCount = db.header.dsCount;
+        double[] rows = new double[count * dsCount];
+        // the oldest row follows the current one
+        int position = (currentRow + 1 + first) % rowCount;
+        int tailCount = Math.min(count, rowCount - position);
+        db.rrdFile.readDoubles(dataOffset + (long) position * dsCount * 8, rows, 0, tailCount * dsCount);
+        if (tailCount < count) {
+            db.rrdFile.readDoubles(dataOffset, rows, tailCount * dsCount, (count - tailCount) * dsCount);
         }
+        return rows;
     }
 
     void printInfo(PrintStream s, NumberFormat numberFormat, int index) {
@@ -242,9 +235,8 @@ public class Archive {
 
             long timer = -(rowCount - 1);
             int counter = 0;
-            int row = currentRow;
-
-            db.rrdFile.ras.seek(dataOffset + (row + 1) * 16);
+            double[] rows = readRows(0, rowCount);
+            int index = 0;
 
             long lastUpdate = db.lastUpdate.getTime() / 1000;
             int pdpStep = db.header.pdpStep;
@@ -253,14 +245,6 @@ public class Archive {
                     new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
 
             while (counter++ < rowCount) {
-                row++;
-
-                if (row == rowCount) {
-                    row = 0;
-
-                    db.rrdFile.ras.seek(dataOffset);
-                }
-
                 long now = (lastUpdate - lastUpdate % (pdpCount * pdpStep))
                         + (timer * pdpCount * pdpStep);
 
@@ -275,7 +259,7 @@ public class Archive {
                 for (int col = 0; col < db.header.dsCount; col++) {
                     s.print("<v> ");
 
-                    double value = db.rrdFile.readDouble();
+                    double value = rows[index++];
 
                     // NumberFormat doesn't know how to handle NaN
                     if (Double.isNaN(value)) {
@@ -331,20 +315,12 @@ public class Archive {
         if (values != null) {
             return values;
         }
-        values = new double[db.header.dsCount][rowCount];
-        int row = currentRow;
-        // HERE ARE THE DRAGONS!
-        db.rrdFile.ras.seek(dataOffset + (row + 1) * db.header.dsCount * 8);
-        // OK, TOO!
+        int dsCount = db.header.dsCount;
+        double[] rows = readRows(0, rowCount);
+        values = new double[dsCount][rowCount];
         for (int counter = 0; counter < rowCount; counter++) {
-            row++;
-            if (row == rowCount) {
-                row = 0;
-                db.rrdFile.ras.seek(dataOffset);
-            }
-            for (int col = 0; col < db.header.dsCount; col++) {
-                double value = db.rrdFile.readDouble();
-                values[col][counter] = value;
+            for (int col = 0; col < dsCount; col++) {
+                values[col][counter] = rows[counter * dsCount + col];
             }
         }
         return values;
@@ -8,7 +8,14 @@
  */
 package org.rrd4j.core.jrrd;
 
+import org.rrd4j.core.RrdNioUnmapper;
+
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class is a quick hack to read information from an RRD file. Writing
@@ -17,6 +24,9 @@ import java.io.*;
  * <p/>
  * Currently this can read RRD files that were generated on Solaris (Sparc)
  * and Linux (x86).
+ * <p/>
+ * The file is mapped into memory and decoded with the byte order of the
+ * platform which wrote it, archived values can be read in bulk.
  *
  * @author <a href="mailto:ciaran@codeloop.com">Ciaran Treanor</a>
  * @version $Revision: 1.1 $
@@ -25,8 +35,7 @@ public class RRDFile implements Constants {
 
     boolean bigEndian;
     int alignment;
-    RandomAccessFile ras;
-    byte[] buffer;
+    MappedByteBuffer buffer;
 
     RRDFile(String name) throws IOException {
         this(new File(name));
@@ -34,48 +43,61 @@ public class RRDFile implements Constants {
 
     RRDFile(File file) throws IOException {
 
-        ras = new RandomAccessFile(file, "r");
-        buffer = new byte[128];
+        RandomAccessFile ras = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = ras.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("RRD file too large: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            ras.close();
+        }
 
-        initDataLayout(file);
+        initDataLayout();
     }
 
-    private void initDataLayout(File file) throws IOException {
+    private void initDataLayout() throws IOException {
 
-        if (file.exists()) {    // Load the data formats from the file
-            ras.read(buffer, 0, 24);
+        byte[] cookie = new byte[24];
 
-            int index;
+        try {
+            buffer.get(cookie);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Invalid RRD file");
+        }
 
-            if ((index = indexOf(FLOAT_COOKIE_BIG_ENDIAN, buffer)) != -1) {
-                bigEndian = true;
-            }
-            else if ((index = indexOf(FLOAT_COOKIE_LITTLE_ENDIAN, buffer))
-                    != -1) {
-                bigEndian = false;
-            }
-            else {
-                throw new IOException("Invalid RRD file");
-            }
+        int index;
 
-            switch (index) {
+        if ((index = indexOf(FLOAT_COOKIE_BIG_ENDIAN, cookie)) != -1) {
+            bigEndian = true;
+        }
+        else if ((index = indexOf(FLOAT_COOKIE_LITTLE_ENDIAN, cookie))
+                != -1) {
+            bigEndian = false;
+        }
+        else {
+            throw new IOException("Invalid RRD file");
+        }
 
-                case 12:
-                    alignment = 4;
-                    break;
+        switch (index) {
 
-                case 16:
-                    alignment = 8;
-                    break;
+            case 12:
+                alignment = 4;
+                break;
 
-                default:
-                    throw new RuntimeException("Unsupported architecture");
-            }
-        }
-        else {                // Default to data formats for this hardware architecture
+            case 16:
+                alignment = 8;
+                break;
+
+            default:
+                throw new RuntimeException("Unsupported architecture");
         }
 
-        ras.seek(0);    // Reset file pointer to start of file
+        buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        buffer.position(0);    // Reset file pointer to start of file
     }
 
     private int indexOf(byte[] pattern, byte[] array) {
@@ -91,25 +113,29 @@ public class RRDFile implements Constants {
     }
 
     double readDouble() throws IOException {
-
-        //double value;
-        byte[] tx = new byte[8];
-
-        ras.read(buffer, 0, 8);
-
-        if (bigEndian) {
-            tx = buffer;
+        try {
+            return mapped().getDouble();
         }
-        else {
-            for (int i = 0; i < 8; i++) {
-                tx[7 - i] = buffer[i];
-            }
+        catch (BufferUnderflowException e) {
+            throw new EOFException();
         }
+    }
 
-        DataInputStream reverseDis =
-                new DataInputStream(new ByteArrayInputStream(tx));
-
-        return reverseDis.readDouble();
+    /**
+     * Reads <code>count</code> doubles starting at the given file offset, without
+     * moving the file pointer.
+     */
+    void readDoubles(long offset, double[] dst, int from, int count) throws IOException {
+        ByteBuffer source = mapped();
+        ByteBuffer view = source.duplicate();
+        view.order(source.order());
+        try {
+            view.position((int) offset);
+            view.asDoubleBuffer().get(dst, from, count);
+        }
+        catch (RuntimeException e) {
+            throw new EOFException("Cannot read " + count + " values at offset " + offset);
+        }
     }
 
     int readInt() throws IOException {
@@ -117,40 +143,39 @@ public class RRDFile implements Constants {
     }
 
     int readInt(boolean dump) throws IOException {
-
-        ras.read(buffer, 0, 4);
-
-        int value;
-
-        if (bigEndian) {
-            value = (0xFF & buffer[3]) | ((0xFF & buffer[2]) << 8)
-                    | ((0xFF & buffer[1]) << 16) | ((0xFF & buffer[0]) << 24);
+        try {
+            return mapped().getInt();
         }
-        else {
-            value = (0xFF & buffer[0]) | ((0xFF & buffer[1]) << 8)
-                    | ((0xFF & buffer[2]) << 16) | ((0xFF & buffer[3]) << 24);
+        catch (BufferUnderflowException e) {
+            throw new EOFException();
         }
-
-        return value;
     }
 
     String readString(int maxLength) throws IOException {
 
-        ras.read(buffer, 0, maxLength);
+        byte[] bytes = new byte[maxLength];
 
-        return new String(buffer, 0, maxLength).trim();
+        try {
+            mapped().get(bytes);
+        }
+        catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+
+        return new String(bytes, 0, maxLength).trim();
     }
 
     void skipBytes(int n) throws IOException {
-        ras.skipBytes(n);
+        ByteBuffer source = mapped();
+        source.position(Math.min(source.position() + n, source.limit()));
     }
 
     int align(int boundary) throws IOException {
 
-        int skip = (int) (boundary - (ras.getFilePointer() % boundary)) % boundary;
+        int skip = (boundary - (mapped().position() % boundary)) % boundary;
 
         if (skip != 0) {
-            ras.skipBytes(skip);
+            skipBytes(skip);
         }
 
         return skip;
@@ -161,14 +186,33 @@ public class RRDFile implements Constants {
     }
 
     long info() throws IOException {
-        return ras.getFilePointer();
+        return mapped().position();
     }
 
     long getFilePointer() throws IOException {
-        return ras.getFilePointer();
+        return mapped().position();
+    }
+
+    void seek(long pos) throws IOException {
+        ByteBuffer source = mapped();
+        if (pos < 0 || pos > source.limit()) {
+            throw new EOFException("Invalid file position: " + pos);
+        }
+        source.position((int) pos);
+    }
+
+    // the mapping is gone once the file is closed
+    private ByteBuffer mapped() throws IOException {
+        if (buffer == null) {
+            throw new IOException("RRD file is closed");
+        }
+        return buffer;
     }
 
     void close() throws IOException {
-        ras.close();
+        if (buffer != null) {
+            RrdNioUnmapper.getDefault().unmap(buffer);
+            buffer = null;
+        }
     }
 }
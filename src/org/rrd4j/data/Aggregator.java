@@ -2,14 +2,22 @@ package org.rrd4j.data;
 
 import org.rrd4j.core.Util;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
+/**
+ * Computes aggregates and percentiles of datasource values over a time range. All aggregates and
+ * the values needed by percentiles are gathered in a single pass, which is kept for further requests
+ * over the same range. Percentiles are found by selection in linear time, instead of sorting.
+ */
 class Aggregator {
     private final long timestamps[], step;
     private final double[] values;
 
+    // range of the last pass, with its aggregates and known values
+    private long tStart, tEnd;
+    private Aggregates aggregates;
+    // known values, partially ordered by previous selections
+    private double[] known;
+    private int knownCount;
+
     Aggregator(long[] timestamps, double[] values) {
         assert timestamps.length == values.length : "Incompatible timestamps/values arrays (unequal lengths)";
         assert timestamps.length >= 2 : "At least two timestamps must be supplied";
@@ -19,7 +27,41 @@ class Aggregator {
     }
 
     Aggregates getAggregates(long tStart, long tEnd) {
+        aggregate(tStart, tEnd);
+        return aggregates;
+    }
+
+    double getPercentile(long tStart, long tEnd, double percentile) {
+        return getPercentiles(tStart, tEnd, percentile)[0];
+    }
+
+    double[] getPercentiles(long tStart, long tEnd, double... percentiles) {
+        aggregate(tStart, tEnd);
+        double[] result = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            int count = knownCount;
+            result[i] = Double.NaN;
+            if (count > 1) {
+                // skip top (100% - percentile) values
+                double topPercentile = (100.0 - percentiles[i]) / 100.0;
+                count -= (int) Math.ceil(count * topPercentile);
+                // if we have anything left...
+                if (count > 0) {
+                    select(known, 0, knownCount - 1, count - 1);
+                    result[i] = known[count - 1];
+                }
+            }
+        }
+        return result;
+    }
+
+    private void aggregate(long tStart, long tEnd) {
+        if (aggregates != null && tStart == this.tStart && tEnd == this.tEnd) {
+            return;
+        }
         Aggregates agg = new Aggregates();
+        double[] known = new double[values.length];
+        int knownCount = 0;
         long totalSeconds = 0;
         boolean firstFound = false;
         for (int i = 0; i < timestamps.length; i++) {
@@ -42,41 +84,68 @@ class Aggregator {
                 if (!Double.isNaN(value)) {
                     agg.total = Util.sum(agg.total, delta * value);
                     totalSeconds += delta;
+                    known[knownCount++] = value;
                 }
             }
         }
         agg.average = totalSeconds > 0 ? (agg.total / totalSeconds) : Double.NaN;
-        return agg;
+        this.tStart = tStart;
+        this.tEnd = tEnd;
+        this.aggregates = agg;
+        this.known = known;
+        this.knownCount = knownCount;
     }
 
-    double getPercentile(long tStart, long tEnd, double percentile) {
-        List<Double> valueList = new ArrayList<Double>();
-        // create a list of included datasource values (different from NaN)
-        for (int i = 0; i < timestamps.length; i++) {
-            long left = Math.max(timestamps[i] - step, tStart);
-            long right = Math.min(timestamps[i], tEnd);
-            if (right > left && !Double.isNaN(values[i])) {
-                valueList.add(new Double(values[i]));
+    /**
+     * Moves the k-th smallest value to index k, with smaller values before it and larger ones after it,
+     * ordered as {@link java.util.Arrays#sort(double[])} would do.
+     */
+    private static void select(double[] a, int left, int right, int k) {
+        while (right > left) {
+            int mid = (left + right) >>> 1;
+            // median of three as pivot
+            if (less(a[mid], a[left])) {
+                swap(a, left, mid);
             }
-        }
-        // create an array to work with
-        int count = valueList.size();
-        if (count > 1) {
-            double[] valuesCopy = new double[count];
-            for (int i = 0; i < count; i++) {
-                valuesCopy[i] = valueList.get(i).doubleValue();
+            if (less(a[right], a[left])) {
+                swap(a, left, right);
+            }
+            if (less(a[right], a[mid])) {
+                swap(a, mid, right);
+            }
+            double pivot = a[mid];
+            int i = left, j = right;
+            while (i <= j) {
+                while (less(a[i], pivot)) {
+                    i++;
+                }
+                while (less(pivot, a[j])) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
             }
-            // sort array
-            Arrays.sort(valuesCopy);
-            // skip top (100% - percentile) values
-            double topPercentile = (100.0 - percentile) / 100.0;
-            count -= (int) Math.ceil(count * topPercentile);
-            // if we have anything left...
-            if (count > 0) {
-                return valuesCopy[count - 1];
+            else if (k >= i) {
+                left = i;
+            }
+            else {
+                return;
             }
         }
-        // not enough data available
-        return Double.NaN;
+    }
+
+    // -0.0 comes before 0.0, as when sorting
+    private static boolean less(double x, double y) {
+        return Double.compare(x, y) < 0;
+    }
+
+    private static void swap(double[] a, int i, int j) {
+        double x = a[i];
+        a[i] = a[j];
+        a[j] = x;
     }
 }
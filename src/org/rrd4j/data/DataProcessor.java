@@ -4,7 +4,16 @@ import org.rrd4j.core.*;
 import org.rrd4j.ConsolFun;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class which should be used for all calculations based on the data fetched from RRD files. This class
@@ -46,6 +55,25 @@ public class DataProcessor {
     public static final boolean DEFAULT_POOL_USAGE_POLICY = false;
     private boolean poolUsed = DEFAULT_POOL_USAGE_POLICY;
 
+    /**
+     * Constant that defines the default parallel fetch policy. Defaults to <code>false</code>
+     * (i.e. RRD files are read one after the other)
+     */
+    public static final boolean DEFAULT_PARALLEL_FETCH = false;
+    private boolean parallelFetch = DEFAULT_PARALLEL_FETCH;
+    private Executor fetchExecutor;
+
+    /**
+     * Constant that defines the default RPN compilation policy. Defaults to <code>true</code>
+     * (i.e. CDEF expressions are compiled into operations over whole arrays of values)
+     */
+    public static final boolean DEFAULT_RPN_COMPILED = true;
+    private boolean rpnCompiled = DEFAULT_RPN_COMPILED;
+
+    // shared by all instances fetching in parallel without their own executor
+    private static final int DEFAULT_FETCH_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static Executor defaultFetchExecutor;
+
     private final long tStart;
     private long tEnd, timestamps[];
     private long lastRrdArchiveUpdateTime = 0;
@@ -119,6 +147,105 @@ public class DataProcessor {
         this.poolUsed = poolUsed;
     }
 
+    /**
+     * Returns boolean value representing the parallel fetch policy.
+     *
+     * @return true, if distinct RRD files are read concurrently, false otherwise.
+     */
+    public boolean isParallelFetch() {
+        return parallelFetch;
+    }
+
+    /**
+     * Sets the parallel fetch policy. If set to true, DEF datasources of distinct RRD files are
+     * fetched concurrently, with the executor set with {@link #setFetchExecutor(Executor)}.
+     * Datasource values do not depend on this policy.
+     *
+     * @param parallelFetch true, if distinct RRD files should be read concurrently, false otherwise.
+     */
+    public void setParallelFetch(boolean parallelFetch) {
+        this.parallelFetch = parallelFetch;
+    }
+
+    /**
+     * Returns boolean value representing the RPN compilation policy.
+     *
+     * @return true, if CDEF expressions are compiled, false if they are interpreted.
+     */
+    public boolean isRpnCompiled() {
+        return rpnCompiled;
+    }
+
+    /**
+     * Sets the RPN compilation policy. If set to true, the RPN expressions of all CDEF datasources
+     * are compiled together into operations over whole arrays of values, computing common
+     * subexpressions only once. Otherwise, each expression is interpreted token by token, for
+     * each timestamp. Datasource values do not depend on this policy.
+     *
+     * @param rpnCompiled true, if CDEF expressions should be compiled, false otherwise.
+     */
+    public void setRpnCompiled(boolean rpnCompiled) {
+        this.rpnCompiled = rpnCompiled;
+    }
+
+    /**
+     * Returns the maximum number of parsed RPN expressions kept in the cache shared by all instances.
+     *
+     * @return Cache capacity
+     */
+    public static int getRpnCacheCapacity() {
+        return RpnCalculator.getCacheCapacity();
+    }
+
+    /**
+     * Sets the maximum number of parsed RPN expressions kept in the cache shared by all instances.
+     * CDEF expressions found in the cache are not parsed again. Least recently used expressions
+     * are dropped once the cache is full. Defaults to 1000, zero disables the cache.
+     *
+     * @param capacity Cache capacity
+     */
+    public static void setRpnCacheCapacity(int capacity) {
+        RpnCalculator.setCacheCapacity(capacity);
+    }
+
+    /**
+     * Returns the number of RPN expressions found in the cache of parsed expressions so far.
+     *
+     * @return Number of cache hits
+     */
+    public static long getRpnCacheHitCount() {
+        return RpnCalculator.getCacheHits();
+    }
+
+    /**
+     * Returns the number of RPN expressions which had to be parsed so far, not being in the cache.
+     *
+     * @return Number of cache misses
+     */
+    public static long getRpnCacheMissCount() {
+        return RpnCalculator.getCacheMisses();
+    }
+
+    /**
+     * Returns the executor used to fetch data from RRD files in parallel.
+     *
+     * @return Executor, or null if the default one is used
+     */
+    public Executor getFetchExecutor() {
+        return fetchExecutor;
+    }
+
+    /**
+     * Sets the executor used to fetch data from RRD files in parallel (see {@link #setParallelFetch(boolean)}),
+     * each task reading a single file. If not set, a pool of daemon threads shared by all
+     * instances is used, with twice as many threads as processors (at least four).
+     *
+     * @param fetchExecutor Executor, or null to use the default one
+     */
+    public void setFetchExecutor(Executor fetchExecutor) {
+        this.fetchExecutor = fetchExecutor;
+    }
+
     /**
      * Sets the number of pixels (target graph width). This number is used only to calculate pixel coordinates
      * for Rrd4j graphs (methods {@link #getValuesPerPixel(String)} and {@link #getTimestampsPerPixel()}),
@@ -328,11 +455,48 @@ public class DataProcessor {
      * @return Requested percentile of fetched source values
      */
     public double getPercentile(String sourceName, double percentile) {
-        if (percentile <= 0.0 || percentile > 100.0) {
-            throw new IllegalArgumentException("Invalid percentile [" + percentile + "], should be between 0 and 100");
+        return getPercentiles(sourceName, percentile)[0];
+    }
+
+    /**
+     * Same as {@link #getPercentile(String, double)}, for several percentile boundaries at once.
+     * Source values are gathered only once for all of them.
+     *
+     * @param sourceName  Datasource name.
+     * @param percentiles Boundary percentiles, between zero and 100.
+     * @return Requested percentiles of fetched source values, in the same order
+     */
+    public double[] getPercentiles(String sourceName, double... percentiles) {
+        for (double percentile : percentiles) {
+            if (percentile <= 0.0 || percentile > 100.0) {
+                throw new IllegalArgumentException("Invalid percentile [" + percentile + "], should be between 0 and 100");
+            }
         }
         Source source = getSource(sourceName);
-        return source.getPercentile(tStart, tEnd, percentile);
+        if (source instanceof Def && ((Def) source).isSketched() && ((Def) source).getPath() != null) {
+            return getSketchedPercentiles((Def) source, percentiles);
+        }
+        return source.getPercentiles(tStart, tEnd, percentiles);
+    }
+
+    // sketches are read from the RRD, released once fetched: it is requested again for the same fetch
+    private double[] getSketchedPercentiles(Def def, double... percentiles) {
+        try {
+            RrdDb rrd = getRrd(def);
+            try {
+                FetchRequest fetched = def.getFetchRequest();
+                FetchRequest req = rrd.createFetchRequest(ConsolFun.PERCENTILE, fetched.getFetchStart(),
+                        fetched.getFetchEnd(), fetched.getResolution());
+                req.setFilter(def.getDsName());
+                return req.fetchData().getPercentiles(def.getDsName(), tStart, tEnd, percentiles);
+            }
+            finally {
+                releaseRrd(rrd, def);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     /**
@@ -632,41 +796,112 @@ public class DataProcessor {
     }
 
     private void fetchRrdData() throws IOException {
-        long tEndFixed = (tEnd == 0) ? Util.getTime() : tEnd;
-        for (int i = 0; i < defSources.length; i++) {
-            if (!defSources[i].isLoaded()) {
-                // not fetched yet
-                Set<String> dsNames = new HashSet<String>();
-                dsNames.add(defSources[i].getDsName());
-                // look for all other datasources with the same path and the same consolidation function
-                for (int j = i + 1; j < defSources.length; j++) {
-                    if (defSources[i].isCompatibleWith(defSources[j])) {
-                        dsNames.add(defSources[j].getDsName());
-                    }
+        final long tEndFixed = (tEnd == 0) ? Util.getTime() : tEnd;
+        Collection<RrdFetch> fetches = groupDefsByFile();
+        if (!parallelFetch || fetches.size() < 2) {
+            for (RrdFetch fetch : fetches) {
+                lastRrdArchiveUpdateTime = Math.max(lastRrdArchiveUpdateTime, fetch(fetch, tEndFixed));
+            }
+            return;
+        }
+        Executor executor = fetchExecutor != null ? fetchExecutor : getDefaultFetchExecutor();
+        List<FutureTask<Long>> tasks = new ArrayList<FutureTask<Long>>(fetches.size());
+        for (final RrdFetch fetch : fetches) {
+            FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+                public Long call() throws IOException {
+                    return fetch(fetch, tEndFixed);
                 }
-                // now we have everything
-                RrdDb rrd = null;
-                try {
-                    rrd = getRrd(defSources[i]);
-                    lastRrdArchiveUpdateTime = Math.max(lastRrdArchiveUpdateTime, rrd.getLastArchiveUpdateTime());
-                    FetchRequest req = rrd.createFetchRequest(defSources[i].getConsolFun(),
-                            tStart, tEndFixed, fetchRequestResolution);
-                    req.setFilter(dsNames);
-                    FetchData data = req.fetchData();
-                    defSources[i].setFetchData(data);
-                    for (int j = i + 1; j < defSources.length; j++) {
-                        if (defSources[i].isCompatibleWith(defSources[j])) {
-                            defSources[j].setFetchData(data);
-                        }
-                    }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        // wait for all files, the first failure in DEF order gets reported
+        Throwable failure = null;
+        for (FutureTask<Long> task : tasks) {
+            try {
+                lastRrdArchiveUpdateTime = Math.max(lastRrdArchiveUpdateTime, task.get());
+            }
+            catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+            catch (InterruptedException e) {
+                for (FutureTask<Long> other : tasks) {
+                    other.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching data from RRD files");
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    // DEFs not fetched yet, grouped by RRD file and consolidation function, in DEF order
+    private Collection<RrdFetch> groupDefsByFile() throws IOException {
+        Map<String, RrdFetch> fetches = new LinkedHashMap<String, RrdFetch>();
+        for (Def def : defSources) {
+            if (!def.isLoaded()) {
+                String key = def.getCanonicalPath() + '\0' + def.getBackend();
+                RrdFetch fetch = fetches.get(key);
+                if (fetch == null) {
+                    fetch = new RrdFetch(def);
+                    fetches.put(key, fetch);
+                }
+                List<Def> defs = fetch.defs.get(def.getConsolFun());
+                if (defs == null) {
+                    defs = new ArrayList<Def>();
+                    fetch.defs.put(def.getConsolFun(), defs);
+                }
+                defs.add(def);
+            }
+        }
+        return fetches.values();
+    }
+
+    // fetches all DEFs of a file with a single open, returns the last archive update time of the file
+    private long fetch(RrdFetch fetch, long tEndFixed) throws IOException {
+        RrdDb rrd = getRrd(fetch.def);
+        try {
+            for (Map.Entry<ConsolFun, List<Def>> entry : fetch.defs.entrySet()) {
+                Set<String> dsNames = new HashSet<String>();
+                for (Def def : entry.getValue()) {
+                    dsNames.add(def.getDsName());
                 }
-                finally {
-                    if (rrd != null) {
-                        releaseRrd(rrd, defSources[i]);
-                    }
+                FetchRequest req = rrd.createFetchRequest(entry.getKey(), tStart, tEndFixed, fetchRequestResolution);
+                req.setFilter(dsNames);
+                FetchData data = req.fetchData();
+                for (Def def : entry.getValue()) {
+                    def.setFetchData(data);
                 }
             }
+            return rrd.getLastArchiveUpdateTime();
+        }
+        finally {
+            releaseRrd(rrd, fetch.def);
+        }
+    }
+
+    private static synchronized Executor getDefaultFetchExecutor() {
+        if (defaultFetchExecutor == null) {
+            defaultFetchExecutor = new ThreadPoolExecutor(DEFAULT_FETCH_THREADS, DEFAULT_FETCH_THREADS,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "RRD4J DataProcessor Fetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
         }
+        return defaultFetchExecutor;
     }
 
     private void fixZeroEndingTimestamp() {
@@ -734,12 +969,13 @@ public class DataProcessor {
     }
 
     private void calculateNonRrdSources() {
+        RpnCompiler compiler = rpnCompiled ? new RpnCompiler(this, timestamps, sources.values()) : null;
         for (Source source : sources.values()) {
             if (source instanceof SDef) {
                 calculateSDef((SDef) source);
             }
             else if (source instanceof CDef) {
-                calculateCDef((CDef) source);
+                calculateCDef((CDef) source, compiler);
             }
             else if (source instanceof PDef) {
                 calculatePDef((PDef) source);
@@ -751,9 +987,13 @@ public class DataProcessor {
         pdef.calculateValues();
     }
 
-    private void calculateCDef(CDef cDef) {
-        RpnCalculator calc = new RpnCalculator(cDef.getRpnExpression(), cDef.getName(), this);
-        cDef.setValues(calc.calculateValues());
+    private void calculateCDef(CDef cDef, RpnCompiler compiler) {
+        double[] values = compiler != null ? compiler.calculateValues(cDef.getName()) : null;
+        if (values == null) {
+            RpnCalculator calc = new RpnCalculator(cDef.getRpnExpression(), cDef.getName(), this);
+            values = calc.calculateValues();
+        }
+        cDef.setValues(values);
     }
 
     private void calculateSDef(SDef sDef) {
@@ -787,6 +1027,17 @@ public class DataProcessor {
         }
     }
 
+    // DEFs of a single RRD file, by consolidation function
+    private static class RrdFetch {
+        // first DEF of the file, which gives path and backend
+        final Def def;
+        final Map<ConsolFun, List<Def>> defs = new LinkedHashMap<ConsolFun, List<Def>>();
+
+        RrdFetch(Def def) {
+            this.def = def;
+        }
+    }
+
     private static String format(String s, int length) {
         StringBuilder b = new StringBuilder(s);
         for (int i = 0; i < length - s.length(); i++) {
@@ -2,6 +2,7 @@ package org.rrd4j.data;
 
 import org.rrd4j.ConsolFun;
 import org.rrd4j.core.FetchData;
+import org.rrd4j.core.FetchRequest;
 import org.rrd4j.core.Util;
 
 import java.io.IOException;
@@ -10,6 +11,8 @@ class Def extends Source {
     private String path, dsName, backend;
     private ConsolFun consolFun;
     private FetchData fetchData;
+    // aggregates fetched values, not normalized ones
+    private Aggregator rrdAggregator;
 
     Def(String name, FetchData fetchData) {
         this(name, null, name, null, null);
@@ -48,15 +51,9 @@ class Def extends Source {
         return backend;
     }
 
-    boolean isCompatibleWith(Def def) throws IOException {
-        return getCanonicalPath().equals(def.getCanonicalPath()) &&
-                getConsolFun() == def.consolFun &&
-                ((backend == null && def.backend == null) ||
-                        (backend != null && def.backend != null && backend.equals(def.backend)));
-    }
-
     void setFetchData(FetchData fetchData) {
         this.fetchData = fetchData;
+        this.rrdAggregator = null;
     }
 
     long[] getRrdTimestamps() {
@@ -75,16 +72,38 @@ class Def extends Source {
         return fetchData.getStep();
     }
 
+    FetchRequest getFetchRequest() {
+        return fetchData.getRequest();
+    }
+
     Aggregates getAggregates(long tStart, long tEnd) {
-        long[] t = getRrdTimestamps();
-        double[] v = getRrdValues();
-        return new Aggregator(t, v).getAggregates(tStart, tEnd);
+        return getRrdAggregator().getAggregates(tStart, tEnd);
     }
 
     double getPercentile(long tStart, long tEnd, double percentile) {
-        long[] t = getRrdTimestamps();
-        double[] v = getRrdValues();
-        return new Aggregator(t, v).getPercentile(tStart, tEnd, percentile);
+        if (isSketched()) {
+            return fetchData.getPercentiles(dsName, tStart, tEnd, percentile)[0];
+        }
+        return getRrdAggregator().getPercentile(tStart, tEnd, percentile);
+    }
+
+    double[] getPercentiles(long tStart, long tEnd, double... percentiles) {
+        if (isSketched()) {
+            return fetchData.getPercentiles(dsName, tStart, tEnd, percentiles);
+        }
+        return getRrdAggregator().getPercentiles(tStart, tEnd, percentiles);
+    }
+
+    // PERCENTILE archives estimate percentiles of primary values, not of archived ones
+    boolean isSketched() {
+        return fetchData.getRequest().getConsolFun() == ConsolFun.PERCENTILE;
+    }
+
+    private Aggregator getRrdAggregator() {
+        if (rrdAggregator == null) {
+            rrdAggregator = new Aggregator(getRrdTimestamps(), getRrdValues());
+        }
+        return rrdAggregator;
     }
 
     boolean isLoaded() {
@@ -3,67 +3,141 @@ package org.rrd4j.data;
 import org.rrd4j.core.Util;
 
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 class RpnCalculator {
-    private static final byte TKN_VAR = 0;
-    private static final byte TKN_NUM = 1;
-    private static final byte TKN_PLUS = 2;
-    private static final byte TKN_MINUS = 3;
-    private static final byte TKN_MULT = 4;
-    private static final byte TKN_DIV = 5;
-    private static final byte TKN_MOD = 6;
-    private static final byte TKN_SIN = 7;
-    private static final byte TKN_COS = 8;
-    private static final byte TKN_LOG = 9;
-    private static final byte TKN_EXP = 10;
-    private static final byte TKN_FLOOR = 11;
-    private static final byte TKN_CEIL = 12;
-    private static final byte TKN_ROUND = 13;
-    private static final byte TKN_POW = 14;
-    private static final byte TKN_ABS = 15;
-    private static final byte TKN_SQRT = 16;
-    private static final byte TKN_RANDOM = 17;
-    private static final byte TKN_LT = 18;
-    private static final byte TKN_LE = 19;
-    private static final byte TKN_GT = 20;
-    private static final byte TKN_GE = 21;
-    private static final byte TKN_EQ = 22;
-    private static final byte TKN_IF = 23;
-    private static final byte TKN_MIN = 24;
-    private static final byte TKN_MAX = 25;
-    private static final byte TKN_LIMIT = 26;
-    private static final byte TKN_DUP = 27;
-    private static final byte TKN_EXC = 28;
-    private static final byte TKN_POP = 29;
-    private static final byte TKN_UN = 30;
-    private static final byte TKN_UNKN = 31;
-    private static final byte TKN_NOW = 32;
-    private static final byte TKN_TIME = 33;
-    private static final byte TKN_PI = 34;
-    private static final byte TKN_E = 35;
-    private static final byte TKN_AND = 36;
-    private static final byte TKN_OR = 37;
-    private static final byte TKN_XOR = 38;
-    private static final byte TKN_PREV = 39;
-    private static final byte TKN_INF = 40;
-    private static final byte TKN_NEGINF = 41;
-    private static final byte TKN_STEP = 42;
-    private static final byte TKN_YEAR = 43;
-    private static final byte TKN_MONTH = 44;
-    private static final byte TKN_DATE = 45;
-    private static final byte TKN_HOUR = 46;
-    private static final byte TKN_MINUTE = 47;
-    private static final byte TKN_SECOND = 48;
-    private static final byte TKN_WEEK = 49;
-    private static final byte TKN_SIGN = 50;
-    private static final byte TKN_RND = 51;
+    static final byte TKN_VAR = 0;
+    static final byte TKN_NUM = 1;
+    static final byte TKN_PLUS = 2;
+    static final byte TKN_MINUS = 3;
+    static final byte TKN_MULT = 4;
+    static final byte TKN_DIV = 5;
+    static final byte TKN_MOD = 6;
+    static final byte TKN_SIN = 7;
+    static final byte TKN_COS = 8;
+    static final byte TKN_LOG = 9;
+    static final byte TKN_EXP = 10;
+    static final byte TKN_FLOOR = 11;
+    static final byte TKN_CEIL = 12;
+    static final byte TKN_ROUND = 13;
+    static final byte TKN_POW = 14;
+    static final byte TKN_ABS = 15;
+    static final byte TKN_SQRT = 16;
+    static final byte TKN_RANDOM = 17;
+    static final byte TKN_LT = 18;
+    static final byte TKN_LE = 19;
+    static final byte TKN_GT = 20;
+    static final byte TKN_GE = 21;
+    static final byte TKN_EQ = 22;
+    static final byte TKN_IF = 23;
+    static final byte TKN_MIN = 24;
+    static final byte TKN_MAX = 25;
+    static final byte TKN_LIMIT = 26;
+    static final byte TKN_DUP = 27;
+    static final byte TKN_EXC = 28;
+    static final byte TKN_POP = 29;
+    static final byte TKN_UN = 30;
+    static final byte TKN_UNKN = 31;
+    static final byte TKN_NOW = 32;
+    static final byte TKN_TIME = 33;
+    static final byte TKN_PI = 34;
+    static final byte TKN_E = 35;
+    static final byte TKN_AND = 36;
+    static final byte TKN_OR = 37;
+    static final byte TKN_XOR = 38;
+    static final byte TKN_PREV = 39;
+    static final byte TKN_INF = 40;
+    static final byte TKN_NEGINF = 41;
+    static final byte TKN_STEP = 42;
+    static final byte TKN_YEAR = 43;
+    static final byte TKN_MONTH = 44;
+    static final byte TKN_DATE = 45;
+    static final byte TKN_HOUR = 46;
+    static final byte TKN_MINUTE = 47;
+    static final byte TKN_SECOND = 48;
+    static final byte TKN_WEEK = 49;
+    static final byte TKN_SIGN = 50;
+    static final byte TKN_RND = 51;
+
+    static final int MAX_STACK_SIZE = 1000;
+
+    // token ids of keywords and operators, none of them parses as a number
+    private static final Map<String, Byte> KEYWORDS = new HashMap<String, Byte>();
+
+    static {
+        KEYWORDS.put("+", TKN_PLUS);
+        KEYWORDS.put("-", TKN_MINUS);
+        KEYWORDS.put("*", TKN_MULT);
+        KEYWORDS.put("/", TKN_DIV);
+        KEYWORDS.put("%", TKN_MOD);
+        KEYWORDS.put("SIN", TKN_SIN);
+        KEYWORDS.put("COS", TKN_COS);
+        KEYWORDS.put("LOG", TKN_LOG);
+        KEYWORDS.put("EXP", TKN_EXP);
+        KEYWORDS.put("FLOOR", TKN_FLOOR);
+        KEYWORDS.put("CEIL", TKN_CEIL);
+        KEYWORDS.put("ROUND", TKN_ROUND);
+        KEYWORDS.put("POW", TKN_POW);
+        KEYWORDS.put("ABS", TKN_ABS);
+        KEYWORDS.put("SQRT", TKN_SQRT);
+        KEYWORDS.put("RANDOM", TKN_RANDOM);
+        KEYWORDS.put("LT", TKN_LT);
+        KEYWORDS.put("LE", TKN_LE);
+        KEYWORDS.put("GT", TKN_GT);
+        KEYWORDS.put("GE", TKN_GE);
+        KEYWORDS.put("EQ", TKN_EQ);
+        KEYWORDS.put("IF", TKN_IF);
+        KEYWORDS.put("MIN", TKN_MIN);
+        KEYWORDS.put("MAX", TKN_MAX);
+        KEYWORDS.put("LIMIT", TKN_LIMIT);
+        KEYWORDS.put("DUP", TKN_DUP);
+        KEYWORDS.put("EXC", TKN_EXC);
+        KEYWORDS.put("POP", TKN_POP);
+        KEYWORDS.put("UN", TKN_UN);
+        KEYWORDS.put("UNKN", TKN_UNKN);
+        KEYWORDS.put("NOW", TKN_NOW);
+        KEYWORDS.put("TIME", TKN_TIME);
+        KEYWORDS.put("PI", TKN_PI);
+        KEYWORDS.put("E", TKN_E);
+        KEYWORDS.put("AND", TKN_AND);
+        KEYWORDS.put("OR", TKN_OR);
+        KEYWORDS.put("XOR", TKN_XOR);
+        KEYWORDS.put("INF", TKN_INF);
+        KEYWORDS.put("NEGINF", TKN_NEGINF);
+        KEYWORDS.put("STEP", TKN_STEP);
+        KEYWORDS.put("YEAR", TKN_YEAR);
+        KEYWORDS.put("MONTH", TKN_MONTH);
+        KEYWORDS.put("DATE", TKN_DATE);
+        KEYWORDS.put("HOUR", TKN_HOUR);
+        KEYWORDS.put("MINUTE", TKN_MINUTE);
+        KEYWORDS.put("SECOND", TKN_SECOND);
+        KEYWORDS.put("WEEK", TKN_WEEK);
+        KEYWORDS.put("SIGN", TKN_SIGN);
+        KEYWORDS.put("RND", TKN_RND);
+        KEYWORDS.put("PREV", TKN_PREV);
+    }
+
+    /**
+     * Default number of parsed expressions kept in the cache shared by all calculators.
+     */
+    static final int DEFAULT_CACHE_CAPACITY = 1000;
+    private static int cacheCapacity = DEFAULT_CACHE_CAPACITY;
+    private static long cacheHits = 0, cacheMisses = 0;
+
+    // parsed expressions, least recently used first
+    private static final Map<String, Token[]> cache = new TokenCache();
 
     private String rpnExpression;
     private String sourceName;
     private DataProcessor dataProcessor;
 
     private Token[] tokens;
+    // values of variables, by token index
+    private double[][] tokenValues;
     private RpnStack stack = new RpnStack();
     private double[] calculatedValues;
     private long[] timestamps;
@@ -76,195 +150,90 @@ class RpnCalculator {
         this.timestamps = dataProcessor.getTimestamps();
         this.timeStep = this.timestamps[1] - this.timestamps[0];
         this.calculatedValues = new double[this.timestamps.length];
-        StringTokenizer st = new StringTokenizer(rpnExpression, ", ");
-        tokens = new Token[st.countTokens()];
-        for (int i = 0; st.hasMoreTokens(); i++) {
-            tokens[i] = createToken(st.nextToken());
+        this.tokens = parseTokens(rpnExpression);
+        this.tokenValues = new double[tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            Token token = tokens[i];
+            if (token.id == TKN_PREV && token.variable == null) {
+                tokenValues[i] = calculatedValues;
+            }
+            else if (token.id == TKN_VAR || token.id == TKN_PREV) {
+                tokenValues[i] = dataProcessor.getValues(token.variable);
+            }
         }
     }
 
-    private Token createToken(String parsedText) {
-        Token token = new Token();
-        if (Util.isDouble(parsedText)) {
-            token.id = TKN_NUM;
-            token.number = Util.parseDouble(parsedText);
-        }
-        else if (parsedText.equals("+")) {
-            token.id = TKN_PLUS;
-        }
-        else if (parsedText.equals("-")) {
-            token.id = TKN_MINUS;
-        }
-        else if (parsedText.equals("*")) {
-            token.id = TKN_MULT;
-        }
-        else if (parsedText.equals("/")) {
-            token.id = TKN_DIV;
-        }
-        else if (parsedText.equals("%")) {
-            token.id = TKN_MOD;
-        }
-        else if (parsedText.equals("SIN")) {
-            token.id = TKN_SIN;
-        }
-        else if (parsedText.equals("COS")) {
-            token.id = TKN_COS;
-        }
-        else if (parsedText.equals("LOG")) {
-            token.id = TKN_LOG;
-        }
-        else if (parsedText.equals("EXP")) {
-            token.id = TKN_EXP;
-        }
-        else if (parsedText.equals("FLOOR")) {
-            token.id = TKN_FLOOR;
-        }
-        else if (parsedText.equals("CEIL")) {
-            token.id = TKN_CEIL;
-        }
-        else if (parsedText.equals("ROUND")) {
-            token.id = TKN_ROUND;
-        }
-        else if (parsedText.equals("POW")) {
-            token.id = TKN_POW;
-        }
-        else if (parsedText.equals("ABS")) {
-            token.id = TKN_ABS;
-        }
-        else if (parsedText.equals("SQRT")) {
-            token.id = TKN_SQRT;
-        }
-        else if (parsedText.equals("RANDOM")) {
-            token.id = TKN_RANDOM;
-        }
-        else if (parsedText.equals("LT")) {
-            token.id = TKN_LT;
-        }
-        else if (parsedText.equals("LE")) {
-            token.id = TKN_LE;
-        }
-        else if (parsedText.equals("GT")) {
-            token.id = TKN_GT;
-        }
-        else if (parsedText.equals("GE")) {
-            token.id = TKN_GE;
-        }
-        else if (parsedText.equals("EQ")) {
-            token.id = TKN_EQ;
-        }
-        else if (parsedText.equals("IF")) {
-            token.id = TKN_IF;
-        }
-        else if (parsedText.equals("MIN")) {
-            token.id = TKN_MIN;
-        }
-        else if (parsedText.equals("MAX")) {
-            token.id = TKN_MAX;
-        }
-        else if (parsedText.equals("LIMIT")) {
-            token.id = TKN_LIMIT;
-        }
-        else if (parsedText.equals("DUP")) {
-            token.id = TKN_DUP;
-        }
-        else if (parsedText.equals("EXC")) {
-            token.id = TKN_EXC;
-        }
-        else if (parsedText.equals("POP")) {
-            token.id = TKN_POP;
-        }
-        else if (parsedText.equals("UN")) {
-            token.id = TKN_UN;
-        }
-        else if (parsedText.equals("UNKN")) {
-            token.id = TKN_UNKN;
-        }
-        else if (parsedText.equals("NOW")) {
-            token.id = TKN_NOW;
-        }
-        else if (parsedText.equals("TIME")) {
-            token.id = TKN_TIME;
-        }
-        else if (parsedText.equals("PI")) {
-            token.id = TKN_PI;
-        }
-        else if (parsedText.equals("E")) {
-            token.id = TKN_E;
+    /**
+     * Returns the tokens of an RPN expression, from the shared cache if the expression was
+     * already parsed. Tokens leave the values of variables unresolved, and must not be modified.
+     */
+    static Token[] parseTokens(String rpnExpression) {
+        synchronized (cache) {
+            Token[] tokens = cache.get(rpnExpression);
+            if (tokens != null) {
+                cacheHits++;
+                return tokens;
+            }
+            cacheMisses++;
         }
-        else if (parsedText.equals("AND")) {
-            token.id = TKN_AND;
+        Token[] tokens = tokenize(rpnExpression);
+        synchronized (cache) {
+            if (cacheCapacity > 0) {
+                cache.put(rpnExpression, tokens);
+            }
         }
-        else if (parsedText.equals("OR")) {
-            token.id = TKN_OR;
+        return tokens;
+    }
+
+    private static Token[] tokenize(String rpnExpression) {
+        StringTokenizer st = new StringTokenizer(rpnExpression, ", ");
+        Token[] tokens = new Token[st.countTokens()];
+        for (int i = 0; st.hasMoreTokens(); i++) {
+            tokens[i] = parseToken(st.nextToken());
         }
-        else if (parsedText.equals("XOR")) {
-            token.id = TKN_XOR;
+        return tokens;
+    }
+
+    private static Token parseToken(String parsedText) {
+        Byte id = KEYWORDS.get(parsedText);
+        if (id != null) {
+            return new Token(id, Double.NaN, null);
         }
-        else if (parsedText.equals("PREV")) {
-            token.id = TKN_PREV;
-            token.variable = sourceName;
-            token.values = calculatedValues;
+        else if (mayBeDouble(parsedText) && Util.isDouble(parsedText)) {
+            return new Token(TKN_NUM, Util.parseDouble(parsedText), null);
         }
         else if (parsedText.startsWith("PREV(") && parsedText.endsWith(")")) {
-            token.id = TKN_PREV;
-            token.variable = parsedText.substring(5, parsedText.length() - 1);
-            token.values = dataProcessor.getValues(token.variable);
-        }
-        else if (parsedText.equals("INF")) {
-            token.id = TKN_INF;
-        }
-        else if (parsedText.equals("NEGINF")) {
-            token.id = TKN_NEGINF;
-        }
-        else if (parsedText.equals("STEP")) {
-            token.id = TKN_STEP;
-        }
-        else if (parsedText.equals("YEAR")) {
-            token.id = TKN_YEAR;
-        }
-        else if (parsedText.equals("MONTH")) {
-            token.id = TKN_MONTH;
-        }
-        else if (parsedText.equals("DATE")) {
-            token.id = TKN_DATE;
-        }
-        else if (parsedText.equals("HOUR")) {
-            token.id = TKN_HOUR;
-        }
-        else if (parsedText.equals("MINUTE")) {
-            token.id = TKN_MINUTE;
-        }
-        else if (parsedText.equals("SECOND")) {
-            token.id = TKN_SECOND;
-        }
-        else if (parsedText.equals("WEEK")) {
-            token.id = TKN_WEEK;
-        }
-        else if (parsedText.equals("SIGN")) {
-            token.id = TKN_SIGN;
-        }
-        else if (parsedText.equals("RND")) {
-            token.id = TKN_RND;
+            return new Token(TKN_PREV, Double.NaN, parsedText.substring(5, parsedText.length() - 1));
         }
         else {
-            token.id = TKN_VAR;
-            token.variable = parsedText;
-            token.values = dataProcessor.getValues(token.variable);
+            return new Token(TKN_VAR, Double.NaN, parsedText);
+        }
+    }
+
+    // cheap test before parsing, as variable names would make the parser throw an exception
+    private static boolean mayBeDouble(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c > ' ') {
+                // sign, digits, decimal point, NaN or Infinity
+                return c == '+' || c == '-' || c == '.' || (c >= '0' && c <= '9') || c == 'N' || c == 'I';
+            }
         }
-        return token;
+        return false;
     }
 
     double[] calculateValues() {
         for (int slot = 0; slot < timestamps.length; slot++) {
             resetStack();
-            for (Token token : tokens) {
+            for (int i = 0; i < tokens.length; i++) {
+                Token token = tokens[i];
                 double x1, x2, x3;
                 switch (token.id) {
                     case TKN_NUM:
                         push(token.number);
                         break;
                     case TKN_VAR:
-                        push(token.values[slot]);
+                        push(tokenValues[i][slot]);
                         break;
                     case TKN_PLUS:
                         push(pop() + pop());
@@ -411,7 +380,7 @@ class RpnCalculator {
                         push(((x1 != 0 && x2 == 0) || (x1 == 0 && x2 != 0)) ? 1 : 0);
                         break;
                     case TKN_PREV:
-                        push((slot == 0) ? Double.NaN : token.values[slot - 1]);
+                        push((slot == 0) ? Double.NaN : tokenValues[i][slot - 1]);
                         break;
                     case TKN_INF:
                         push(Double.POSITIVE_INFINITY);
@@ -490,7 +459,6 @@ class RpnCalculator {
     }
 
     private class RpnStack {
-        private static final int MAX_STACK_SIZE = 1000;
         private double[] stack = new double[MAX_STACK_SIZE];
         private int pos = 0;
 
@@ -524,10 +492,61 @@ class RpnCalculator {
         }
     }
 
-    private class Token {
-        byte id = -1;
-        double number = Double.NaN;
-        String variable = null;
-        double[] values = null;
+    static int getCacheCapacity() {
+        synchronized (cache) {
+            return cacheCapacity;
+        }
+    }
+
+    static void setCacheCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid cache capacity: " + capacity);
+        }
+        synchronized (cache) {
+            cacheCapacity = capacity;
+            Iterator<String> keys = cache.keySet().iterator();
+            while (cache.size() > capacity) {
+                keys.next();
+                keys.remove();
+            }
+        }
+    }
+
+    static long getCacheHits() {
+        synchronized (cache) {
+            return cacheHits;
+        }
+    }
+
+    static long getCacheMisses() {
+        synchronized (cache) {
+            return cacheMisses;
+        }
+    }
+
+    // evicts the least recently used expressions beyond the cache capacity
+    private static class TokenCache extends LinkedHashMap<String, Token[]> {
+        private static final long serialVersionUID = 1L;
+
+        TokenCache() {
+            super(16, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Token[]> eldest) {
+            return size() > cacheCapacity;
+        }
+    }
+
+    // shared by all threads through the cache, never modified
+    static class Token {
+        final byte id;
+        final double number;
+        final String variable;
+
+        Token(byte id, double number, String variable) {
+            this.id = id;
+            this.number = number;
+            this.variable = variable;
+        }
     }
 }
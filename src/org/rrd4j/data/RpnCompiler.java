@@ -0,0 +1,557 @@
+package org.rrd4j.data;
+
+import org.rrd4j.core.Util;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.rrd4j.data.RpnCalculator.*;
+
+/**
+ * Compiles the RPN expressions of all CDEF sources of a {@link DataProcessor} into a single graph
+ * of operations over whole arrays of values. Each operation runs once over all timestamps,
+ * instead of each token being interpreted once per timestamp. Constant subexpressions are folded,
+ * identical subexpressions are computed once, even when found in distinct CDEFs, and intermediate
+ * arrays are dropped as soon as no remaining operation needs them.<p>
+ *
+ * Expressions with tokens whose value does not depend on the current slot only (PREV, NOW, RANDOM
+ * and RND), or which cannot be evaluated, are not compiled. They are left to {@link RpnCalculator},
+ * which gives the very same results.
+ */
+class RpnCompiler {
+    private final DataProcessor dataProcessor;
+    private final long[] timestamps;
+    private final double timeStep;
+
+    // nodes by structure, shared by all expressions
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+    // compiled CDEFs, by name
+    private final Map<String, Node> roots = new HashMap<String, Node>();
+    // sources with values by the time the CDEF being compiled gets calculated
+    private final Set<String> available = new HashSet<String>();
+
+    RpnCompiler(DataProcessor dataProcessor, long[] timestamps, Collection<Source> sources) {
+        this.dataProcessor = dataProcessor;
+        this.timestamps = timestamps;
+        this.timeStep = timestamps[1] - timestamps[0];
+        for (Source source : sources) {
+            if (source instanceof Def) {
+                available.add(source.getName());
+            }
+        }
+        for (Source source : sources) {
+            if (source instanceof CDef) {
+                Node root = compile(((CDef) source).getRpnExpression());
+                if (root != null) {
+                    roots.put(source.getName(), root);
+                }
+            }
+            available.add(source.getName());
+        }
+        for (Node root : roots.values()) {
+            root.uses++;
+            countUses(root);
+        }
+    }
+
+    /**
+     * Calculates the values of a CDEF, once all sources it depends on are calculated.
+     *
+     * @return CDEF values, or null if the expression of the CDEF was not compiled
+     */
+    double[] calculateValues(String sourceName) {
+        Node root = roots.get(sourceName);
+        if (root == null) {
+            return null;
+        }
+        double[] values = evaluate(root);
+        if (root.args != null && !root.output) {
+            // hand the array over, never to be released
+            root.output = true;
+            root.uses--;
+            return values;
+        }
+        values = values.clone();
+        release(root);
+        return values;
+    }
+
+    // returns null if the expression is left to the interpreter
+    private Node compile(String rpnExpression) {
+        try {
+            return compile(parseTokens(rpnExpression));
+        }
+        catch (IllegalArgumentException e) {
+            // bad expression, reported by the interpreter
+            return null;
+        }
+    }
+
+    private Node compile(Token[] tokens) {
+        List<Node> stack = new ArrayList<Node>();
+        for (Token token : tokens) {
+            Node x1, x2, x3;
+            switch (token.id) {
+                case TKN_NUM:
+                    push(stack, constant(token.number));
+                    break;
+                case TKN_PI:
+                    push(stack, constant(Math.PI));
+                    break;
+                case TKN_E:
+                    push(stack, constant(Math.E));
+                    break;
+                case TKN_INF:
+                    push(stack, constant(Double.POSITIVE_INFINITY));
+                    break;
+                case TKN_NEGINF:
+                    push(stack, constant(Double.NEGATIVE_INFINITY));
+                    break;
+                case TKN_UNKN:
+                    push(stack, constant(Double.NaN));
+                    break;
+                case TKN_STEP:
+                    push(stack, constant(timeStep));
+                    break;
+                case TKN_TIME:
+                    push(stack, intern("TIME", new Node(TKN_TIME, null)));
+                    break;
+                case TKN_VAR:
+                    if (!available.contains(token.variable)) {
+                        // unknown, or not yet calculated
+                        return null;
+                    }
+                    Node root = roots.get(token.variable);
+                    push(stack, root != null ? root : variable(token.variable));
+                    break;
+                case TKN_DUP:
+                    x1 = pop(stack);
+                    push(stack, x1);
+                    push(stack, x1);
+                    break;
+                case TKN_EXC:
+                    x2 = pop(stack);
+                    x1 = pop(stack);
+                    push(stack, x2);
+                    push(stack, x1);
+                    break;
+                case TKN_POP:
+                    pop(stack);
+                    break;
+                case TKN_SIN:
+                case TKN_COS:
+                case TKN_LOG:
+                case TKN_EXP:
+                case TKN_FLOOR:
+                case TKN_CEIL:
+                case TKN_ROUND:
+                case TKN_ABS:
+                case TKN_SQRT:
+                case TKN_UN:
+                case TKN_SIGN:
+                case TKN_YEAR:
+                case TKN_MONTH:
+                case TKN_DATE:
+                case TKN_HOUR:
+                case TKN_MINUTE:
+                case TKN_SECOND:
+                case TKN_WEEK:
+                    x1 = pop(stack);
+                    push(stack, operation(token.id, x1));
+                    break;
+                case TKN_PLUS:
+                case TKN_MINUS:
+                case TKN_MULT:
+                case TKN_DIV:
+                case TKN_MOD:
+                case TKN_POW:
+                case TKN_LT:
+                case TKN_LE:
+                case TKN_GT:
+                case TKN_GE:
+                case TKN_EQ:
+                case TKN_MIN:
+                case TKN_MAX:
+                case TKN_AND:
+                case TKN_OR:
+                case TKN_XOR:
+                    x2 = pop(stack);
+                    x1 = pop(stack);
+                    push(stack, operation(token.id, x1, x2));
+                    break;
+                case TKN_IF:
+                case TKN_LIMIT:
+                    x3 = pop(stack);
+                    x2 = pop(stack);
+                    x1 = pop(stack);
+                    push(stack, operation(token.id, x1, x2, x3));
+                    break;
+                default:
+                    // PREV, NOW, RANDOM and RND
+                    return null;
+            }
+        }
+        Node root = pop(stack);
+        if (!stack.isEmpty()) {
+            throw new IllegalArgumentException("Stack not empty at the end of calculation");
+        }
+        return root;
+    }
+
+    private static void push(List<Node> stack, Node node) {
+        if (stack.size() >= MAX_STACK_SIZE) {
+            throw new IllegalArgumentException("PUSH failed, RPN stack full [" + MAX_STACK_SIZE + "]");
+        }
+        stack.add(node);
+    }
+
+    private static Node pop(List<Node> stack) {
+        if (stack.isEmpty()) {
+            throw new IllegalArgumentException("POP failed, RPN stack is empty ");
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    private Node constant(double value) {
+        Node node = new Node((byte) -1, null);
+        node.number = value;
+        return intern("#" + Double.doubleToLongBits(value), node);
+    }
+
+    private Node variable(String name) {
+        Node node = new Node(TKN_VAR, null);
+        node.variable = name;
+        return intern("$" + name, node);
+    }
+
+    private Node operation(byte op, Node... args) {
+        StringBuilder key = new StringBuilder().append(op);
+        boolean constant = true;
+        for (Node arg : args) {
+            key.append(',').append(arg.id);
+            constant &= arg.op < 0;
+        }
+        if (constant) {
+            // folded with the code which computes arrays, for the very same result
+            double[][] values = new double[3][];
+            for (int i = 0; i < args.length; i++) {
+                values[i] = new double[]{args[i].number};
+            }
+            double[] result = new double[1];
+            apply(op, result, values[0], values[1], values[2]);
+            return constant(result[0]);
+        }
+        return intern(key.toString(), new Node(op, args));
+    }
+
+    private Node intern(String key, Node node) {
+        Node known = nodes.get(key);
+        if (known != null) {
+            return known;
+        }
+        node.id = nodes.size();
+        nodes.put(key, node);
+        return node;
+    }
+
+    private static void countUses(Node node) {
+        if (node.counted) {
+            return;
+        }
+        node.counted = true;
+        if (node.args != null) {
+            for (Node arg : node.args) {
+                arg.uses++;
+                countUses(arg);
+            }
+        }
+    }
+
+    // evaluates arguments first, without recursion as expressions may be very long
+    private double[] evaluate(Node root) {
+        List<Node> pending = new ArrayList<Node>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.get(pending.size() - 1);
+            if (node.values != null) {
+                pending.remove(pending.size() - 1);
+                continue;
+            }
+            boolean ready = true;
+            if (node.args != null) {
+                for (Node arg : node.args) {
+                    if (arg.values == null) {
+                        pending.add(arg);
+                        ready = false;
+                    }
+                }
+            }
+            if (ready) {
+                pending.remove(pending.size() - 1);
+                calculate(node);
+            }
+        }
+        return root.values;
+    }
+
+    private void calculate(Node node) {
+        int count = timestamps.length;
+        if (node.op < 0) {
+            node.values = new double[count];
+            for (int i = 0; i < count; i++) {
+                node.values[i] = node.number;
+            }
+        }
+        else if (node.op == TKN_VAR) {
+            node.values = dataProcessor.getValues(node.variable);
+        }
+        else if (node.op == TKN_TIME) {
+            node.values = new double[count];
+            for (int i = 0; i < count; i++) {
+                node.values[i] = (long) Math.round(timestamps[i]);
+            }
+        }
+        else {
+            Node[] args = node.args;
+            double[] values = new double[count];
+            apply(node.op, values,
+                    args[0].values,
+                    args.length > 1 ? args[1].values : null,
+                    args.length > 2 ? args[2].values : null);
+            node.values = values;
+            for (Node arg : args) {
+                release(arg);
+            }
+        }
+    }
+
+    private static void release(Node node) {
+        if (--node.uses == 0 && !node.output && node.op != TKN_VAR) {
+            node.values = null;
+        }
+    }
+
+    /**
+     * Computes a whole array of results, with the same arithmetic as {@link RpnCalculator}.
+     */
+    private static void apply(byte op, double[] r, double[] x1, double[] x2, double[] x3) {
+        int count = r.length;
+        switch (op) {
+            case TKN_PLUS:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x2[i] + x1[i];
+                }
+                break;
+            case TKN_MINUS:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] - x2[i];
+                }
+                break;
+            case TKN_MULT:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x2[i] * x1[i];
+                }
+                break;
+            case TKN_DIV:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] / x2[i];
+                }
+                break;
+            case TKN_MOD:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] % x2[i];
+                }
+                break;
+            case TKN_POW:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.pow(x1[i], x2[i]);
+                }
+                break;
+            case TKN_SIN:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.sin(x1[i]);
+                }
+                break;
+            case TKN_COS:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.cos(x1[i]);
+                }
+                break;
+            case TKN_LOG:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.log(x1[i]);
+                }
+                break;
+            case TKN_EXP:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.exp(x1[i]);
+                }
+                break;
+            case TKN_FLOOR:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.floor(x1[i]);
+                }
+                break;
+            case TKN_CEIL:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.ceil(x1[i]);
+                }
+                break;
+            case TKN_ROUND:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.round(x1[i]);
+                }
+                break;
+            case TKN_ABS:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.abs(x1[i]);
+                }
+                break;
+            case TKN_SQRT:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.sqrt(x1[i]);
+                }
+                break;
+            case TKN_LT:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] < x2[i] ? 1 : 0;
+                }
+                break;
+            case TKN_LE:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] <= x2[i] ? 1 : 0;
+                }
+                break;
+            case TKN_GT:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] > x2[i] ? 1 : 0;
+                }
+                break;
+            case TKN_GE:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] >= x2[i] ? 1 : 0;
+                }
+                break;
+            case TKN_EQ:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] == x2[i] ? 1 : 0;
+                }
+                break;
+            case TKN_IF:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] != 0 ? x2[i] : x3[i];
+                }
+                break;
+            case TKN_MIN:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.min(x2[i], x1[i]);
+                }
+                break;
+            case TKN_MAX:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Math.max(x2[i], x1[i]);
+                }
+                break;
+            case TKN_LIMIT:
+                for (int i = 0; i < count; i++) {
+                    r[i] = x1[i] < x2[i] || x1[i] > x3[i] ? Double.NaN : x1[i];
+                }
+                break;
+            case TKN_UN:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Double.isNaN(x1[i]) ? 1 : 0;
+                }
+                break;
+            case TKN_AND:
+                for (int i = 0; i < count; i++) {
+                    r[i] = (x1[i] != 0 && x2[i] != 0) ? 1 : 0;
+                }
+                break;
+            case TKN_OR:
+                for (int i = 0; i < count; i++) {
+                    r[i] = (x1[i] != 0 || x2[i] != 0) ? 1 : 0;
+                }
+                break;
+            case TKN_XOR:
+                for (int i = 0; i < count; i++) {
+                    r[i] = ((x1[i] != 0 && x2[i] == 0) || (x1[i] == 0 && x2[i] != 0)) ? 1 : 0;
+                }
+                break;
+            case TKN_SIGN:
+                for (int i = 0; i < count; i++) {
+                    r[i] = Double.isNaN(x1[i]) ? Double.NaN : x1[i] > 0 ? +1 : x1[i] < 0 ? -1 : 0;
+                }
+                break;
+            case TKN_YEAR:
+                getCalendarFields(r, x1, Calendar.YEAR);
+                break;
+            case TKN_MONTH:
+                getCalendarFields(r, x1, Calendar.MONTH);
+                break;
+            case TKN_DATE:
+                getCalendarFields(r, x1, Calendar.DAY_OF_MONTH);
+                break;
+            case TKN_HOUR:
+                getCalendarFields(r, x1, Calendar.HOUR_OF_DAY);
+                break;
+            case TKN_MINUTE:
+                getCalendarFields(r, x1, Calendar.MINUTE);
+                break;
+            case TKN_SECOND:
+                getCalendarFields(r, x1, Calendar.SECOND);
+                break;
+            case TKN_WEEK:
+                getCalendarFields(r, x1, Calendar.WEEK_OF_YEAR);
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected RPN token encountered, token.id=" + op);
+        }
+    }
+
+    // a single calendar for all slots, fields are computed again only when the time changes
+    private static void getCalendarFields(double[] r, double[] timestamps, int field) {
+        Calendar calendar = null;
+        long lastTime = 0;
+        double lastValue = Double.NaN;
+        for (int i = 0; i < r.length; i++) {
+            long time = (long) (timestamps[i] * 1000);
+            if (calendar == null) {
+                calendar = Util.getCalendar(time);
+            }
+            else if (time != lastTime) {
+                calendar.setTimeInMillis(time * 1000L);
+            }
+            else {
+                r[i] = lastValue;
+                continue;
+            }
+            lastTime = time;
+            r[i] = lastValue = calendar.get(field);
+        }
+    }
+
+    private static final class Node {
+        // token id of the operation, negative for constants
+        final byte op;
+        final Node[] args;
+        double number = Double.NaN;
+        String variable;
+        int id;
+
+        double[] values;
+        // number of operations and CDEFs which still need the values
+        int uses;
+        boolean counted, output;
+
+        Node(byte op, Node[] args) {
+            this.op = op;
+            this.args = args;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.rrd4j.data;
 
 import org.rrd4j.ConsolFun;
 
+import java.util.Arrays;
+
 class SDef extends Source {
     private String defName;
     private ConsolFun consolFun;
@@ -41,4 +43,10 @@ class SDef extends Source {
     double getPercentile(long tStart, long tEnd, double percentile) {
         return value;
     }
+
+    double[] getPercentiles(long tStart, long tEnd, double... percentiles) {
+        double[] values = new double[percentiles.length];
+        Arrays.fill(values, value);
+        return values;
+    }
 }
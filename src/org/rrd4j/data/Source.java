@@ -4,6 +4,8 @@ abstract class Source {
     final private String name;
     protected double[] values;
     protected long[] timestamps;
+    // keeps aggregates of the last requested time range
+    private Aggregator aggregator;
 
     Source(String name) {
         this.name = name;
@@ -15,10 +17,12 @@ abstract class Source {
 
     void setValues(double[] values) {
         this.values = values;
+        this.aggregator = null;
     }
 
     void setTimestamps(long[] timestamps) {
         this.timestamps = timestamps;
+        this.aggregator = null;
     }
 
     double[] getValues() {
@@ -30,12 +34,21 @@ abstract class Source {
     }
 
     Aggregates getAggregates(long tStart, long tEnd) {
-        Aggregator agg = new Aggregator(timestamps, values);
-        return agg.getAggregates(tStart, tEnd);
+        return getAggregator().getAggregates(tStart, tEnd);
     }
 
     double getPercentile(long tStart, long tEnd, double percentile) {
-        Aggregator agg = new Aggregator(timestamps, values);
-        return agg.getPercentile(tStart, tEnd, percentile);
+        return getAggregator().getPercentile(tStart, tEnd, percentile);
+    }
+
+    double[] getPercentiles(long tStart, long tEnd, double... percentiles) {
+        return getAggregator().getPercentiles(tStart, tEnd, percentiles);
+    }
+
+    private Aggregator getAggregator() {
+        if (aggregator == null) {
+            aggregator = new Aggregator(timestamps, values);
+        }
+        return aggregator;
     }
 }
@@ -520,6 +520,7 @@ public class RrdGraph implements RrdGraphConstants {
     private void fetchData() throws IOException {
         dproc = new DataProcessor(gdef.startTime, gdef.endTime);
         dproc.setPoolUsed(gdef.poolUsed);
+        dproc.setParallelFetch(gdef.parallelFetch);
         if (gdef.step > 0) {
             dproc.setStep(gdef.step);
         }
@@ -38,6 +38,7 @@ import java.util.List;
  */
 public class RrdGraphDef implements RrdGraphConstants {
     boolean poolUsed = false; // ok
+    boolean parallelFetch = false;
     boolean antiAliasing = false; // ok
     boolean textAntiAliasing = false; // ok
     String filename = RrdGraphConstants.IN_MEMORY_IMAGE; // ok
@@ -162,6 +163,16 @@ public class RrdGraphDef implements RrdGraphConstants {
         this.poolUsed = poolUsed;
     }
 
+    /**
+     * Sets whether data of distinct RRD files is fetched concurrently (defaults to false).
+     * See {@link org.rrd4j.data.DataProcessor#setParallelFetch(boolean)}.
+     *
+     * @param parallelFetch true, if RRD files should be read concurrently. False otherwise.
+     */
+    public void setParallelFetch(boolean parallelFetch) {
+        this.parallelFetch = parallelFetch;
+    }
+
     /**
      * Sets the name of the graph to generate. Since Rrd4j outputs GIFs, PNGs,
      * and JPEGs it's recommended that the filename end in either .gif,